@@ -0,0 +1,206 @@
+package bulk;
+
+import maildir.MailBoxListener;
+import maildir.MailStore;
+import repl.Recorder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+//Bulk import and export of whole mailboxes, for moving users onto (or off) this server
+//without pushing years of mail through SMTP. Users are spread over a fork-join pool, one
+//task per user, biggest first so a large mailbox does not start last. Run it while the
+//servers are stopped: a running Launcher keeps its own index and would not see the mail.
+//On a replication primary the imported mail goes into its change log as well, so the
+//followers get it once the primary is running again.
+//
+//usage: BulkTool import <dir> [--spool mail] [--threads n] [--users a,b] [--every secs]
+//         <dir> holds <user>.mbox or <user> mbox files, or <user>/ maildirs (cur/, new/)
+//         an interrupted import picks up where it stopped when run again
+//       BulkTool export <dir> [--spool mail] [--threads n] [--users a,b] [--format mbox|maildir]
+public class BulkTool {
+
+//running totals for the progress line, shared by every worker
+    static final class Progress {
+        final LongAdder msgs = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder source = new LongAdder();
+        final LongAdder users = new LongAdder();
+        long total;
+        int userCount;
+
+        void message(long n) { msgs.increment(); bytes.add(n); }
+        void skipped() { skipped.increment(); }
+        void source(long n) { source.add(n); }
+        void userDone(long src) { users.increment(); source.add(src); }
+
+        String line(long startNs, long lastMsgs, long lastBytes, double secs) {
+            double all = (System.nanoTime() - startNs) / 1e9;
+            long m = msgs.sum(), b = bytes.sum();
+            String pct = total > 0 ? String.format("%5.1f%% ", 100.0 * Math.min(source.sum(), total) / total) : "";
+            return String.format("%s%d msgs %s | now %.0f msg/s %s/s | avg %.0f msg/s | users %d/%d%s",
+                    pct, m, mb(b), (m - lastMsgs) / secs, mb((long) ((b - lastBytes) / secs)),
+                    m / Math.max(all, 0.001), users.sum(), userCount,
+                    skipped.sum() > 0 ? " | " + skipped.sum() + " already there" : "");
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) { usage(); System.exit(2); }
+        String spool = "mail";
+        int threads = Runtime.getRuntime().availableProcessors();
+        Set<String> only = null;
+        int every = 5;
+        String format = "mbox";
+        for (int i = 2; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--spool") && i + 1 < args.length) spool = args[++i];
+            else if (a.equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if (a.equals("--users") && i + 1 < args.length) only = new HashSet<>(List.of(args[++i].split(",")));
+            else if (a.equals("--every") && i + 1 < args.length) every = Integer.parseInt(args[++i]);
+            else if (a.equals("--format") && i + 1 < args.length) format = args[++i];
+            else { usage(); System.exit(2); }
+        }
+        try {
+            boolean ok = args[0].equals("import")
+                    ? runImport(Paths.get(args[1]), spool, threads, only, every)
+                    : runExport(Paths.get(args[1]), spool, threads, only, every, format.equals("maildir"));
+            System.exit(ok ? 0 : 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static boolean runImport(Path from, String spool, int threads, Set<String> only, int every) throws Exception {
+        Map<String, Path> src = new LinkedHashMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(from)) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                if (Files.isDirectory(p)) {
+                    if (!Files.isDirectory(p.resolve("cur")) && !Files.isDirectory(p.resolve("new"))) continue;
+                } else if (n.endsWith(".mbox")) {
+                    n = n.substring(0, n.length() - 5);
+                } else if (n.indexOf('.') >= 0) {
+                    continue;
+                }
+                if (!okUser(n) || (only != null && !only.contains(n))) continue;
+                if (src.put(n, p) != null) System.err.println("more than one source for " + n + ", using " + p);
+            }
+        }
+        Progress prog = new Progress();
+        for (Path p : src.values()) prog.total += sourceSize(p);
+        prog.userCount = src.size();
+        MailStore store = MailStore.of(spool);
+        MailBoxListener repl = Recorder.of(spool);
+        if (repl != null) store.addListener(repl);
+        Importer imp = new Importer(store, Paths.get(spool), prog);
+        List<Map.Entry<String, Path>> order = new ArrayList<>(src.entrySet());
+        order.sort((a, b) -> Long.compare(sourceSize(b.getValue()), sourceSize(a.getValue())));
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (Map.Entry<String, Path> u : order) {
+            tasks.add(() -> { imp.run(u.getKey(), u.getValue()); return u.getKey(); });
+        }
+        System.out.println("import " + src.size() + " users, " + mb(prog.total) + " from " + from + " into " + spool + " on " + threads + " threads");
+        return run(tasks, order.stream().map(Map.Entry::getKey).toList(), threads, prog, every);
+    }
+
+    private static boolean runExport(Path to, String spool, int threads, Set<String> only, int every, boolean maildir) throws Exception {
+        List<String> users = new ArrayList<>();
+        Map<String, Long> size = new LinkedHashMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(spool))) {
+            for (Path d : ds) {
+                String user = d.getFileName().toString();
+                if (!okUser(user) || !Files.isDirectory(d.resolve("new"))) continue;
+                if (only != null && !only.contains(user)) continue;
+                users.add(user);
+                size.put(user, sourceSize(d));
+            }
+        }
+        users.sort((a, b) -> Long.compare(size.get(b), size.get(a)));
+        Progress prog = new Progress();
+        prog.userCount = users.size();
+        MailStore store = MailStore.of(spool);
+        Exporter exp = new Exporter(store, to, maildir, prog);
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (String u : users) tasks.add(() -> { exp.run(u); return u; });
+        System.out.println("export " + users.size() + " users from " + spool + " to " + to + " as " + (maildir ? "maildir" : "mbox") + " on " + threads + " threads");
+        return run(tasks, users, threads, prog, every);
+    }
+
+//run every user's task on the pool with a progress line every few seconds, false if any failed
+    private static boolean run(List<Callable<String>> tasks, List<String> users, int threads, Progress prog, int every) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread report = new Thread(() -> {
+            long m = 0, b = 0;
+            while (true) {
+                try { Thread.sleep(every * 1000L); } catch (InterruptedException e) { return; }
+                System.out.println(prog.line(start, m, b, every));
+                m = prog.msgs.sum();
+                b = prog.bytes.sum();
+            }
+        }, "bulk-progress");
+        report.setDaemon(true);
+        if (every > 0) report.start();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        List<Future<String>> done = pool.invokeAll(tasks);
+        pool.shutdown();
+        report.interrupt();
+        boolean ok = true;
+        for (int i = 0; i < done.size(); i++) {
+            try {
+                done.get(i).get();
+            } catch (Exception e) {
+                ok = false;
+                Throwable c = e.getCause() == null ? e : e.getCause();
+                System.err.println(users.get(i) + ": " + c);
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s %d msgs %s in %.1fs, %.0f msg/s %s/s%s", ok ? "done" : "finished with errors",
+                prog.msgs.sum(), mb(prog.bytes.sum()), secs, prog.msgs.sum() / Math.max(secs, 0.001),
+                mb((long) (prog.bytes.sum() / Math.max(secs, 0.001))),
+                prog.skipped.sum() > 0 ? ", " + prog.skipped.sum() + " already there" : ""));
+        return ok;
+    }
+
+//bytes in a file, or in every file under a directory
+    static long sourceSize(Path p) {
+        try {
+            if (!Files.isDirectory(p)) return Files.size(p);
+            try (var s = Files.walk(p)) {
+                return s.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+//a user name that is safe as a spool directory
+    private static boolean okUser(String u) {
+        return !u.isEmpty() && !u.startsWith(".") && u.indexOf('/') < 0 && u.indexOf('\\') < 0;
+    }
+
+    private static String mb(long b) {
+        return String.format("%.1f MB", b / (1024.0 * 1024));
+    }
+
+    private static void usage() {
+        System.err.println("usage: BulkTool import <dir> [--spool mail] [--threads n] [--users a,b] [--every secs]");
+        System.err.println("       BulkTool export <dir> [--spool mail] [--threads n] [--users a,b] [--format mbox|maildir]");
+    }
+}
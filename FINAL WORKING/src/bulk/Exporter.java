@@ -0,0 +1,173 @@
+package bulk;
+
+import maildir.Headers;
+import maildir.MailBox;
+import maildir.MailBoxException;
+import maildir.MailStore;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//Writes one user's mailbox out in uid order, as an mbox file (<dir>/<user>.mbox, mboxrd
+//quoting, LF line endings, Status/X-Status for the flags) or as a plain maildir
+//(<dir>/<user>/cur and new). Reads go through MailBox so packed segments come out too.
+final class Exporter {
+//read this much of a message at a time
+    private static final int CHUNK = 1024 * 1024;
+    private static final DateTimeFormatter ASCTIME = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ROOT);
+
+    private final MailStore store;
+    private final Path dir;
+    private final boolean maildir;
+    private final BulkTool.Progress prog;
+
+    Exporter(MailStore store, Path dir, boolean maildir, BulkTool.Progress prog) throws IOException {
+        this.store = store;
+        this.dir = dir;
+        this.maildir = maildir;
+        this.prog = prog;
+        Files.createDirectories(dir);
+    }
+
+    void run(String user) throws IOException, MailBoxException {
+        MailBox box = store.open(user);
+        if (maildir) toMaildir(user, box);
+        else toMbox(user, box);
+        prog.userDone(0);
+    }
+
+    private void toMbox(String user, MailBox box) throws IOException, MailBoxException {
+        Path out = dir.resolve(user + ".mbox");
+        Path tmp = dir.resolve(user + ".mbox.tmp");
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), 256 * 1024)) {
+            for (MailBox.Entry e : box.entries()) {
+                byte[] head = box.read(e, 0, (int) Math.min(box.headerLength(e), Integer.MAX_VALUE));
+                Headers h = Headers.parse(head);
+                String rp = h.get("Return-Path");
+                String sender = rp == null ? "" : rp.replace("<", "").replace(">", "").trim();
+                os.write(("From " + (sender.isEmpty() ? "MAILER-DAEMON" : sender) + " "
+                        + ASCTIME.format(Instant.ofEpochMilli(e.created()).atZone(ZoneOffset.UTC)) + "\n").getBytes(StandardCharsets.ISO_8859_1));
+                Lines w = new Lines(os);
+//header without its blank line or old Status lines, then the flags, then the blank line and body
+                for (int i = 0; i < h.size(); i++) {
+                    String n = h.name(i);
+                    if (n.equalsIgnoreCase("Status") || n.equalsIgnoreCase("X-Status")) continue;
+                    byte[] f = h.raw(i).getBytes(StandardCharsets.ISO_8859_1);
+                    w.write(f, 0, f.length);
+                }
+                w.endLine();
+                long split = h.length();
+                String f = e.flags();
+                os.write(("Status: " + (f.indexOf('S') >= 0 ? "RO" : "O") + "\n").getBytes(StandardCharsets.ISO_8859_1));
+                String xs = (f.indexOf('R') >= 0 ? "A" : "") + (f.indexOf('F') >= 0 ? "F" : "") + (f.indexOf('D') >= 0 ? "T" : "") + (f.indexOf('T') >= 0 ? "D" : "");
+                if (!xs.isEmpty()) os.write(("X-Status: " + xs + "\n").getBytes(StandardCharsets.ISO_8859_1));
+                os.write('\n');
+                for (long at = split; at < e.size(); ) {
+                    byte[] b = box.read(e, at, (int) Math.min(CHUNK, e.size() - at));
+                    if (b.length == 0) break;
+                    w.write(b, 0, b.length);
+                    at += b.length;
+                }
+                w.endLine();
+//empty line before the next From line
+                os.write('\n');
+                prog.message(e.size());
+            }
+        }
+        Files.move(tmp, out, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private void toMaildir(String user, MailBox box) throws IOException, MailBoxException {
+        Path cur = Files.createDirectories(dir.resolve(user).resolve("cur"));
+        Path nw = Files.createDirectories(dir.resolve(user).resolve("new"));
+        Files.createDirectories(dir.resolve(user).resolve("tmp"));
+        for (MailBox.Entry e : box.entries()) {
+//the arrival time leads the name and the uid is padded, so a maildir reader sorts them the same way
+            String base = (e.created() / 1000) + "." + String.format("%010d", e.uid()) + "." + user;
+            Path p = e.flags().isEmpty() ? nw.resolve(base) : cur.resolve(base + ":2," + e.flags());
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(p), 256 * 1024)) {
+                for (long at = 0; at < e.size(); ) {
+                    byte[] b = box.read(e, at, (int) Math.min(CHUNK, e.size() - at));
+                    if (b.length == 0) break;
+                    os.write(b);
+                    at += b.length;
+                }
+            }
+            Files.setLastModifiedTime(p, FileTime.fromMillis(e.created()));
+            prog.message(e.size());
+        }
+    }
+
+//Writes message text as mbox lines: CRLF becomes LF and a line of ">"s then "From " gets
+//one more ">". Input can arrive in any pieces, a line split across them is handled
+    private static final class Lines {
+        private final OutputStream os;
+//start of line state: how many '>' seen so far, -1 once the line is plain text
+        private int quote = 0;
+        private final byte[] pend = new byte[5];
+        private int npend = 0;
+        private boolean cr = false;
+
+        Lines(OutputStream os) { this.os = os; }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                byte c = b[i];
+                if (cr) {
+                    cr = false;
+                    if (c != '\n') emit('\r');
+                }
+                if (c == '\r') { cr = true; continue; }
+                emit(c);
+            }
+        }
+
+//finish a line that has no ending of its own
+        void endLine() throws IOException {
+            if (cr) { cr = false; }
+            if (quote != 0 || npend > 0) emit('\n');
+        }
+
+        private void emit(int c) throws IOException {
+            if (c == '\n') {
+                flushPend();
+                os.write('\n');
+                quote = 0;
+                return;
+            }
+            if (quote < 0) { os.write(c); return; }
+//still at the start of the line, look for >*From
+            if (npend == 0 && c == '>') { quote++; return; }
+            pend[npend++] = (byte) c;
+            if ("From ".startsWith(new String(pend, 0, npend, StandardCharsets.ISO_8859_1))) {
+                if (npend == 5) {
+                    os.write('>');
+                    flushPend();
+                    quote = -1;
+                }
+                return;
+            }
+            flushPend();
+            quote = -1;
+        }
+
+        private void flushPend() throws IOException {
+            for (int i = 0; i < quote; i++) os.write('>');
+            if (quote > 0) quote = 0;
+            os.write(pend, 0, npend);
+            npend = 0;
+        }
+    }
+}
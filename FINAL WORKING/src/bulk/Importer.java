@@ -0,0 +1,181 @@
+package bulk;
+
+import maildir.Headers;
+import maildir.MailBox;
+import maildir.MailBoxException;
+import maildir.MailStore;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//Imports one user's old mail, an mbox file or a foreign maildir, straight into the spool.
+//Messages keep their source order: each gets the next uid as it is written and a name of
+//"<arrival millis>-imp<number>.eml". Every BATCH messages the place in the source is
+//saved to <spool>/.import/<user>, with the arrival time an mbox message lacking its own
+//date inherits from the one before. A rerun starts from there and names come out the same
+//both times, so messages written after the last save keep the uid they got and are
+//skipped, nothing is doubled.
+final class Importer {
+//messages between checkpoints
+    private static final int BATCH = 1000;
+
+    private final MailStore store;
+    private final Path ckDir;
+    private final BulkTool.Progress prog;
+
+    Importer(MailStore store, Path spool, BulkTool.Progress prog) throws IOException {
+        this.store = store;
+        this.ckDir = spool.resolve(".import");
+        this.prog = prog;
+        Files.createDirectories(ckDir);
+    }
+
+//Import one user, src is an mbox file or a maildir with cur/ and new/
+    void run(String user, Path src) throws IOException, MailBoxException {
+        Path ck = ckDir.resolve(user);
+        long pos = 0, seq = 0, last = 0;
+        if (Files.exists(ck)) {
+            String[] f = new String(Files.readAllBytes(ck), StandardCharsets.UTF_8).trim().split(" ");
+            if (f[0].equals("done")) { prog.userDone(BulkTool.sourceSize(src)); return; }
+            pos = Long.parseLong(f[0]);
+            seq = Long.parseLong(f[1]);
+            if (f.length > 2) last = Long.parseLong(f[2]);
+//what an mbox import already got through counts as done (a maildir position is a file count)
+            if (!Files.isDirectory(src)) prog.source(pos);
+        }
+        MailBox box = store.open(user);
+        if (Files.isDirectory(src)) maildir(box, src, ck, (int) pos, seq);
+        else mbox(box, src, ck, pos, seq, last);
+        save(ck, "done");
+        prog.userDone(0);
+    }
+
+//last is the arrival time carried over from a checkpoint, 0 on a fresh start
+    private void mbox(MailBox box, Path src, Path ck, long pos, long seq, long last) throws IOException, MailBoxException {
+        Mbox.Buf buf = new Mbox.Buf();
+        if (last <= 0) last = Files.getLastModifiedTime(src).toMillis();
+        try (Mbox in = new Mbox(src, pos)) {
+            long done = pos;
+            while (in.advance()) {
+                long at = in.arrival();
+                if (at > 0) last = at;
+                int len = in.copy(buf);
+                put(box, last, seq++, buf, len);
+                prog.source(in.next() - done);
+                done = in.next();
+                if (seq % BATCH == 0) checkpoint(ck, done, seq, last);
+            }
+        }
+    }
+
+    private void maildir(MailBox box, Path src, Path ck, int from, long seq) throws IOException, MailBoxException {
+        List<Path> files = new ArrayList<>();
+        for (String d : new String[] {"cur", "new"}) {
+            if (!Files.isDirectory(src.resolve(d))) continue;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(src.resolve(d))) {
+                for (Path p : ds) if (Files.isRegularFile(p)) files.add(p);
+            }
+        }
+//maildir names start with the delivery time in seconds, that is their arrival order
+        files.sort(Comparator.comparingLong((Path p) -> lead(p)).thenComparing(p -> p.getFileName().toString()));
+        Mbox.Buf buf = new Mbox.Buf();
+        for (int i = from; i < files.size(); i++) {
+            Path p = files.get(i);
+//the file time keeps the millis when it is the same second as the name
+            long mt = Files.getLastModifiedTime(p).toMillis();
+            long at = lead(p) > 0 && lead(p) != mt / 1000 ? lead(p) * 1000 : mt;
+            int len = crlf(p, buf);
+            String name = p.getFileName().toString();
+            int c = name.indexOf(":2,");
+            String flags = c < 0 ? "" : keep(name.substring(c + 3));
+            if (box.importMessage(name(at, seq++), buf.b, len, at, flags)) prog.message(len);
+            else prog.skipped();
+            prog.source(len);
+            if (seq % BATCH == 0) checkpoint(ck, i + 1, seq, 0);
+        }
+    }
+
+//one mbox message, flags come from the Status and X-Status headers mail readers leave
+    private void put(MailBox box, long at, long seq, Mbox.Buf buf, int len) throws MailBoxException {
+        Headers h = Headers.parse(buf.b, len);
+        StringBuilder f = new StringBuilder();
+        String st = h.get("Status");
+        String xs = h.get("X-Status");
+        if (st != null && st.indexOf('R') >= 0) f.append('S');
+        if (xs != null) {
+            if (xs.indexOf('A') >= 0) f.append('R');
+            if (xs.indexOf('F') >= 0) f.append('F');
+            if (xs.indexOf('T') >= 0) f.append('D');
+            if (xs.indexOf('D') >= 0) f.append('T');
+        }
+        if (box.importMessage(name(at, seq), buf.b, len, at, keep(f.toString()))) prog.message(len);
+        else prog.skipped();
+    }
+
+//each message's uid line is written with it, so a saved position never points past a
+//message without one
+    private void checkpoint(Path ck, long pos, long seq, long last) throws IOException {
+        save(ck, pos + " " + seq + " " + last);
+    }
+
+    private static void save(Path ck, String s) throws IOException {
+        Path tmp = ck.resolveSibling(ck.getFileName() + ".tmp");
+        Files.write(tmp, (s + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, ck, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+//names sort by arrival, then by place in the source
+    private static String name(long at, long seq) {
+        return String.format("%013d-imp%09d.eml", Math.max(0, at), seq);
+    }
+
+//known maildir flag letters, sorted and without repeats
+    private static String keep(String flags) {
+        char[] c = flags.replaceAll("[^DFRST]", "").toCharArray();
+        Arrays.sort(c);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < c.length; i++) if (i == 0 || c[i] != c[i - 1]) sb.append(c[i]);
+        return sb.toString();
+    }
+
+//leading number of a maildir file name (delivery time in seconds), 0 when there is none
+    private static long lead(Path p) {
+        String n = p.getFileName().toString();
+        int i = 0;
+        while (i < n.length() && i < 18 && Character.isDigit(n.charAt(i))) i++;
+        return i == 0 ? 0 : Long.parseLong(n.substring(0, i));
+    }
+
+//read a whole file through a mapping with every line ending turned into CRLF
+    private static int crlf(Path p, Mbox.Buf out) throws IOException {
+        out.len = 0;
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return 0;
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            out.ensure((int) Math.min(Integer.MAX_VALUE - 16, size + size / 16 + 2));
+            byte prev = 0;
+            while (m.hasRemaining()) {
+                byte b = m.get();
+                if (b == '\n' && prev != '\r') { out.ensure(2); out.b[out.len++] = '\r'; }
+                else out.ensure(1);
+                out.b[out.len++] = b;
+                prev = b;
+            }
+        }
+        return out.len;
+    }
+}
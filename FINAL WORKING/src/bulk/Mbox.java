@@ -0,0 +1,177 @@
+package bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+//Reads an mbox file through memory mapped windows. A message starts with a "From " line at
+//the top of the file or right after an empty line, and runs up to the next one. The file is
+//never read into the heap, advance() only moves the window along and notes where the
+//message is; copy() turns it into spool form.
+final class Mbox implements Closeable {
+//bytes mapped at a time, a message bigger than this gets a window of its own
+    private static final long WINDOW = 256L * 1024 * 1024;
+//"From sender Sat Jan  3 01:05:34 1996" without the weekday, which writers get wrong often enough
+    private static final DateTimeFormatter ASCTIME = DateTimeFormatter.ofPattern("MMM d HH:mm:ss yyyy", Locale.ROOT);
+
+    private final FileChannel ch;
+    private final long size;
+    private MappedByteBuffer map;
+    private long mapAt = 0;
+//start of the next message's From line
+    private long pos;
+
+//the message found by advance(): From line, then body from start to end (file offsets)
+    long from, start, end;
+    String fromLine;
+
+    Mbox(Path f, long pos) throws IOException {
+        this.ch = FileChannel.open(f, StandardOpenOption.READ);
+        this.size = ch.size();
+        this.pos = pos;
+    }
+
+    long size() { return size; }
+
+//offset just past the current message, where a resumed scan starts
+    long next() { return pos; }
+
+//Find the next message, false at the end of the file
+    boolean advance() throws IOException {
+        while (pos < size && !isFrom(pos)) pos = lineAfter(pos);
+        if (pos >= size) return false;
+        from = pos;
+        start = lineAfter(pos);
+        fromLine = text(from, start).trim();
+//scan line starts for the next separator: an empty line followed by "From "
+        long p = start;
+        long sep = size;
+        boolean blank = false;
+        while (p < size) {
+            if (blank && isFrom(p)) { sep = p; break; }
+            long n = lineAfter(p);
+            blank = isBlank(p, n);
+            p = n;
+        }
+//the empty line in front of the separator (or closing the file) belongs to the mbox,
+//not the message
+        end = sep;
+        if (sep < size || blank) {
+            if (end > start && at(end - 1) == '\n') end--;
+            if (end > start && at(end - 1) == '\r') end--;
+        }
+        pos = sep;
+        return true;
+    }
+
+//Arrival time from the From line in epoch millis, -1 when it has none we can read
+    long arrival() {
+        String[] f = fromLine.split("\\s+");
+//"From", sender, then five date fields, maybe a time zone or more after them
+        if (f.length < 7) return -1;
+        try {
+            String d = f[3] + " " + f[4] + " " + f[5] + " " + f[6];
+            return LocalDateTime.parse(d, ASCTIME).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+//Copy the current message into out in spool form: every line ends in CRLF and mboxrd
+//quoting is undone (">From " back to "From ", ">>From " to ">From "). Returns the length
+    int copy(Buf out) throws IOException {
+        out.len = 0;
+        long p = start;
+        while (p < end) {
+            long n = Math.min(lineAfter(p), end);
+//drop one '>' from a quoted From line
+            long q = p;
+            while (q < n && at(q) == '>') q++;
+            long s = (q > p && startsWith(q, "From ")) ? p + 1 : p;
+            long stop = n;
+            if (stop > s && at(stop - 1) == '\n') stop--;
+            if (stop > s && at(stop - 1) == '\r') stop--;
+            out.ensure((int) (stop - s) + 2);
+            window(s, stop - s);
+            map.get((int) (s - mapAt), out.b, out.len, (int) (stop - s));
+            out.len += (int) (stop - s);
+            out.b[out.len++] = '\r';
+            out.b[out.len++] = '\n';
+            p = n;
+        }
+        return out.len;
+    }
+
+    @Override
+    public void close() throws IOException { ch.close(); }
+
+//"From " at the start of a line at p
+    private boolean isFrom(long p) throws IOException { return startsWith(p, "From "); }
+
+    private boolean startsWith(long p, String s) throws IOException {
+        if (p + s.length() > size) return false;
+        for (int i = 0; i < s.length(); i++) if (at(p + i) != s.charAt(i)) return false;
+        return true;
+    }
+
+//line from p to n holds nothing but its line ending
+    private boolean isBlank(long p, long n) throws IOException {
+        long len = n - p;
+        return len == 1 || (len == 2 && at(p) == '\r');
+    }
+
+//offset just past the line ending of the line at p
+    private long lineAfter(long p) throws IOException {
+        while (p < size) {
+            window(p, 1);
+            int i = (int) (p - mapAt);
+            int lim = map.limit();
+            while (i < lim && map.get(i) != '\n') i++;
+            p = mapAt + i;
+            if (i < lim) return p + 1;
+        }
+        return size;
+    }
+
+    private byte at(long p) throws IOException {
+        window(p, 1);
+        return map.get((int) (p - mapAt));
+    }
+
+    private String text(long a, long b) throws IOException {
+        byte[] t = new byte[(int) Math.min(b - a, 4096)];
+        window(a, t.length);
+        map.get((int) (a - mapAt), t, 0, t.length);
+        return new String(t, StandardCharsets.ISO_8859_1);
+    }
+
+//make sure [p, p + n) is mapped
+    private void window(long p, long n) throws IOException {
+        if (map != null && p >= mapAt && p + n <= mapAt + map.limit()) return;
+        long len = Math.min(size - p, Math.max(WINDOW, n));
+        map = ch.map(FileChannel.MapMode.READ_ONLY, p, len);
+        mapAt = p;
+    }
+
+//growable byte buffer, one per worker so messages are copied without new garbage
+    static final class Buf {
+        byte[] b = new byte[256 * 1024];
+        int len = 0;
+
+        void ensure(int more) {
+            if (len + more <= b.length) return;
+            byte[] n = new byte[Math.max(b.length * 2, len + more)];
+            System.arraycopy(b, 0, n, 0, len);
+            b = n;
+        }
+    }
+}
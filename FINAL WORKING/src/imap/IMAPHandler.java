@@ -0,0 +1,1112 @@
+package imap;
+
+import maildir.Headers;
+import maildir.MailBox;
+import maildir.MailBoxException;
+import maildir.MailBoxListener;
+import maildir.MailStore;
+import merrimackutil.net.Log;
+import util.Config;
+import util.LineReader;
+import util.Metrics;
+import util.Tls;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+//Handles one IMAP4rev1 client (RFC 3501). Only INBOX exists, it is the user's maildir.
+//Message numbers follow uid order, flags live in the maildir file names under cur/
+//and body sections are read straight from the file by byte range.
+public class IMAPHandler implements Runnable {
+//connection states
+    private enum State { NOTAUTH, AUTH, SELECTED }
+
+//biggest literal accepted inside a command (we have no APPEND, so only logins and search strings)
+    private static final int MAX_LITERAL = 8 * 1024;
+//headers longer than this are cut off when parsing fields for ENVELOPE and SEARCH
+    private static final int MAX_HEADER = 1024 * 1024;
+//chunk used to stream message bytes out
+    private static final int CHUNK = 64 * 1024;
+//maildir flag letter for each system flag
+    private static final String[][] FLAGS = {
+        {"D", "\\Draft"}, {"F", "\\Flagged"}, {"R", "\\Answered"}, {"S", "\\Seen"}, {"T", "\\Deleted"}
+    };
+    private static final String FLAG_LIST = "(\\Answered \\Flagged \\Deleted \\Seen \\Draft)";
+    private static final DateTimeFormatter INTERNAL =
+            DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter SEARCH_DATE = DateTimeFormatter.ofPattern("d-MMM-yyyy", Locale.ENGLISH);
+//RFC 2047 encoded word, =?charset?B|Q?text?=
+    private static final Pattern WORD = Pattern.compile("=\\?([^?\\s]+)\\?([BbQq])\\?([^?\\s]*)\\?=");
+
+    private final Socket sk;
+    private final Config.ImapConfig cfg;
+    private final Config.AccountsDB accounts;
+    private final Log lg;
+    private final SSLContext tls;
+    private final ScheduledExecutorService push;
+
+    private Socket s;
+    private LineReader in;
+    private OutputStream out;
+    private State st = State.NOTAUTH;
+    private String user = null;
+    private MailStore store = null;
+    private MailBox box = null;
+    private boolean readOnly = false;
+//this session's view of the mailbox, slot i is message i+1, and the flags last sent for it
+    private final List<MailBox.Entry> view = new ArrayList<>();
+    private final List<String> shown = new ArrayList<>();
+//true while the client sits in IDLE, the push thread may write only then
+    private boolean idling = false;
+
+    public IMAPHandler(Socket sk, Config.ImapConfig cfg, Config.AccountsDB accounts, Log lg,
+                       SSLContext tls, ScheduledExecutorService push) {
+        this.sk = sk;
+        this.cfg = cfg;
+        this.accounts = accounts;
+        this.lg = lg;
+        this.tls = tls;
+        this.push = push;
+    }
+
+//a command the client got wrong, answered with BAD
+    private static final class Bad extends Exception {
+        private static final long serialVersionUID = 1L;
+        Bad(String msg) { super(msg); }
+    }
+
+    @Override
+    public void run() {
+        s = sk;
+        try {
+            in = new LineReader(s.getInputStream());
+            out = new BufferedOutputStream(s.getOutputStream(), CHUNK);
+//Drop clients that sit idle longer than the configured timeout
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
+            w("* OK [CAPABILITY " + capabilities() + "] " + cfg.serverName + " IMAP4rev1 ready\r\n");
+            out.flush();
+
+            String line;
+            while ((line = readCommand()) != null) {
+                if (line.isEmpty()) continue;
+                List<Object> t;
+                try {
+                    t = parse(line);
+                } catch (Bad e) {
+                    w("* BAD " + e.getMessage() + "\r\n");
+                    out.flush();
+                    continue;
+                }
+                if (t.size() < 2 || !(t.get(0) instanceof String) || !(t.get(1) instanceof String)) {
+                    w("* BAD missing command\r\n");
+                    out.flush();
+                    continue;
+                }
+                String tag = (String) t.get(0);
+                String cmd = ((String) t.get(1)).toUpperCase(Locale.ROOT);
+                List<Object> args = t.subList(2, t.size());
+                try {
+                    if (!command(tag, cmd, args)) { out.flush(); break; }
+                } catch (Bad e) {
+                    w(tag + " BAD " + e.getMessage() + "\r\n");
+                } catch (MailBoxException e) {
+                    w(tag + " NO " + e.getMessage() + "\r\n");
+                }
+                out.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            lg.log("imap timeout " + sk.getRemoteSocketAddress());
+            try { w("* BYE idle too long\r\n"); out.flush(); } catch (IOException ignore) {}
+        } catch (IOException e) {
+            lg.log("imap io: " + e.getMessage());
+        } catch (Exception e) {
+            lg.log("imap err: " + e.getMessage());
+        } finally {
+            try { s.close(); } catch (IOException ignore) {}
+        }
+    }
+
+//Run one command, false once the session is over
+    private boolean command(String tag, String cmd, List<Object> args) throws IOException, Bad, MailBoxException {
+//any state
+        switch (cmd) {
+            case "CAPABILITY":
+                w("* CAPABILITY " + capabilities() + "\r\n");
+                ok(tag, "CAPABILITY completed");
+                return true;
+            case "NOOP":
+                if (st == State.SELECTED) sync(true);
+                ok(tag, "NOOP completed");
+                return true;
+            case "LOGOUT":
+                w("* BYE logging out\r\n");
+                ok(tag, "LOGOUT completed");
+                return false;
+            default:
+                break;
+        }
+
+        if (st == State.NOTAUTH) {
+            switch (cmd) {
+                case "STARTTLS":
+                    if (tls == null || s instanceof SSLSocket) { w(tag + " NO STARTTLS not available\r\n"); return true; }
+                    ok(tag, "begin TLS negotiation");
+                    out.flush();
+                    s = Tls.upgrade(s, tls, "imap");
+//anything pipelined before the handshake is dropped with the old buffer
+                    in.reset(s.getInputStream());
+                    out = new BufferedOutputStream(s.getOutputStream(), CHUNK);
+                    return true;
+                case "LOGIN":
+                    login(tag, args);
+                    return true;
+                case "AUTHENTICATE":
+                    w(tag + " NO only LOGIN is supported\r\n");
+                    return true;
+                default:
+                    throw new Bad("log in first");
+            }
+        }
+
+//authenticated or selected
+        switch (cmd) {
+            case "SELECT":
+            case "EXAMINE":
+                select(tag, cmd, mailbox(args, 0), cmd.equals("EXAMINE"));
+                return true;
+            case "LIST":
+            case "LSUB":
+                list(tag, cmd, astring(args, 0), astring(args, 1));
+                return true;
+            case "STATUS":
+                status(tag, args);
+                return true;
+            case "CREATE":
+            case "DELETE":
+            case "RENAME":
+            case "SUBSCRIBE":
+            case "UNSUBSCRIBE":
+            case "APPEND":
+                w(tag + " NO only INBOX is available\r\n");
+                return true;
+            default:
+                break;
+        }
+
+        if (st != State.SELECTED) throw new Bad("no mailbox selected");
+        switch (cmd) {
+            case "CHECK":
+                sync(true);
+                ok(tag, "CHECK completed");
+                return true;
+            case "CLOSE":
+//expunge quietly, no untagged EXPUNGE replies after CLOSE. While a POP3 session has the
+//maildrop the deleted messages just stay flagged for a later expunge
+                if (!readOnly) expungeLocked();
+                leave();
+                ok(tag, "CLOSE completed");
+                return true;
+            case "EXPUNGE":
+                if (readOnly) { w(tag + " NO mailbox is read-only\r\n"); return true; }
+                if (!expungeLocked()) { w(tag + " NO [INUSE] maildrop is locked by a POP3 session\r\n"); return true; }
+                sync(true);
+                ok(tag, "EXPUNGE completed");
+                return true;
+            case "FETCH":
+                fetch(tag, args, false);
+                return true;
+            case "STORE":
+                store(tag, args, false);
+                return true;
+            case "SEARCH":
+                search(tag, args, false);
+                return true;
+            case "COPY":
+                w(tag + " NO only INBOX is available\r\n");
+                return true;
+            case "IDLE":
+                return idle(tag);
+            case "UID": {
+                if (args.isEmpty() || !(args.get(0) instanceof String)) throw new Bad("UID what");
+                String sub = ((String) args.get(0)).toUpperCase(Locale.ROOT);
+                List<Object> rest = args.subList(1, args.size());
+                if (sub.equals("FETCH")) fetch(tag, rest, true);
+                else if (sub.equals("STORE")) store(tag, rest, true);
+                else if (sub.equals("SEARCH")) search(tag, rest, true);
+                else if (sub.equals("COPY")) w(tag + " NO only INBOX is available\r\n");
+                else throw new Bad("unknown UID command");
+                return true;
+            }
+            default:
+                throw new Bad("unknown command");
+        }
+    }
+
+//LOGIN user password
+    private void login(String tag, List<Object> args) throws IOException, Bad {
+        String u = astring(args, 0);
+        String pw = astring(args, 1);
+        if (!accounts.validate(u, pw)) {
+            Metrics.inc("imap.login.failed");
+            w(tag + " NO [AUTHENTICATIONFAILED] auth failed\r\n");
+            return;
+        }
+        try {
+            store = MailStore.of(cfg.spool);
+            box = store.open(u);
+        } catch (MailBoxException e) {
+            lg.log("mailbox open failed for " + u + ": " + e.getMessage());
+            w(tag + " NO [UNAVAILABLE] mailbox error\r\n");
+            return;
+        }
+        user = u;
+        st = State.AUTH;
+        lg.log("imap login " + user + " from " + sk.getRemoteSocketAddress());
+        ok(tag, "[CAPABILITY " + capabilities() + "] LOGIN completed");
+    }
+
+//SELECT / EXAMINE INBOX, sends the counts and the uid values a client syncs against
+    private void select(String tag, String cmd, String name, boolean examine) throws IOException, MailBoxException {
+        leave();
+        if (!name.equalsIgnoreCase("INBOX")) { w(tag + " NO no such mailbox\r\n"); return; }
+//a replica's mailboxes only change through replication
+        readOnly = examine || cfg.readOnly;
+        int unseen = 0;
+        for (MailBox.Entry e : box.entries()) {
+            view.add(e);
+            shown.add(e.flags());
+            if (unseen == 0 && e.flags().indexOf('S') < 0) unseen = view.size();
+        }
+        st = State.SELECTED;
+        w("* FLAGS " + FLAG_LIST + "\r\n");
+        w("* OK [PERMANENTFLAGS " + (examine ? "()" : FLAG_LIST) + "] flags permitted\r\n");
+        w("* " + view.size() + " EXISTS\r\n");
+        w("* 0 RECENT\r\n");
+        if (unseen > 0) w("* OK [UNSEEN " + unseen + "] first unseen\r\n");
+        w("* OK [UIDVALIDITY " + box.uidValidity() + "] UIDs valid\r\n");
+        w("* OK [UIDNEXT " + box.uidNext() + "] predicted next UID\r\n");
+        ok(tag, (readOnly ? "[READ-ONLY] " : "[READ-WRITE] ") + cmd + " completed");
+    }
+
+//drop the selected mailbox
+    private void leave() {
+        view.clear();
+        shown.clear();
+        if (st == State.SELECTED) st = State.AUTH;
+    }
+
+//LIST / LSUB, there is one mailbox so this only decides whether INBOX matches
+    private void list(String tag, String cmd, String ref, String pat) throws IOException {
+        if (pat.isEmpty()) {
+            if (cmd.equals("LIST")) w("* LIST (\\Noselect) \"/\" \"\"\r\n");
+        } else {
+            StringBuilder re = new StringBuilder("(?i)");
+            for (char c : (ref + pat).toCharArray()) {
+                if (c == '*') re.append(".*");
+                else if (c == '%') re.append("[^/]*");
+                else re.append(java.util.regex.Pattern.quote(String.valueOf(c)));
+            }
+            if ("INBOX".matches(re.toString())) w("* " + cmd + " (\\HasNoChildren) \"/\" INBOX\r\n");
+        }
+        ok(tag, cmd + " completed");
+    }
+
+//STATUS INBOX (items), without selecting it
+    private void status(String tag, List<Object> args) throws IOException, Bad, MailBoxException {
+        String name = mailbox(args, 0);
+        if (args.size() < 2 || !(args.get(1) instanceof List)) throw new Bad("STATUS needs an item list");
+        if (!name.equalsIgnoreCase("INBOX")) { w(tag + " NO no such mailbox\r\n"); return; }
+        List<MailBox.Entry> all = box.entries();
+        StringBuilder sb = new StringBuilder("* STATUS INBOX (");
+        boolean first = true;
+        for (Object o : (List<?>) args.get(1)) {
+            String item = String.valueOf(o).toUpperCase(Locale.ROOT);
+            long v;
+            switch (item) {
+                case "MESSAGES": v = all.size(); break;
+                case "RECENT": v = 0; break;
+                case "UIDNEXT": v = box.uidNext(); break;
+                case "UIDVALIDITY": v = box.uidValidity(); break;
+                case "UNSEEN":
+                    v = 0;
+                    for (MailBox.Entry e : all) if (e.flags().indexOf('S') < 0) v++;
+                    break;
+                default: throw new Bad("unknown status item " + item);
+            }
+            if (!first) sb.append(' ');
+            sb.append(item).append(' ').append(v);
+            first = false;
+        }
+        w(sb.append(")\r\n").toString());
+        ok(tag, "STATUS completed");
+    }
+
+//IDLE (RFC 2177): new mail is pushed until the client sends DONE
+    private boolean idle(String tag) throws IOException, MailBoxException {
+        synchronized (this) {
+            w("+ idling\r\n");
+            sync(true);
+            out.flush();
+            idling = true;
+        }
+        Metrics.inc("imap.idle");
+//deliveries and expunges in this process (another session's EXPUNGE, a POP3 QUIT) wake us
+//right away, otherwise poll the directory
+        MailBoxListener l = new MailBoxListener() {
+            @Override
+            public void delivered(MailBox b, Path f) {
+                if (b == box) push.execute(IMAPHandler.this::pushUpdates);
+            }
+
+            @Override
+            public void removed(MailBox b, Collection<String> names) {
+                if (b == box) push.execute(IMAPHandler.this::pushUpdates);
+            }
+        };
+        store.addListener(l);
+        ScheduledFuture<?> poll = store.isLive() ? null
+                : push.scheduleWithFixedDelay(this::pushUpdates, 15, 15, TimeUnit.SECONDS);
+        String done;
+        try {
+            done = in.readLine();
+        } finally {
+            store.removeListener(l);
+            if (poll != null) poll.cancel(false);
+            synchronized (this) { idling = false; }
+        }
+        if (done == null) return false;
+        if (done.trim().equalsIgnoreCase("DONE")) ok(tag, "IDLE terminated");
+        else w(tag + " BAD expected DONE\r\n");
+        return true;
+    }
+
+//runs on the push thread
+    private synchronized void pushUpdates() {
+        if (!idling) return;
+        try {
+            sync(true);
+            out.flush();
+        } catch (IOException | MailBoxException e) {
+            lg.log("imap idle push: " + e.getMessage());
+        }
+    }
+
+//Tell the client what changed since it last looked: expunged messages, flag changes
+//made by other sessions, and new arrivals
+    private void sync(boolean expunge) throws IOException, MailBoxException {
+        List<MailBox.Entry> now = box.entries();
+        Map<Long, MailBox.Entry> byUid = new HashMap<>();
+        for (MailBox.Entry e : now) byUid.put(e.uid(), e);
+        for (int i = 0; i < view.size(); ) {
+            MailBox.Entry cur = byUid.get(view.get(i).uid());
+            if (cur == null) {
+                if (expunge) {
+                    w("* " + (i + 1) + " EXPUNGE\r\n");
+                    view.remove(i);
+                    shown.remove(i);
+                    continue;
+                }
+            } else {
+                view.set(i, cur);
+                if (!cur.flags().equals(shown.get(i))) {
+                    shown.set(i, cur.flags());
+                    w("* " + (i + 1) + " FETCH (FLAGS " + imapFlags(cur.flags()) + ")\r\n");
+                }
+            }
+            i++;
+        }
+        long last = view.isEmpty() ? 0 : view.get(view.size() - 1).uid();
+        int before = view.size();
+        for (MailBox.Entry e : now) {
+            if (e.uid() > last) { view.add(e); shown.add(e.flags()); }
+        }
+        if (view.size() != before) w("* " + view.size() + " EXISTS\r\n");
+    }
+
+//messages flagged \Deleted in this view
+    private List<MailBox.Entry> deleted() {
+        List<MailBox.Entry> out = new ArrayList<>();
+        for (MailBox.Entry e : view) if (e.flags().indexOf('T') >= 0) out.add(e);
+        return out;
+    }
+
+//one FETCH data item, parsed before anything is written so a bad item sends nothing
+    private static final class Item {
+        String kind;// UID FLAGS INTERNALDATE RFC822.SIZE ENVELOPE BODYSTRUCTURE SECTION
+        String label;// name echoed back in the response
+        String part = "";// "" whole, HEADER, TEXT, FIELDS
+        Set<String> fields;// HEADER.FIELDS names (upper case)
+        boolean not;// HEADER.FIELDS.NOT
+        boolean peek = true;// false sets \Seen
+        long off = -1, len;// <off.len> partial
+    }
+
+//FETCH / UID FETCH
+    private void fetch(String tag, List<Object> args, boolean byUid) throws IOException, Bad, MailBoxException {
+        if (args.size() < 2) throw new Bad("FETCH needs a sequence set and items");
+        List<Integer> msgs = pick(atom(args, 0), byUid);
+        List<Item> items = new ArrayList<>();
+        Object spec = args.get(1);
+        List<Object> names = spec instanceof List ? castList(spec) : new ArrayList<>(args.subList(1, args.size()));
+        for (Object o : names) {
+            if (!(o instanceof String)) throw new Bad("bad fetch item");
+            String n = ((String) o).toUpperCase(Locale.ROOT);
+            if (n.equals("ALL") || n.equals("FAST") || n.equals("FULL")) {
+                items.add(item("FLAGS"));
+                items.add(item("INTERNALDATE"));
+                items.add(item("RFC822.SIZE"));
+                if (!n.equals("FAST")) items.add(item("ENVELOPE"));
+                if (n.equals("FULL")) items.add(item("BODY"));
+            } else {
+                items.add(item((String) o));
+            }
+        }
+        boolean hasUid = false, hasFlags = false, marks = false;
+        for (Item it : items) {
+            hasUid |= it.kind.equals("UID");
+            hasFlags |= it.kind.equals("FLAGS");
+            marks |= !it.peek;
+        }
+        if (byUid && !hasUid) items.add(0, item("UID"));
+
+        for (int n : msgs) {
+            MailBox.Entry e = view.get(n - 1);
+            boolean seen = false;
+//reading a body without PEEK sets \Seen, the new flags go out with the data
+            if (marks && !readOnly && e.flags().indexOf('S') < 0) {
+                box.setFlags(e, e.flags() + "S");
+                shown.set(n - 1, e.flags());
+                seen = true;
+            }
+            w("* " + n + " FETCH (");
+            boolean first = true;
+            for (Item it : items) {
+                if (!first) w(" ");
+                first = false;
+                emit(e, it);
+            }
+            if (seen && !hasFlags) w(" FLAGS " + imapFlags(e.flags()));
+            w(")\r\n");
+        }
+        ok(tag, (byUid ? "UID " : "") + "FETCH completed");
+    }
+
+//parse one fetch item name like BODY.PEEK[HEADER.FIELDS (FROM TO)]<0.512>
+    private static Item item(String raw) throws Bad {
+        Item it = new Item();
+        String up = raw.toUpperCase(Locale.ROOT);
+        int br = up.indexOf('[');
+        if (br < 0) {
+            switch (up) {
+                case "UID": case "FLAGS": case "INTERNALDATE": case "RFC822.SIZE":
+                case "ENVELOPE": case "BODYSTRUCTURE":
+                    it.kind = up;
+                    break;
+                case "BODY":
+                    it.kind = "BODYSTRUCTURE";
+                    break;
+                case "RFC822":
+                    it.kind = "SECTION"; it.peek = false;
+                    break;
+                case "RFC822.HEADER":
+                    it.kind = "SECTION"; it.part = "HEADER";
+                    break;
+                case "RFC822.TEXT":
+                    it.kind = "SECTION"; it.part = "TEXT"; it.peek = false;
+                    break;
+                default:
+                    throw new Bad("unknown fetch item " + raw);
+            }
+            it.label = up;
+            return it;
+        }
+        String name = up.substring(0, br);
+        int close = up.indexOf(']', br);
+        if (close < 0 || !(name.equals("BODY") || name.equals("BODY.PEEK"))) throw new Bad("bad fetch item " + raw);
+        it.kind = "SECTION";
+        it.peek = name.equals("BODY.PEEK");
+        String sec = up.substring(br + 1, close).trim();
+        if (sec.isEmpty()) {
+            it.part = "";
+        } else if (sec.equals("HEADER") || sec.equals("TEXT")) {
+            it.part = sec;
+        } else if (sec.equals("1")) {
+//a single part message, part 1 is the body
+            it.part = "TEXT";
+        } else if (sec.startsWith("HEADER.FIELDS")) {
+            it.part = "FIELDS";
+            it.not = sec.startsWith("HEADER.FIELDS.NOT");
+            int lp = sec.indexOf('('), rp = sec.lastIndexOf(')');
+            if (lp < 0 || rp < lp) throw new Bad("HEADER.FIELDS needs a list");
+            it.fields = new LinkedHashSet<>();
+            for (String f : sec.substring(lp + 1, rp).trim().split("\\s+")) {
+                if (!f.isEmpty()) it.fields.add(f.replace("\"", ""));
+            }
+            sec = (it.not ? "HEADER.FIELDS.NOT (" : "HEADER.FIELDS (") + String.join(" ", it.fields) + ")";
+        } else {
+            throw new Bad("unsupported section " + sec);
+        }
+        it.label = "BODY[" + sec + "]";
+        String tail = up.substring(close + 1);
+        if (!tail.isEmpty()) {
+            if (!tail.startsWith("<") || !tail.endsWith(">")) throw new Bad("bad partial " + tail);
+            String[] p = tail.substring(1, tail.length() - 1).split("\\.");
+            try {
+                it.off = Long.parseLong(p[0]);
+                it.len = p.length > 1 ? Long.parseLong(p[1]) : Long.MAX_VALUE;
+            } catch (NumberFormatException ex) {
+                throw new Bad("bad partial " + tail);
+            }
+            if (it.off < 0 || it.len <= 0) throw new Bad("bad partial " + tail);
+            it.label += "<" + it.off + ">";
+        }
+        return it;
+    }
+
+//write one data item for a message
+    private void emit(MailBox.Entry e, Item it) throws IOException, MailBoxException {
+        switch (it.kind) {
+            case "UID": w("UID " + e.uid()); return;
+            case "FLAGS": w("FLAGS " + imapFlags(e.flags())); return;
+            case "INTERNALDATE": w("INTERNALDATE \"" + INTERNAL.format(Instant.ofEpochMilli(e.created())) + "\""); return;
+            case "RFC822.SIZE": w("RFC822.SIZE " + e.size()); return;
+            case "ENVELOPE": w("ENVELOPE " + envelope(headers(e))); return;
+            case "BODYSTRUCTURE": w(it.label + " " + structure(e)); return;
+            default: break;
+        }
+        w(it.label + " ");
+        if (it.part.equals("FIELDS")) {
+//built from the parsed header, partial applies to the built text
+            StringBuilder sb = new StringBuilder();
+            Headers h = headers(e);
+            for (int i = 0; i < h.size(); i++) {
+                if (it.fields.contains(h.name(i).toUpperCase(Locale.ROOT)) != it.not) sb.append(h.raw(i));
+            }
+            sb.append("\r\n");
+            byte[] b = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+            int from = (int) Math.min(b.length, Math.max(0, it.off));
+            int n = (int) Math.min(b.length - from, it.off < 0 ? b.length : it.len);
+            w("{" + n + "}\r\n");
+            out.write(b, from, n);
+            return;
+        }
+//everything else is a byte range of the file, only that range is read
+        long start = 0, end = e.size();
+        if (it.part.equals("HEADER")) end = box.headerLength(e);
+        else if (it.part.equals("TEXT")) start = box.headerLength(e);
+        if (it.off >= 0) {
+            start = Math.min(end, start + it.off);
+            end = Math.min(end, start + Math.min(it.len, end - start));
+        }
+        long n = end - start;
+        w("{" + n + "}\r\n");
+        for (long at = start; at < end; ) {
+            byte[] b = box.read(e, at, (int) Math.min(CHUNK, end - at));
+            if (b.length == 0) throw new MailBoxException("message shrank: " + e.name());
+            out.write(b);
+            at += b.length;
+        }
+    }
+
+//header index of a message, only the header block is read and values are decoded on lookup
+    private Headers headers(MailBox.Entry e) throws MailBoxException {
+        long h = Math.min(box.headerLength(e), MAX_HEADER);
+        return Headers.parse(box.read(e, 0, (int) h));
+    }
+
+//ENVELOPE: date subject from sender reply-to to cc bcc in-reply-to message-id
+    private static String envelope(Headers h) {
+        String from = addresses(h.get("From"));
+        String sender = addresses(h.get("Sender"));
+        String reply = addresses(h.get("Reply-To"));
+        return "(" + nstring(h.get("Date")) + " " + nstring(h.get("Subject")) + " " + from + " "
+                + (sender.equals("NIL") ? from : sender) + " " + (reply.equals("NIL") ? from : reply) + " "
+                + addresses(h.get("To")) + " " + addresses(h.get("Cc")) + " " + addresses(h.get("Bcc")) + " "
+                + nstring(h.get("In-Reply-To")) + " " + nstring(h.get("Message-ID")) + ")";
+    }
+
+//address list for ENVELOPE, ((name NIL mailbox host) ...) or NIL
+    private static String addresses(String v) {
+        if (v == null || v.isBlank()) return "NIL";
+        List<String> parts = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean q = false;
+        int angle = 0;
+        for (char c : v.toCharArray()) {
+            if (c == '"') q = !q;
+            else if (!q && c == '<') angle++;
+            else if (!q && c == '>') angle--;
+            if (c == ',' && !q && angle == 0) { parts.add(cur.toString()); cur.setLength(0); continue; }
+            cur.append(c);
+        }
+        parts.add(cur.toString());
+        StringBuilder sb = new StringBuilder("(");
+        for (String p : parts) {
+            p = p.trim();
+            if (p.isEmpty()) continue;
+            String name = null, addr = p;
+            int lt = p.indexOf('<'), gt = p.lastIndexOf('>');
+            if (lt >= 0 && gt > lt) {
+                name = p.substring(0, lt).trim().replace("\"", "");
+                addr = p.substring(lt + 1, gt).trim();
+                if (name.isEmpty()) name = null;
+            }
+            int at = addr.lastIndexOf('@');
+            String mbox = at < 0 ? addr : addr.substring(0, at);
+            String host = at < 0 ? null : addr.substring(at + 1);
+            sb.append('(').append(nstring(name)).append(" NIL ").append(nstring(mbox)).append(' ')
+              .append(nstring(host)).append(')');
+        }
+        return sb.length() == 1 ? "NIL" : sb.append(')').toString();
+    }
+
+//BODYSTRUCTURE for a message stored as one part. A multipart message is shown as
+//text/plain too, clients then fetch the whole body and parse the parts themselves
+    private String structure(MailBox.Entry e) throws MailBoxException {
+        Headers h = headers(e);
+        String ct = h.get("Content-Type");
+        String type = "TEXT", sub = "PLAIN", charset = "US-ASCII";
+        if (ct != null) {
+            String[] p = ct.split(";");
+            String[] ts = p[0].trim().split("/");
+            if (ts.length == 2 && !ts[0].equalsIgnoreCase("multipart")) {
+                type = ts[0].trim().toUpperCase(Locale.ROOT);
+                sub = ts[1].trim().toUpperCase(Locale.ROOT);
+            }
+            for (int i = 1; i < p.length; i++) {
+                String kv = p[i].trim();
+                if (kv.toLowerCase(Locale.ROOT).startsWith("charset=")) charset = kv.substring(8).replace("\"", "").trim();
+            }
+        }
+        String enc = h.get("Content-Transfer-Encoding");
+        long start = box.headerLength(e);
+        long size = e.size() - start;
+        StringBuilder sb = new StringBuilder("(");
+        sb.append(quote(type)).append(' ').append(quote(sub)).append(" (\"CHARSET\" ").append(quote(charset)).append(')')
+          .append(" NIL NIL ").append(quote(enc == null ? "7BIT" : enc.toUpperCase(Locale.ROOT))).append(' ').append(size);
+        if (type.equals("TEXT")) {
+//text parts also carry their line count
+            long lines = 0;
+            for (long at = start; at < e.size(); ) {
+                byte[] b = box.read(e, at, (int) Math.min(CHUNK, e.size() - at));
+                if (b.length == 0) break;
+                for (byte c : b) if (c == '\n') lines++;
+                at += b.length;
+            }
+            sb.append(' ').append(lines);
+        }
+        return sb.append(')').toString();
+    }
+
+//STORE / UID STORE set [+|-]FLAGS[.SILENT] flags
+    private void store(String tag, List<Object> args, boolean byUid) throws IOException, Bad, MailBoxException {
+        if (args.size() < 3) throw new Bad("STORE needs a set, an action and flags");
+        if (readOnly) { w(tag + " NO mailbox is read-only\r\n"); return; }
+        List<Integer> msgs = pick(atom(args, 0), byUid);
+        String op = atom(args, 1).toUpperCase(Locale.ROOT);
+        boolean silent = op.endsWith(".SILENT");
+        if (silent) op = op.substring(0, op.length() - 7);
+        if (!op.equals("FLAGS") && !op.equals("+FLAGS") && !op.equals("-FLAGS")) throw new Bad("bad STORE action");
+        List<Object> fl = args.get(2) instanceof List ? castList(args.get(2)) : args.subList(2, args.size());
+        String given = letters(fl);
+        for (int n : msgs) {
+            MailBox.Entry e = view.get(n - 1);
+            String now = e.flags();
+            String next;
+            if (op.equals("FLAGS")) next = given;
+            else if (op.equals("+FLAGS")) next = union(now, given);
+            else next = now.replaceAll("[" + (given.isEmpty() ? " " : given) + "]", "");
+            box.setFlags(e, next);
+            shown.set(n - 1, e.flags());
+            if (!silent) {
+                w("* " + n + " FETCH (" + (byUid ? "UID " + e.uid() + " " : "") + "FLAGS " + imapFlags(e.flags()) + ")\r\n");
+            }
+        }
+        ok(tag, (byUid ? "UID " : "") + "STORE completed");
+    }
+
+//SEARCH / UID SEARCH, keys are ANDed together
+    private void search(String tag, List<Object> args, boolean byUid) throws IOException, Bad, MailBoxException {
+        List<Object> keys = args;
+        if (!keys.isEmpty() && "CHARSET".equalsIgnoreCase(String.valueOf(keys.get(0)))) {
+            String cs = atom(keys, 1);
+            if (!cs.equalsIgnoreCase("UTF-8") && !cs.equalsIgnoreCase("US-ASCII")) {
+                w(tag + " NO [BADCHARSET (UTF-8 US-ASCII)] charset not supported\r\n");
+                return;
+            }
+            keys = keys.subList(2, keys.size());
+        }
+        if (keys.isEmpty()) throw new Bad("SEARCH needs a key");
+        StringBuilder sb = new StringBuilder("* SEARCH");
+        for (int i = 0; i < view.size(); i++) {
+            int[] at = {0};
+            boolean all = true;
+            while (at[0] < keys.size()) all &= match(keys, at, view.get(i), i + 1);
+            if (all) sb.append(' ').append(byUid ? view.get(i).uid() : i + 1);
+        }
+        w(sb.append("\r\n").toString());
+        ok(tag, (byUid ? "UID " : "") + "SEARCH completed");
+    }
+
+//expunge with the maildrop lock held, so a POP3 session's message numbers never lose
+//their messages under it. false when a POP3 session has the lock
+    private boolean expungeLocked() throws MailBoxException {
+        if (!box.lock(this)) return false;
+        try {
+            box.expunge(deleted());
+        } finally {
+            box.unlock(this);
+        }
+        return true;
+    }
+
+//evaluate the search key at k[at] for one message and step past it
+    private boolean match(List<Object> k, int[] at, MailBox.Entry e, int seq) throws Bad, MailBoxException {
+        if (at[0] >= k.size()) throw new Bad("search key missing");
+        Object o = k.get(at[0]++);
+        if (o instanceof List) {
+            List<Object> sub = castList(o);
+            int[] i = {0};
+            boolean all = true;
+            while (i[0] < sub.size()) all &= match(sub, i, e, seq);
+            return all;
+        }
+        String key = ((String) o).toUpperCase(Locale.ROOT);
+        String f = e.flags();
+        switch (key) {
+            case "ALL": return true;
+            case "ANSWERED": return f.indexOf('R') >= 0;
+            case "UNANSWERED": return f.indexOf('R') < 0;
+            case "DELETED": return f.indexOf('T') >= 0;
+            case "UNDELETED": return f.indexOf('T') < 0;
+            case "DRAFT": return f.indexOf('D') >= 0;
+            case "UNDRAFT": return f.indexOf('D') < 0;
+            case "FLAGGED": return f.indexOf('F') >= 0;
+            case "UNFLAGGED": return f.indexOf('F') < 0;
+            case "SEEN": case "OLD": return f.indexOf('S') >= 0;
+            case "UNSEEN": case "NEW": return f.indexOf('S') < 0;
+            case "RECENT": return false;
+            case "KEYWORD": atom(k, at[0]++); return false;
+            case "UNKEYWORD": atom(k, at[0]++); return true;
+            case "LARGER": return e.size() > number(atom(k, at[0]++));
+            case "SMALLER": return e.size() < number(atom(k, at[0]++));
+            case "UID": return inSet(atom(k, at[0]++), e.uid(), lastUid());
+            case "NOT": return !match(k, at, e, seq);
+            case "OR": {
+                boolean a = match(k, at, e, seq);
+                boolean b = match(k, at, e, seq);
+                return a || b;
+            }
+            case "BEFORE": case "SENTBEFORE": return day(e).isBefore(date(atom(k, at[0]++)));
+            case "ON": case "SENTON": return day(e).equals(date(atom(k, at[0]++)));
+            case "SINCE": case "SENTSINCE": return !day(e).isBefore(date(atom(k, at[0]++)));
+//search strings come in as UTF-8 and messages are read as raw bytes, so both sides are
+//compared as bytes: the needle as its UTF-8 bytes, header values with encoded words undone
+            case "FROM": case "TO": case "CC": case "BCC": case "SUBJECT":
+                return contains(words(headers(e).get(key)), bytes(astring(k, at[0]++)));
+            case "HEADER": {
+                String name = astring(k, at[0]++);
+                String v = bytes(astring(k, at[0]++));
+                return contains(words(headers(e).get(name)), v);
+            }
+            case "BODY": case "TEXT": {
+//whole message scan, the one key that reads everything
+                String v = bytes(astring(k, at[0]++));
+                long from = key.equals("BODY") ? box.headerLength(e) : 0;
+                String text = new String(box.read(e, from, (int) Math.min(Integer.MAX_VALUE, e.size() - from)),
+                        StandardCharsets.ISO_8859_1);
+                return contains(text, v);
+            }
+            default:
+                if (!key.isEmpty() && (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*')) {
+                    return inSet(key, seq, view.size());
+                }
+                throw new Bad("unknown search key " + key);
+        }
+    }
+
+    private long lastUid() { return view.isEmpty() ? 0 : view.get(view.size() - 1).uid(); }
+
+    private static LocalDate day(MailBox.Entry e) {
+        return Instant.ofEpochMilli(e.created()).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    private static LocalDate date(String s) throws Bad {
+        try { return LocalDate.parse(s.replace("\"", ""), SEARCH_DATE); }
+        catch (RuntimeException ex) { throw new Bad("bad date " + s); }
+    }
+
+    private static long number(String s) throws Bad {
+        try { return Long.parseLong(s); } catch (NumberFormatException ex) { throw new Bad("bad number " + s); }
+    }
+
+//substring test ignoring ASCII case only, both sides hold bytes as latin-1 chars and
+//folding 8-bit ones would mix up UTF-8 sequences
+    private static boolean contains(String hay, String needle) {
+        if (hay == null) return false;
+        int n = needle.length();
+        for (int i = 0; i + n <= hay.length(); i++) {
+            int k = 0;
+            while (k < n && lower(hay.charAt(i + k)) == lower(needle.charAt(k))) k++;
+            if (k == n) return true;
+        }
+        return false;
+    }
+
+    private static char lower(char c) { return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c; }
+
+//a string as its UTF-8 bytes, one latin-1 char per byte like the message text
+    private static String bytes(String s) {
+        return new String(s.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    }
+
+//header value with RFC 2047 encoded words decoded and turned back into UTF-8 bytes, so
+//"=?ISO-8859-1?Q?caf=E9?=" and a raw 8-bit "caf\u00e9" both match a search for "caf\u00e9".
+//Words we can't decode stay as they are
+    private static String words(String v) {
+        if (v == null || v.indexOf("=?") < 0) return v;
+        Matcher m = WORD.matcher(v);
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+        boolean word = false;
+        while (m.find()) {
+            String gap = v.substring(last, m.start());
+//blanks between two encoded words are not part of the text
+            if (!(word && gap.isBlank())) sb.append(gap);
+            try {
+                String cs = m.group(1);
+                int star = cs.indexOf('*');
+                if (star >= 0) cs = cs.substring(0, star);
+                String t = m.group(3);
+                byte[] b = m.group(2).equalsIgnoreCase("B") ? Base64.getMimeDecoder().decode(t) : qDecode(t);
+                sb.append(bytes(new String(b, Charset.forName(cs))));
+            } catch (IllegalArgumentException bad) {
+                sb.append(m.group());
+            }
+            last = m.end();
+            word = true;
+        }
+        return sb.append(v, last, v.length()).toString();
+    }
+
+//the Q encoding of an encoded word: _ is a space, =XX a byte
+    private static byte[] qDecode(String t) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(t.length());
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (c == '_') b.write(' ');
+            else if (c == '=' && i + 2 < t.length()) { b.write(Integer.parseInt(t.substring(i + 1, i + 3), 16)); i += 2; }
+            else b.write(c);
+        }
+        return b.toByteArray();
+    }
+
+//message numbers (1 based, ascending) picked by a sequence set, or a uid set for UID commands
+    private List<Integer> pick(String set, boolean byUid) throws Bad {
+        List<Integer> out = new ArrayList<>();
+        long star = byUid ? lastUid() : view.size();
+        List<long[]> ranges = ranges(set, star);
+        for (int i = 0; i < view.size(); i++) {
+            long v = byUid ? view.get(i).uid() : i + 1;
+            for (long[] r : ranges) {
+                if (v >= r[0] && v <= r[1]) { out.add(i + 1); break; }
+            }
+        }
+        return out;
+    }
+
+    private static boolean inSet(String set, long v, long star) throws Bad {
+        for (long[] r : ranges(set, star)) if (v >= r[0] && v <= r[1]) return true;
+        return false;
+    }
+
+//"1:3,7,9:*" into [lo, hi] pairs, * is the largest number in use
+    private static List<long[]> ranges(String set, long star) throws Bad {
+        List<long[]> out = new ArrayList<>();
+        for (String p : set.split(",")) {
+            String[] ab = p.split(":", -1);
+            if (ab.length > 2) throw new Bad("bad sequence set " + set);
+            long a = seqNum(ab[0], star);
+            long b = ab.length == 2 ? seqNum(ab[1], star) : a;
+            out.add(new long[] {Math.min(a, b), Math.max(a, b)});
+        }
+        return out;
+    }
+
+    private static long seqNum(String s, long star) throws Bad {
+        if (s.equals("*")) return star;
+        try {
+            long n = Long.parseLong(s);
+            if (n <= 0) throw new Bad("bad sequence number " + s);
+            return n;
+        } catch (NumberFormatException ex) {
+            throw new Bad("bad sequence number " + s);
+        }
+    }
+
+//maildir letters to an IMAP flag list
+    private static String imapFlags(String letters) {
+        StringBuilder sb = new StringBuilder("(");
+        for (String[] f : FLAGS) {
+            if (letters.contains(f[0])) {
+                if (sb.length() > 1) sb.append(' ');
+                sb.append(f[1]);
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+//IMAP flags to maildir letters, keywords are not kept
+    private static String letters(List<Object> flags) throws Bad {
+        StringBuilder sb = new StringBuilder();
+        for (Object o : flags) {
+            if (!(o instanceof String)) throw new Bad("bad flag");
+            for (String[] f : FLAGS) if (f[1].equalsIgnoreCase((String) o)) sb.append(f[0]);
+        }
+        return sb.toString();
+    }
+
+    private static String union(String a, String b) {
+        StringBuilder sb = new StringBuilder(a);
+        for (char c : b.toCharArray()) if (sb.indexOf(String.valueOf(c)) < 0) sb.append(c);
+        return sb.toString();
+    }
+
+    private String capabilities() {
+        return "IMAP4rev1 LITERAL+ IDLE" + (tls != null && !(s instanceof SSLSocket) && st == State.NOTAUTH ? " STARTTLS" : "");
+    }
+
+//Read one command line, literals ({n} or {n+}) are read in and spliced back as quoted strings
+    private String readCommand() throws IOException {
+        String line = in.readLine();
+        if (line == null) return null;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int lb = line.lastIndexOf('{');
+            if (!line.endsWith("}") || lb < 0) return sb.append(line).toString();
+            String num = line.substring(lb + 1, line.length() - 1);
+            boolean plus = num.endsWith("+");
+            if (plus) num = num.substring(0, num.length() - 1);
+            long n;
+            try { n = Long.parseLong(num); } catch (NumberFormatException e) { return sb.append(line).toString(); }
+            if (n > MAX_LITERAL || n < 0) {
+//refuse before the client sends it, a non-synchronizing one is already on its way
+                if (plus) in.copy(null, n);
+                String all = sb.append(line).toString();
+                int sp = all.indexOf(' ');
+                w((sp > 0 ? all.substring(0, sp) : "*") + " BAD literal too large\r\n");
+                out.flush();
+                return "";
+            }
+            if (!plus) { w("+ ready\r\n"); out.flush(); }
+            ByteArrayOutputStream lit = new ByteArrayOutputStream((int) n);
+            in.copy(lit, n);
+            sb.append(line, 0, lb).append(quote(lit.toString(StandardCharsets.UTF_8)));
+            line = in.readLine();
+            if (line == null) return null;
+        }
+    }
+
+//Split a command into atoms, strings and (nested) lists. An atom keeps everything
+//between [ and ] so BODY[HEADER.FIELDS (A B)]<0.10> stays one token
+    static List<Object> parse(String line) throws Bad {
+        int[] at = {0};
+        List<Object> out = parseList(line, at, false);
+        return out;
+    }
+
+    private static List<Object> parseList(String s, int[] at, boolean nested) throws Bad {
+        List<Object> out = new ArrayList<>();
+        while (true) {
+            while (at[0] < s.length() && s.charAt(at[0]) == ' ') at[0]++;
+            if (at[0] >= s.length()) {
+                if (nested) throw new Bad("unbalanced parenthesis");
+                return out;
+            }
+            char c = s.charAt(at[0]);
+            if (c == ')') {
+                if (!nested) throw new Bad("unbalanced parenthesis");
+                at[0]++;
+                return out;
+            }
+            if (c == '(') {
+                at[0]++;
+                out.add(parseList(s, at, true));
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                at[0]++;
+                while (true) {
+                    if (at[0] >= s.length()) throw new Bad("unterminated string");
+                    char d = s.charAt(at[0]++);
+                    if (d == '"') break;
+                    if (d == '\\' && at[0] < s.length()) d = s.charAt(at[0]++);
+                    sb.append(d);
+                }
+                out.add(sb.toString());
+            } else {
+                int start = at[0];
+                int depth = 0;
+                while (at[0] < s.length()) {
+                    char d = s.charAt(at[0]);
+                    if (d == '[') depth++;
+                    else if (d == ']') depth--;
+                    else if (depth == 0 && (d == ' ' || d == '(' || d == ')')) break;
+                    at[0]++;
+                }
+                out.add(s.substring(start, at[0]));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> castList(Object o) { return (List<Object>) o; }
+
+    private static String atom(List<Object> args, int i) throws Bad {
+        if (i >= args.size() || !(args.get(i) instanceof String)) throw new Bad("missing argument");
+        return (String) args.get(i);
+    }
+
+    private static String astring(List<Object> args, int i) throws Bad { return atom(args, i); }
+
+    private static String mailbox(List<Object> args, int i) throws Bad { return astring(args, i); }
+
+    private static String quote(String v) {
+        return "\"" + v.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+//NIL or a string, a literal when it holds characters a quoted string can't
+    private static String nstring(String v) {
+        if (v == null) return "NIL";
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            if (c == '\r' || c == '\n' || c > 0x7e) return "{" + v.length() + "}\r\n" + v;
+        }
+        return quote(v);
+    }
+
+    private void ok(String tag, String msg) throws IOException {
+        w(tag + " OK " + msg + "\r\n");
+    }
+
+//protocol text and header bytes both go out as latin-1, which passes raw bytes through unchanged
+    private void w(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,67 @@
+package imap;
+
+import merrimackutil.net.Log;
+import util.Acceptors;
+import util.Admission;
+import util.Config;
+import util.ConfigLoader;
+import util.LoggerSetup;
+import util.Metrics;
+import util.Tls;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.net.ssl.SSLContext;
+
+//IMAP4rev1 server over the same maildir spool POP3 reads, one handler per client
+//on the admission pool like the other services
+public class IMAPServer {
+
+    private final Config.ImapConfig cfg;// config info from the server
+    private final Config.AccountsDB users;// database of user accounts, shared with POP3
+    private final Log lg;// writes events to log files
+    private final Admission adm;// bounded thread pool, refuses floods early
+    private final SSLContext tls;// shared TLS context for STARTTLS, null when no keystore is configured
+//one thread that pushes new mail to IDLE clients, so a delivery never waits on a slow reader
+    private final ScheduledExecutorService push = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "imap-idle");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IMAPServer(Config.ImapConfig cfg, Config.AccountsDB users) throws IOException {
+        this.cfg = cfg;
+        this.users = users;
+        this.lg = LoggerSetup.make(cfg.log, "imapd");
+        this.lg.log("boot " + cfg);
+        this.adm = new Admission(cfg.limits, "imap");
+        Metrics.report(lg, 60);
+        this.tls = (cfg.tls != null) ? Tls.context(cfg.tls) : null;
+    }
+
+    public void start() {// accept clients until the socket fails
+        Acceptors.listen(cfg.port, cfg.limits.acceptors, "imap", adm, "* BYE server busy, try again later",
+                sock -> new IMAPHandler(sock, cfg, users, lg, tls, push), lg, "host=" + cfg.serverName + " | spool=" + cfg.spool);
+    }
+
+    public static IMAPServer fromFile(String cfgPath) throws Exception { return fromFile(cfgPath, false); }
+
+    public static IMAPServer fromFile(String cfgPath, boolean readOnly) throws Exception {// loads config + accounts and builds the server, readOnly forces read-only whatever the file says
+        Config.ImapConfig cfg = ConfigLoader.loadImap(ConfigLoader.locate(cfgPath, "imapd.json"));
+        if (readOnly) cfg.readOnly = true;
+        File acctFile = ConfigLoader.locate(cfg.accounts, "accounts.json");
+        Config.AccountsDB db = ConfigLoader.loadAccounts(acctFile);
+        return new IMAPServer(cfg, db);
+    }
+
+    public static void main(String[] args) {
+        try {
+            fromFile(args.length > 0 ? args[0] : null).start();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
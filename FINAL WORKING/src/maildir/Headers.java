@@ -0,0 +1,157 @@
+package maildir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Header block of a message as offsets into its raw bytes. One pass finds where each
+//field starts, where its name ends and where its last folded line ends; nothing is decoded
+//until someone asks for a value, and a lookup compares names byte by byte ignoring case.
+//Bytes are taken as latin-1 so 8-bit headers come back unchanged.
+public final class Headers {
+    private final byte[] buf;
+//per field: start, colon (or -1 for a broken line), end after its line ending
+    private int[] start = new int[16];
+    private int[] colon = new int[16];
+    private int[] end = new int[16];
+    private int count = 0;
+//bytes of the header including the blank line, or where parsing stopped
+    private final int length;
+
+    private Headers(byte[] buf, int len) {
+        this.buf = buf;
+        int at = 0;
+        int field = -1;
+        while (at < len) {
+            int eol = at;
+            while (eol < len && buf[eol] != '\n') eol++;
+            int next = eol < len ? eol + 1 : len;
+            int text = eol > at && buf[eol - 1] == '\r' ? eol - 1 : eol;
+//empty line ends the header
+            if (text == at) { at = next; break; }
+            if ((buf[at] == ' ' || buf[at] == '\t') && field >= 0) {
+//folded continuation of the field before
+                end[field] = next;
+            } else {
+                if (count == start.length) grow();
+                field = count++;
+                start[field] = at;
+                int c = at;
+                while (c < text && buf[c] != ':') c++;
+                colon[field] = c < text ? c : -1;
+                end[field] = next;
+            }
+            at = next;
+        }
+        this.length = at;
+    }
+
+//index a header block held in memory, the array is kept, not copied
+    public static Headers parse(byte[] b, int len) { return new Headers(b, len); }
+
+    public static Headers parse(byte[] b) { return new Headers(b, b.length); }
+
+//read just the header block of a file, at most max bytes of it
+    public static Headers read(Path f, int max) throws IOException {
+        try (InputStream in = Files.newInputStream(f)) {
+            byte[] b = new byte[Math.min(max, 8192)];
+            int n = 0;
+            int run = 0;
+            while (n < max) {
+                if (n == b.length) b = Arrays.copyOf(b, Math.min(max, b.length * 2));
+                int r = in.read(b, n, b.length - n);
+                if (r <= 0) break;
+//stop reading once two line ends in a row (CRs between them don't count) have gone by
+                int stop = -1;
+                for (int i = n; i < n + r; i++) {
+                    if (b[i] == '\n') { if (++run == 2) { stop = i + 1; break; } }
+                    else if (b[i] != '\r') run = 0;
+                }
+                n += r;
+                if (stop >= 0) { n = stop; break; }
+            }
+            return new Headers(b, n);
+        }
+    }
+
+//number of fields
+    public int size() { return count; }
+
+//header length in bytes, blank line included
+    public int length() { return length; }
+
+//name of field i as written
+    public String name(int i) {
+        int c = colon[i] < 0 ? lineEnd(i) : colon[i];
+        return text(start[i], c).trim();
+    }
+
+//field i exactly as it appears, folded lines and line endings included
+    public String raw(int i) { return text(start[i], end[i]); }
+
+//value of field i with folding undone (line breaks dropped, the whitespace after kept) and trimmed
+    public String value(int i) {
+        if (colon[i] < 0) return "";
+        StringBuilder sb = new StringBuilder(end[i] - colon[i]);
+        for (int k = colon[i] + 1; k < end[i]; k++) {
+            byte b = buf[k];
+            if (b != '\r' && b != '\n') sb.append((char) (b & 0xff));
+        }
+        return sb.toString().trim();
+    }
+
+//first value of a field, case-insensitive name, null if missing
+    public String get(String name) {
+        int i = indexOf(name, 0);
+        return i < 0 ? null : value(i);
+    }
+
+//every value of a field in order (Received, repeated To lines)
+    public List<String> getAll(String name) {
+        List<String> out = new ArrayList<>();
+        for (int i = indexOf(name, 0); i >= 0; i = indexOf(name, i + 1)) out.add(value(i));
+        return out;
+    }
+
+//first field at or after from with this name, -1 if none
+    public int indexOf(String name, int from) {
+        for (int i = from; i < count; i++) if (named(i, name)) return i;
+        return -1;
+    }
+
+//true when field i is called name, compares the raw bytes so nothing gets decoded
+    private boolean named(int i, String name) {
+        int c = colon[i];
+        if (c < 0) return false;
+//the name may have blanks before its colon, "Subject :" is obsolete but legal
+        int e = c;
+        while (e > start[i] && (buf[e - 1] == ' ' || buf[e - 1] == '\t')) e--;
+        if (e - start[i] != name.length()) return false;
+        for (int k = 0; k < name.length(); k++) {
+            int a = buf[start[i] + k] & 0xff;
+            int b = name.charAt(k);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) return false;
+        }
+        return true;
+    }
+
+//end of the first line of field i without its line ending
+    private int lineEnd(int i) {
+        int e = start[i];
+        while (e < end[i] && buf[e] != '\r' && buf[e] != '\n') e++;
+        return e;
+    }
+
+    private String text(int from, int to) { return new String(buf, from, to - from, StandardCharsets.ISO_8859_1); }
+
+    private void grow() {
+        start = Arrays.copyOf(start, start.length * 2);
+        colon = Arrays.copyOf(colon, colon.length * 2);
+        end = Arrays.copyOf(end, end.length * 2);
+    }
+}
@@ -1,34 +1,114 @@
 package maildir;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.stream.Collectors;
+
+import util.Events;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 
 public class MailBox {
-//initialize root, user, userDir, newDir, tmpDir
+//initialize root, user, userDir, newDir, curDir, tmpDir
     private final Path root;
     private final String user;
     private final Path userDir;
     private final Path newDir;
+    private final Path curDir;
     private final Path tmpDir;
+//uid <-> file name table, so IMAP clients can sync by UID across sessions
+    private final Path uidFile;
+//packed segments of old messages (see Segment), made by the compactor
+    private final Path segDir;
+//lock file shared by every process using this maildir, see locked()
+    private final Path lockFile;
+
+//where a message's bytes are, a whole file or a range of a segment. Swapped as one
+//value so a reader never pairs a new file with an old offset
+    static final class Loc {
+        final Path path;
+        final long off;
+        final Segment seg;
+        Loc(Path path, long off, Segment seg) { this.path = path; this.off = off; this.seg = seg; }
+    }
+
+//one indexed message, the size is cached so STAT/LIST never touch the disk.
+//loc and flags change when IMAP sets flags or the compactor packs the message
+    public static final class Entry {
+        final String base;
+        volatile Loc loc;
+        final long size;
+        final long created;
+        volatile String flags;
+        long uid;
+//offset of the blank line ending the header, -1 until someone asks
+        volatile long headerEnd = -1;
+        Entry(String base, Loc loc, long size, long created, String flags) {
+            this.base = base; this.loc = loc; this.size = size; this.created = created; this.flags = flags;
+        }
+        public long uid() { return uid; }
+        public long size() { return size; }
+        public long created() { return created; }
+//maildir flag letters, sorted (D draft, F flagged, R replied, S seen, T trashed)
+        public String flags() { return flags; }
+        public String name() { return base; }
+    }
+
+//index of messages and the sum of their sizes
+    private List<Entry> index = new ArrayList<>();
+    private long indexBytes = 0L;
 
-//index of messages 
-    private List<Path> index = new ArrayList<>();
+//messages marked for deletion
+    private final Set<Entry> toDelete = new HashSet<>();
 
-//files marked for deletion
-    private final Set<Path> toDelete = new ConcurrentSkipListSet<>();
+//store this box belongs to (null when made directly) and the live list of files
+//in new/ and cur/, kept current by add() so load() can skip the directory scan
+    private final MailStore store;
+    private List<Entry> known = null;
+//segments by number, read from their indexes with the live list
+    private TreeMap<Integer, Segment> segments = new TreeMap<>();
+//session holding the maildrop lock (POP3 allows one at a time)
+    private Object owner = null;
 
-//Create a new MailBox for the given user 
+//bytes held by the box (-1 until first asked), kept current by add() and deletes so a
+//quota check is O(1). mods counts changes so reconcile() knows its disk count is stale
+    private long used = -1;
+    private long mods = 0;
+
+//uid table, read from disk the first time it is needed
+    private Map<String, Long> uids = null;
+    private long uidValidity = 0L;
+    private long uidNext = 1L;
+
+//change count kept in the lock file, every locked change bumps it. seenGen is the value
+//this process left there; anything else means another process changed the box since,
+//so the uid table is read again and the live list rescanned before they are trusted
+    private long seenGen = -1;
+    private boolean moved = false;
+    private boolean held = false;
+
+//work done with the maildir lock held
+    private interface Locked<T> { T run() throws MailBoxException; }
+
+//Create a new MailBox for the given user
     public MailBox(String spoolRoot, String user) throws MailBoxException {
+        this(spoolRoot, user, null);
+    }
+
+//Shared mailbox handed out by MailStore
+    MailBox(String spoolRoot, String user, MailStore store) throws MailBoxException {
         if (spoolRoot == null || spoolRoot.isBlank()) throw new MailBoxException("spool root missing");
         if (user == null || user.isBlank()) throw new MailBoxException("user missing");
 
@@ -36,11 +116,17 @@ public class MailBox {
         this.user = user;
         this.userDir = root.resolve(user);
         this.newDir  = userDir.resolve("new");
+        this.curDir  = userDir.resolve("cur");
         this.tmpDir  = userDir.resolve("tmp");
+        this.uidFile = userDir.resolve("uidlist");
+        this.segDir  = userDir.resolve("seg");
+        this.lockFile = userDir.resolve(".lock");
+        this.store = store;
 
         try {
-//make sure the new and tmp directories exist
+//make sure the new, cur and tmp directories exist
             Files.createDirectories(newDir);
+            Files.createDirectories(curDir);
             Files.createDirectories(tmpDir);
         } catch (IOException e) {
             throw new MailBoxException("failed to create maildir folders", e);
@@ -49,15 +135,21 @@ public class MailBox {
 
 //Add a new message, write to tmp, then move to new
     public synchronized void add(MailMessage m) throws MailBoxException {
+        Events.MailBoxOp ev = new Events.MailBoxOp();
+        ev.begin();
         String base = Instant.now().toEpochMilli() + "-" + UUID.randomUUID();
 //Temporary file name
         Path tmp = tmpDir.resolve(base + ".eml");
 //Final file name
         Path fin = newDir.resolve(base + ".eml");
+        long size;
         try {
-//Write messages into tmp
-            Files.write(tmp, m.toWireFormat().getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+//Write messages into tmp, a spooled body is streamed across without decoding, only
+//Return-Path and the trace fields go in front of it
+            try (OutputStream os = new BufferedOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024)) {
+                size = m.writeTo(os, true);
+            }
 
 //Automatically move tmp to new
             try {
@@ -71,35 +163,211 @@ public class MailBox {
             try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
             throw new MailBoxException("failed to add message", e);
         }
+//newest message goes last with the next uid, same order load() would give it
+        Entry e = new Entry(base + ".eml", new Loc(fin, 0, null), size, System.currentTimeMillis(), "");
+        assignUid(e);
+        if (known != null) known.add(e);
+        if (used >= 0) used += size;
+        mods++;
+        event(ev, "add", 1, size);
+        if (store != null) store.fireDelivered(this, fin);
     }
 
-//Load and index all messages in new 
-    public synchronized void load() throws MailBoxException {
+//Add a copy of a message made elsewhere under its original name (replication), the body
+//is the next size bytes of in. A name already here is skipped, so replaying is harmless.
+//returns false when it was skipped
+    public synchronized boolean addCopy(String name, InputStream in, long size) throws MailBoxException {
+        if (name.indexOf('/') >= 0 || name.indexOf(':') >= 0 || name.startsWith(".")) throw new MailBoxException("bad message name " + name);
         try {
-            List<Path> files = Files.list(newDir)
+            refresh();
+            if (byBase().containsKey(name)) { in.skipNBytes(size); return false; }
+        } catch (IOException e) {
+            throw new MailBoxException("failed to add message", e);
+        }
+        Path tmp = tmpDir.resolve(name);
+        Path fin = newDir.resolve(name);
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                byte[] buf = new byte[64 * 1024];
+                long left = size;
+                while (left > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) throw new IOException("copy of " + name + " cut short");
+                    os.write(buf, 0, n);
+                    left -= n;
+                }
+            }
+            Files.move(tmp, fin, ATOMIC_MOVE);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
+            throw new MailBoxException("failed to add message", e);
+        }
+        Entry e = new Entry(name, new Loc(fin, 0, null), size, System.currentTimeMillis(), "");
+        assignUid(e);
+        known.add(e);
+        if (used >= 0) used += size;
+        mods++;
+        if (store != null) store.fireDelivered(this, fin);
+        return true;
+    }
+
+//Bulk import (see bulk.Importer): one message under a name the importer picked so names
+//sort in arrival order, flags are maildir letters and created the original arrival time.
+//Listeners hear about it as a delivery (a replication change log has to). It is numbered
+//like a delivery too, under the maildir lock, so a server using the spool at the same time
+//agrees on its uid. A name that already has a uid is skipped, that is what makes a resumed
+//import safe. returns false when skipped
+    public synchronized boolean importMessage(String name, byte[] b, int len, long created, String flags) throws MailBoxException {
+        if (name.indexOf('/') >= 0 || name.indexOf(':') >= 0 || name.startsWith(".")) throw new MailBoxException("bad message name " + name);
+        if (locked(() -> { uids(); return uids.containsKey(name); })) return false;
+//unread mail goes in new/ like a delivery, the rest in cur/ with its flags
+        Path fin = flags.isEmpty() ? newDir.resolve(name) : curDir.resolve(name + ":2," + flags);
+        Path tmp = tmpDir.resolve(name);
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.wrap(b, 0, len);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+//arrival time as the file time, IMAP shows it as INTERNALDATE
+            if (created > 0) Files.setLastModifiedTime(tmp, FileTime.fromMillis(created));
+            Files.move(tmp, fin, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
+            throw new MailBoxException("failed to import message", e);
+        }
+        Entry e = new Entry(name, new Loc(fin, 0, null), len, created > 0 ? created : System.currentTimeMillis(), flags);
+        assignUid(e);
+        if (known != null) known.add(e);
+        if (used >= 0) used += len;
+        mods++;
+        if (store != null) store.fireDelivered(this, fin);
+        return true;
+    }
+
+//The message with this name (Entry.name()), null if it is not here
+    public synchronized Entry find(String name) throws MailBoxException {
+        refresh();
+        return byBase().get(name);
+    }
+
+//Delete messages by name, names that are not here are ignored (replication)
+    public synchronized void removeNames(Collection<String> names) throws MailBoxException {
+        refresh();
+        Map<String, Entry> now = byBase();
+        List<Entry> gone = new ArrayList<>();
+        for (String n : names) {
+            Entry e = now.get(n);
+            if (e != null) gone.add(e);
+        }
+        remove(gone);
+    }
+
+//Load and index all messages in new, cur and the segments
+    public synchronized void load() throws MailBoxException {
+        Events.MailBoxOp ev = new Events.MailBoxOp();
+        ev.begin();
+        refresh();
+        setIndex(new ArrayList<>(known));
+        event(ev, "load", index.size(), indexBytes);
+    }
+
+//bring the live list up to date, everything that writes here runs in this process
+//when the store is live so the list is already right and the scan is skipped
+    private void refresh() throws MailBoxException {
+        if (known != null && store != null && store.isLive()) return;
+        Map<String, Entry> packed = loadSegments();
+        List<Entry> files = new ArrayList<>();
+        scan(newDir, files, packed);
+        scan(curDir, files, packed);
+        files.addAll(packed.values());
+//Sort by file creation time then by filename, that is the order new uids go out in
+        files.sort((a, b) -> {
+            int t = Long.compare(a.created, b.created);
+            return (t != 0) ? t : a.base.compareTo(b.base);
+        });
+        uids();
+        for (Entry e : files) {
+            Long u = uids.get(e.base);
+            if (u != null) e.uid = u;
+        }
+        for (Entry e : files) {
+            if (e.uid == 0) assignUid(e);
+        }
+//uid order is arrival order, POP3 numbers and IMAP sequence numbers both follow it
+        files.sort(Comparator.comparingLong(e -> e.uid));
+        known = files;
+    }
+
+//one directory of the maildir into the list
+    private void scan(Path dir, List<Entry> files, Map<String, Entry> packed) throws MailBoxException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+//one stat per file gives both the sort key and the size
+                BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
 //only files not folders
-                    .filter(p -> Files.isRegularFile(p))
-                    .collect(Collectors.toList());
-//Sort by file creation time then by filename
-            files.sort((a, b) -> {
-                try {
-                    BasicFileAttributes aa = Files.readAttributes(a, BasicFileAttributes.class);
-                    BasicFileAttributes bb = Files.readAttributes(b, BasicFileAttributes.class);
-                    int t = aa.creationTime().compareTo(bb.creationTime());
-                    return (t != 0) ? t : a.getFileName().toString().compareTo(b.getFileName().toString());
-                } catch (IOException e) {
-                    return a.getFileName().toString().compareTo(b.getFileName().toString());
+                if (!a.isRegularFile()) continue;
+                String name = p.getFileName().toString();
+                int c = name.indexOf(":2,");
+                String base = c < 0 ? name : name.substring(0, c);
+                String flags = c < 0 ? "" : name.substring(c + 3);
+                if (packed.containsKey(base)) {
+//already indexed in a segment, the compactor stopped before removing the file
+                    Files.deleteIfExists(p);
+                    continue;
                 }
-            });
-//refresh index
-            index = files;
-            toDelete.clear();
-//clear old delete marks
+                files.add(new Entry(base, new Loc(p, 0, null), a.size(), a.creationTime().toMillis(), flags));
+            }
         } catch (IOException e) {
             throw new MailBoxException("failed to load mailbox", e);
         }
     }
 
+//read every segment index, the newest segment wins when a crash left a message in two
+    private Map<String, Entry> loadSegments() throws MailBoxException {
+        segments = new TreeMap<>();
+        Map<String, Entry> packed = new HashMap<>();
+        if (!Files.isDirectory(segDir)) return packed;
+        Set<Segment> dirty = new HashSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(segDir, "*.idx")) {
+            for (Path p : ds) {
+                int id = Segment.idOf(p);
+                if (id >= 0) segments.put(id, new Segment(segDir, id));
+            }
+            for (Segment sg : segments.values()) {
+                sg.length = Files.exists(sg.data) ? Files.size(sg.data) : 0;
+                for (String[] f : Segment.readIndex(sg.index)) {
+                    String name = f[3];
+                    int c = name.indexOf(":2,");
+                    String base = c < 0 ? name : name.substring(0, c);
+                    Entry e = new Entry(base, new Loc(sg.data, Long.parseLong(f[0]), sg), Long.parseLong(f[1]),
+                            Long.parseLong(f[2]), c < 0 ? "" : name.substring(c + 3));
+                    Entry old = packed.put(base, e);
+                    if (old != null) {
+                        old.loc.seg.entries.remove(old);
+                        dirty.add(old.loc.seg);
+                    }
+                    sg.entries.add(e);
+                }
+            }
+            for (Segment sg : dirty) {
+                if (sg.entries.isEmpty()) { sg.delete(); segments.remove(sg.id); }
+                else sg.writeIndex();
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new MailBoxException("failed to load segments", e);
+        }
+        return packed;
+    }
+
+//swap in a new index, clears old delete marks
+    private void setIndex(List<Entry> files) {
+        long sum = 0L;
+        for (Entry e : files) sum += e.size;
+        index = files;
+        indexBytes = sum;
+        toDelete.clear();
+    }
+
 //total number of indexed messages
     public synchronized int count() {
         return index.size();
@@ -107,34 +375,30 @@ public class MailBox {
 
 //total size in bytes of all messages
     public synchronized long totalSize() {
-        long sum = 0L;
-        for (Path p : index) {
-            try { sum += Files.size(p); } catch (IOException ignored) {}
-        }
-        return sum;
+        return indexBytes;
     }
 
-//return size in bytes of one message
+//return size in bytes of one message (as seen at load)
     public synchronized long size(int i) throws MailBoxException {
-        Path p = pathFor(i);
-        try { return Files.size(p); } catch (IOException e) { throw new MailBoxException("size failed", e); }
+        return entry(i).size;
+    }
+
+//sizes of every indexed message, slot i-1 holds message i
+    public synchronized long[] sizes() {
+        long[] out = new long[index.size()];
+        for (int i = 0; i < out.length; i++) out[i] = index.get(i).size;
+        return out;
     }
 
-//Read the text of one message 
+//Read the text of one message
     public synchronized String get(int i) throws MailBoxException {
-        Path p = pathFor(i);
-        try {
-            byte[] data = Files.readAllBytes(p);
-            return new String(data, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new MailBoxException("read failed", e);
-        }
+        Entry e = entry(i);
+        return new String(read(e, 0, (int) Math.min(Integer.MAX_VALUE, e.size)), StandardCharsets.UTF_8);
     }
 
 //mark a message for deletion
     public synchronized void markDelete(int i) throws MailBoxException {
-        Path p = pathFor(i);
-        toDelete.add(p.toAbsolutePath().normalize());
+        toDelete.add(entry(i));
     }
 
 //undo all delete marks (used by POP3 RSET)
@@ -144,41 +408,590 @@ public class MailBox {
 
 //Permanently delete any marked messages (used by POP3 QUIT)
     public synchronized void commitDeletes() throws MailBoxException {
-        for (Path p : new HashSet<>(toDelete)) {
-            try {
-                Files.deleteIfExists(p);
-            } catch (IOException e) {
-                throw new MailBoxException("delete failed: " + p.getFileName(), e);
-            }
-        }
+        Events.MailBoxOp ev = new Events.MailBoxOp();
+        ev.begin();
+        int n = toDelete.size();
+        long bytes = 0;
+        for (Entry e : toDelete) bytes += e.size;
+        remove(toDelete);
         toDelete.clear();
 //reload index to reflect removals
         load();
+        event(ev, "commitDeletes", n, bytes);
+    }
+
+//finish a flight recorder event, fields are only filled in when it is being recorded
+    private void event(Events.MailBoxOp ev, String op, int messages, long bytes) {
+        ev.end();
+        if (!ev.shouldCommit()) return;
+        ev.operation = op;
+        ev.user = user;
+        ev.messages = messages;
+        ev.bytes = bytes;
+        ev.commit();
     }
 
 //return map of message index (used by POP3 LIST)
     public synchronized Map<Integer, Long> listSizes() {
         Map<Integer, Long> m = new LinkedHashMap<>();
-        for (int i = 1; i <= index.size(); i++) {
+        for (int i = 1; i <= index.size(); i++) m.put(i, index.get(i - 1).size);
+        return m;
+    }
+
+//Take the maildrop lock for a session, false if another session holds it
+    public synchronized boolean lock(Object session) {
+        if (owner != null && owner != session) return false;
+        owner = session;
+        return true;
+    }
+
+//Give the lock back (only the holder can)
+    public synchronized void unlock(Object session) {
+        if (owner == session) owner = null;
+    }
+
+//Every message currently in the box in uid order (IMAP keeps its own view from this)
+    public synchronized List<Entry> entries() throws MailBoxException {
+        refresh();
+        return new ArrayList<>(known);
+    }
+
+//uid table header values
+    public synchronized long uidValidity() throws MailBoxException {
+        uids();
+        return uidValidity;
+    }
+
+    public synchronized long uidNext() throws MailBoxException {
+        uids();
+        return uidNext;
+    }
+
+//Bytes of mail in the box, counted once then kept up to date in memory
+    public synchronized long usage() throws MailBoxException {
+        if (used < 0) {
+            if (known == null) refresh();
+            long sum = 0;
+            for (Entry e : known) sum += e.size;
+            used = sum;
+        }
+        return used;
+    }
+
+//Re-count usage from disk without holding the lock, in case another process or a
+//hand edit changed the box. The count is thrown away if the box changed meanwhile.
+//returns how far the in-memory counter was off
+    public long reconcile() throws MailBoxException {
+        long m0;
+        synchronized (this) { m0 = mods; }
+        long disk = diskUsage();
+        synchronized (this) {
+            if (mods != m0) return 0;
+            long drift = used < 0 ? 0 : disk - used;
+            used = disk;
+            return drift;
+        }
+    }
+
+//message bytes on disk: every file in new/ and cur/ plus every message in a segment index
+    private long diskUsage() throws MailBoxException {
+        long sum = 0;
+        try {
+            for (Path dir : List.of(newDir, curDir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                    for (Path p : ds) {
+                        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                        if (a.isRegularFile()) sum += a.size();
+                    }
+                }
+            }
+            if (Files.isDirectory(segDir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(segDir, "*.idx")) {
+                    for (Path p : ds) for (String[] f : Segment.readIndex(p)) sum += Long.parseLong(f[1]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new MailBoxException("failed to count usage", e);
+        }
+        return sum;
+    }
+
+//Replace the flags of a message, a file moves to cur/<base>:2,<flags>, a packed
+//message just gets its segment index rewritten
+    public synchronized void setFlags(Entry e, String flags) throws MailBoxException {
+        char[] f = flags.toCharArray();
+        Arrays.sort(f);
+        String sorted = new String(f);
+        locked(() -> {
+            Entry c = e;
+            if (moved || misplaced(e)) {
+                c = current().get(e.base);
+                if (c == null) throw new MailBoxException("message gone: " + e.base);
+            }
             try {
-                m.put(i, Files.size(index.get(i - 1)));
-            } catch (IOException e) {
-                m.put(i, 0L);
+                if (c.loc.seg != null) {
+                    c.flags = sorted;
+                    c.loc.seg.writeIndex();
+                } else {
+                    if (sorted.equals(c.flags) && c.loc.path.startsWith(curDir)) return null;
+                    Path to = curDir.resolve(c.base + ":2," + sorted);
+                    Files.move(c.loc.path, to, ATOMIC_MOVE);
+                    c.loc = new Loc(to, 0, null);
+                    c.flags = sorted;
+                }
+            } catch (IOException ex) {
+                throw new MailBoxException("flag update failed: " + e.base, ex);
+            }
+            e.loc = c.loc;
+            e.flags = sorted;
+            mods++;
+            return null;
+        });
+    }
+
+//Delete messages for good (IMAP EXPUNGE)
+    public synchronized void expunge(Collection<Entry> gone) throws MailBoxException {
+        remove(gone);
+    }
+
+//Read up to len bytes of a message starting at off, without loading the rest of it
+    public byte[] read(Entry e, long off, int len) throws MailBoxException {
+        if (off >= e.size || len <= 0) return new byte[0];
+        int n = (int) Math.min(len, e.size - off);
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        Loc l = locate(e);
+        try (FileChannel ch = FileChannel.open(l.path, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, l.off + off + buf.position()) < 0) break;
+            }
+        } catch (IOException ex) {
+            throw new MailBoxException("read failed", ex);
+        }
+        return buf.position() == n ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+//Length of the header including the blank line after it, found once and cached
+    public long headerLength(Entry e) throws MailBoxException {
+        long h = e.headerEnd;
+        if (h >= 0) return h;
+        long off = 0;
+        int run = 0;
+        outer:
+        while (off < e.size) {
+            byte[] b = read(e, off, 8192);
+            if (b.length == 0) break;
+            for (int i = 0; i < b.length; i++) {
+//count line ends in a row (CRs in between don't break the run), two of them end the header
+                int c = b[i];
+                if (c == '\n') {
+                    if (++run == 2) { h = off + i + 1; break outer; }
+                } else if (c != '\r') {
+                    run = 0;
+                }
+            }
+            off += b.length;
+        }
+        if (h < 0) h = e.size;
+        e.headerEnd = h;
+        return h;
+    }
+
+//delete messages and drop them from the live list and the uid table. A packed message
+//only leaves its segment index, the bytes stay until the compactor rewrites the segment
+    private void remove(Collection<Entry> gone) throws MailBoxException {
+        if (gone.isEmpty()) return;
+        locked(() -> { drop(gone); return null; });
+    }
+
+//remove() with the maildir lock held. A message already gone from disk is still dropped
+//from the list and the uid table
+    private void drop(Collection<Entry> gone) throws MailBoxException {
+        Map<String, Entry> now = null;
+        Set<Segment> touched = new HashSet<>();
+        for (Entry e : gone) {
+            Entry c = e;
+            if (now != null || moved || misplaced(e)) {
+                if (now == null) now = current();
+                c = now.get(e.base);
+                if (c == null) continue;
             }
+            try {
+                if (c.loc.seg != null) {
+                    c.loc.seg.entries.remove(c);
+                    touched.add(c.loc.seg);
+                } else {
+                    Files.deleteIfExists(c.loc.path);
+                }
+            } catch (IOException ex) {
+                throw new MailBoxException("delete failed: " + e.base, ex);
+            }
+        }
+        try {
+            for (Segment sg : touched) {
+                if (sg.entries.isEmpty()) { sg.delete(); segments.remove(sg.id); }
+                else sg.writeIndex();
+            }
+        } catch (IOException ex) {
+            throw new MailBoxException("segment update failed", ex);
+        }
+        Set<String> names = new HashSet<>();
+        for (Entry e : gone) names.add(e.base);
+        if (known != null) {
+            long freed = 0;
+            for (Entry e : known) if (names.contains(e.base)) freed += e.size;
+            known.removeIf(e -> names.contains(e.base));
+            if (used >= 0) used -= freed;
+        } else {
+            used = -1;
         }
+        mods++;
+        uids();
+        uids.keySet().removeAll(names);
+        writeUids();
+        if (store != null) store.fireRemoved(this, names);
+    }
+
+//where to read the message now, another process may have moved it between new/ and cur/
+//or packed it into a segment since this entry was made. Only for reading: a place found
+//in a segment has no Segment behind it, stale() is true for it from then on
+    private Loc locate(Entry e) throws MailBoxException {
+        Loc l = e.loc;
+        if (Files.exists(l.path)) return l;
+        try {
+            Path n = newDir.resolve(e.base);
+            if (Files.exists(n)) return e.loc = new Loc(n, 0, null);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(curDir, e.base + ":2,*")) {
+                for (Path c : ds) return e.loc = new Loc(c, 0, null);
+            }
+            if (Files.isDirectory(segDir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(segDir, "*.idx")) {
+                    for (Path p : ds) {
+                        for (String[] f : Segment.readIndex(p)) {
+                            if (f[3].equals(e.base) || f[3].startsWith(e.base + ":2,")) {
+                                Path data = segDir.resolve(p.getFileName().toString().replace(".idx", ".seg"));
+                                return e.loc = new Loc(data, Long.parseLong(f[0]), null);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            throw new MailBoxException("read failed", ex);
+        }
+        throw new MailBoxException("message gone: " + e.base);
+    }
+
+//an entry from before the last rescan that now sits in a segment this box no longer tracks
+    private boolean stale(Entry e) {
+        Loc l = e.loc;
+        if (l.seg == null) return l.path.startsWith(segDir);
+        return segments.get(l.seg.id) != l.seg;
+    }
+
+//a file entry whose file is not where it says, or a packed entry from an old scan.
+//With the maildir lock held that means another process moved, packed or deleted it
+    private boolean misplaced(Entry e) {
+        return stale(e) || (e.loc.seg == null && !Files.exists(e.loc.path));
+    }
+
+//the live list by name, rescanned first when another process changed the box or the
+//list is only a snapshot (store not live). Maildir lock held
+    private Map<String, Entry> current() throws MailBoxException {
+        if (moved) { moved = false; known = null; }
+        refresh();
+        return byBase();
+    }
+
+//Run step holding the maildir lock, which keeps out other processes using the box (the
+//compactor in an SMTP server next to a POP3 or IMAP one), and bump the change count.
+//Called with the box monitor held, so this process asks for the file lock once at a
+//time and a nested call just runs. l is only there to be released at the end
+    @SuppressWarnings("try")
+    private <T> T locked(Locked<T> step) throws MailBoxException {
+        if (held) return step.run();
+        try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock l = ch.lock()) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            while (b.hasRemaining() && ch.read(b, b.position()) > 0) {}
+            long gen = b.position() == 8 ? b.getLong(0) : 0;
+//in a live store every writer is in this process, so the list and uid table are already right
+            if (gen != seenGen && !live()) {
+                moved = true;
+                uids = null;
+            }
+            held = true;
+            try {
+                return step.run();
+            } finally {
+                held = false;
+                seenGen = gen + 1;
+                ch.write(ByteBuffer.allocate(8).putLong(0, seenGen), 0);
+            }
+        } catch (IOException e) {
+            throw new MailBoxException("maildir lock failed", e);
+        }
+    }
+
+    private boolean live() { return store != null && store.isLive(); }
+
+    private Map<String, Entry> byBase() {
+        Map<String, Entry> m = new HashMap<>();
+        for (Entry e : known) m.put(e.base, e);
         return m;
     }
 
-//Help method to get file path for a message index
-    private Path pathFor(int i) throws MailBoxException {
+//Pack messages delivered before cutoff (epoch ms) into segments of about segmentBytes,
+//and rewrite segments whose dead share is above reclaim. The copying runs without the
+//box lock, deliveries and readers only wait for the switch-over. One caller at a time.
+//returns {messages packed, dead bytes reclaimed}
+    public long[] compact(long cutoff, long segmentBytes, double reclaim) throws MailBoxException {
+        List<Entry> cold = new ArrayList<>();
+        List<Segment> sparse = new ArrayList<>();
+        Segment open = null;
+        int next;
+        synchronized (this) {
+//a POP3 session has the maildrop, its message numbers point at these files
+            if (owner != null) return new long[] {0, 0};
+            refresh();
+            for (Entry e : known) if (e.loc.seg == null && e.created < cutoff) cold.add(e);
+            for (Segment sg : segments.values()) if (sg.dead() > reclaim * sg.length) sparse.add(sg);
+            next = nextSegment();
+            if (!segments.isEmpty()) {
+                Segment last = segments.lastEntry().getValue();
+                if (last.length < segmentBytes && !sparse.contains(last)) open = last;
+            }
+        }
+        long packed = 0, freed = 0;
+        try {
+            Files.createDirectories(segDir);
+//cold files, appended to the open segment then to new ones
+            for (int i = 0; i < cold.size(); ) {
+                Segment sg = open != null ? open : new Segment(segDir, next++);
+                open = null;
+                List<Entry> batch = new ArrayList<>();
+                List<Long> offs = new ArrayList<>();
+                long end;
+                try (FileChannel ch = FileChannel.open(sg.data, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    end = ch.size();
+                    while (i < cold.size() && end < segmentBytes) {
+                        Entry e = cold.get(i++);
+                        Loc l = e.loc;
+                        if (l.seg != null || l.path.startsWith(segDir)) continue;
+//moved or deleted since the scan, the next pass picks it up if it is still here
+                        long n;
+                        try { n = copy(l.path, 0, e.size, ch, end); } catch (NoSuchFileException gone) { continue; }
+                        if (n != e.size) continue;
+                        batch.add(e);
+                        offs.add(end);
+                        end += n;
+                    }
+                    ch.force(false);
+                }
+                packed += commitPack(sg, batch, offs, end);
+            }
+//mostly dead segments, live messages move to a fresh one
+            for (Segment old : sparse) {
+                List<Entry> live;
+                synchronized (this) { live = new ArrayList<>(old.entries); }
+                Segment sg = new Segment(segDir, next++);
+                List<Long> offs = new ArrayList<>();
+                long end = 0;
+                try (FileChannel ch = FileChannel.open(sg.data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    for (Entry e : live) {
+                        offs.add(end);
+                        end += copy(old.data, e.loc.off, e.size, ch, end);
+                    }
+                    ch.force(false);
+                }
+                freed += commitRewrite(old, sg, live, offs, end);
+            }
+        } catch (IOException e) {
+            throw new MailBoxException("compaction failed", e);
+        }
+        return new long[] {packed, freed};
+    }
+
+//switch packed messages over to the segment, then drop their files. The index is
+//written before any file goes, so a crash in between leaves duplicates that load() clears
+    private synchronized long commitPack(Segment sg, List<Entry> batch, List<Long> offs, long end) throws MailBoxException {
+        return locked(() -> {
+            mods++;
+            Map<String, Entry> now = moved || !live() ? current() : byBase();
+            Segment target = segments.computeIfAbsent(sg.id, k -> sg);
+            target.length = end;
+            List<Path> drop = new ArrayList<>();
+            for (int k = 0; k < batch.size(); k++) {
+                Entry c = now.get(batch.get(k).base);
+//deleted or already moved while we copied, its bytes are dead space now. A file another
+//process only renamed for its flags keeps the same bytes, the index takes its new flags
+                if (c == null || c.loc.seg != null || c.loc.path.startsWith(segDir) || !Files.exists(c.loc.path)) continue;
+                drop.add(c.loc.path);
+                c.loc = new Loc(target.data, offs.get(k), target);
+                target.entries.add(c);
+            }
+            try {
+                if (target.entries.isEmpty()) {
+                    target.delete();
+                    segments.remove(target.id);
+                    return 0L;
+                }
+                target.writeIndex();
+                for (Path p : drop) Files.deleteIfExists(p);
+            } catch (IOException e) {
+                throw new MailBoxException("compaction failed", e);
+            }
+            return (long) drop.size();
+        });
+    }
+
+//switch a rewritten segment's messages to the new one and delete the old files
+    private synchronized long commitRewrite(Segment old, Segment sg, List<Entry> live, List<Long> offs, long end) throws MailBoxException {
+        return locked(() -> {
+            mods++;
+            Map<String, Entry> now = moved || !live() ? current() : byBase();
+            Segment cur = segments.get(old.id);
+            try {
+                if (cur == null) { sg.delete(); return 0L; }
+                sg.length = end;
+                for (int k = 0; k < live.size(); k++) {
+                    Entry c = now.get(live.get(k).base);
+                    if (c == null || c.loc.seg != cur) continue;
+                    cur.entries.remove(c);
+                    c.loc = new Loc(sg.data, offs.get(k), sg);
+                    sg.entries.add(c);
+                }
+                if (sg.entries.isEmpty()) sg.delete();
+                else { sg.writeIndex(); segments.put(sg.id, sg); }
+                if (!cur.entries.isEmpty()) { cur.writeIndex(); return 0L; }
+                cur.delete();
+            } catch (IOException e) {
+                throw new MailBoxException("compaction failed", e);
+            }
+            segments.remove(cur.id);
+            return cur.length - end;
+        });
+    }
+
+//next free segment number, data files without an index are left from a crash mid copy
+    private int nextSegment() throws MailBoxException {
+        int max = segments.isEmpty() ? 0 : segments.lastKey();
+        if (!Files.isDirectory(segDir)) return max + 1;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(segDir, "*.seg")) {
+            for (Path p : ds) {
+                int id = Segment.idOf(p);
+                if (id >= 0 && !segments.containsKey(id)) Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            throw new MailBoxException("failed to list segments", e);
+        }
+        return max + 1;
+    }
+
+//copy n bytes from a file at off into ch at pos, returns bytes copied
+    private static long copy(Path src, long off, long n, FileChannel ch, long pos) throws IOException {
+        long done = 0;
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ)) {
+            while (done < n) {
+                long k = in.transferTo(off + done, n - done, ch.position(pos + done));
+                if (k <= 0) break;
+                done += k;
+            }
+        }
+        return done;
+    }
+
+//read the uid table, first line is "V <uidvalidity>" then one "<uid> <name>" per message.
+//Read again whenever another process has written it since (see locked)
+    private void uids() throws MailBoxException {
+        if (uids != null) return;
+        readUids();
+        if (uidValidity == 0) {
+//missing or broken, read it once more under the lock (so no writer is half way through a
+//line) and only start a new table if it still is
+            locked(() -> {
+                readUids();
+                if (uidValidity != 0) return null;
+                uidValidity = System.currentTimeMillis() / 1000;
+                uidNext = 1;
+                writeUids();
+                return null;
+            });
+        }
+    }
+
+//uid table from disk, uidValidity is left at 0 when there is none we can trust
+    private void readUids() {
+        uids = new HashMap<>();
+        uidValidity = 0;
+        try {
+            if (Files.exists(uidFile)) {
+                for (String line : Files.readAllLines(uidFile, StandardCharsets.UTF_8)) {
+                    int sp = line.indexOf(' ');
+                    if (sp < 0) continue;
+                    if (line.startsWith("V ")) { uidValidity = Long.parseLong(line.substring(2).trim()); continue; }
+                    long u = Long.parseLong(line.substring(0, sp));
+                    uids.put(line.substring(sp + 1), u);
+                    uidNext = Math.max(uidNext, u + 1);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+//a broken table means old uids can't be trusted, start over under a new validity
+            uids.clear();
+            uidValidity = 0;
+        }
+    }
+
+//give a message the next uid, appended so delivery costs one short write. Under the
+//maildir lock, so a POP3 or IMAP process numbering the same new file or its own
+//deliveries never hands out a uid twice
+    private void assignUid(Entry e) throws MailBoxException {
+        locked(() -> {
+            uids();
+            Long had = uids.get(e.base);
+            if (had != null) { e.uid = had; return null; }
+            e.uid = uidNext++;
+            uids.put(e.base, e.uid);
+            try {
+                Files.write(uidFile, (e.uid + " " + e.base + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                throw new MailBoxException("uid table write failed", ex);
+            }
+            return null;
+        });
+    }
+
+//rewrite the whole uid table (after deletes), via tmp so a crash leaves the old one.
+//the highest uid is kept even when its message is gone so uids are never reused
+    private void writeUids() throws MailBoxException {
+        uids.remove("-");
+        StringBuilder sb = new StringBuilder();
+        sb.append("V ").append(uidValidity).append('\n');
+        List<Map.Entry<String, Long>> all = new ArrayList<>(uids.entrySet());
+        all.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> m : all) sb.append(m.getValue()).append(' ').append(m.getKey()).append('\n');
+        if (all.isEmpty() || all.get(all.size() - 1).getValue() != uidNext - 1) {
+            if (uidNext > 1) sb.append(uidNext - 1).append(" -\n");
+        }
+        Path tmp = userDir.resolve("uidlist.tmp");
+        try {
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, uidFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MailBoxException("uid table write failed", e);
+        }
+    }
+
+//Help method to get the index entry for a message number
+    private Entry entry(int i) throws MailBoxException {
         if (i < 1 || i > index.size()) throw new MailBoxException("message index out of range: " + i);
-        Path p = index.get(i - 1);
-        return p;
+        return index.get(i - 1);
     }
 
 //Getters (for testing)
     public String getUser() { return user; }
     public Path getUserDir() { return userDir; }
     public Path getNewDir()  { return newDir; }
+    public Path getCurDir()  { return curDir; }
     public Path getTmpDir()  { return tmpDir; }
 }
@@ -0,0 +1,12 @@
+package maildir;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+//Gets told about mailbox changes made in this process
+public interface MailBoxListener {
+//a new message was written to the mailbox
+    void delivered(MailBox box, Path file);
+//messages were deleted for good (POP3 QUIT, IMAP EXPUNGE), names as Entry.name()
+    default void removed(MailBox box, Collection<String> names) {}
+}
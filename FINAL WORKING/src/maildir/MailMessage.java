@@ -1,17 +1,30 @@
 package maildir;// package for mail directory 
 
-import java.time.ZonedDateTime; // import statments for this file 
+import java.io.ByteArrayOutputStream; // import statments for this file 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class MailMessage { // this class is the blueprint for users email messages/ holds who it's from, who it’s to, subject, body, etc
 
     private String from;// who sent the email
+    private String author = null;// From: header of a message we compose, when it differs from the envelope sender (a bounce goes from <>)
     private final List<String> to = new ArrayList<>();// people getting email
     private String subject = "";// subject line
     private String body = "";// body of email
+    private Path bodyFile = null;// whole received message (its own headers and body) spooled to disk as raw wire bytes, used instead of body when set
+    private Headers headers = null;// header index of bodyFile, read the first time someone asks
+    private final List<String> trace = new ArrayList<>();// Received fields we add in front of a received message, newest first
+    private String bodyType = "7BIT";// BODY= the client declared on MAIL FROM (7BIT, 8BITMIME or BINARYMIME), passed on when relaying
+    private final AtomicInteger refs = new AtomicInteger(1);// holders of the spooled body, last discard() deletes it
 
     public MailMessage() {}// this empty constuctors method lets blank messages be made
 
@@ -28,32 +41,88 @@ public class MailMessage { // this class is the blueprint for users email messag
     public MailMessage setRecipients(List<String> rs) { this.to.clear(); if (rs != null) this.to.addAll(rs); return this; } //wipes the old list,adds new ones if not null
     public MailMessage setSubject(String subject) { this.subject = subject == null ? "" : subject; return this; } // if its null use strings that are emtpy 
     public MailMessage setBody(String body) { this.body = body == null ? "" : body; return this; }// if null again use empty strings
+    public MailMessage setBodyFile(Path f) { this.bodyFile = f; this.headers = null; return this; } // message lives in this file, copied byte for byte
+    public MailMessage addTrace(String field) { this.trace.add(0, field); return this; } // one trace field ("Received: ..."), without its line ending
+    public MailMessage setBodyType(String t) { this.bodyType = t == null ? "7BIT" : t; return this; }
+    public MailMessage setAuthor(String a) { this.author = a; return this; }
 
     // getters 
     public String getFrom() { return from; }
     public List<String> getTo() { return List.copyOf(to); } // copy list cant be alterd
-    public String getSubject() { return subject; }
+    public String getSubject() { // a received message keeps its subject in its own header, only looked up when asked
+        if (!subject.isEmpty() || bodyFile == null) return subject;
+        Headers h = headers();
+        String v = h == null ? null : h.get("Subject");
+        return v == null ? "" : v;
+    }
     public String getBody() { return body; }
+    public Path getBodyFile() { return bodyFile; }
+    public String getBodyType() { return bodyType; }
+    public String getAuthor() { return author; }
+    public List<String> getTrace() { return List.copyOf(trace); } // newest first, as they are written out
+
+    public long wireSize() throws IOException {// bytes writeTo(out) will write, for SIZE= and BDAT when relaying
+        if (bodyFile == null) return writeTo(OutputStream.nullOutputStream());
+        long n = 0;
+        for (String t : trace) n += t.getBytes(StandardCharsets.UTF_8).length + 2;
+        return n + Files.size(bodyFile);
+    }
 
 
 
+    public Headers headers() {// header index of a received message, null for one we composed ourselves or when the file is gone
+        if (bodyFile == null) return null;
+        if (headers == null) {
+            try { headers = Headers.read(bodyFile, 1024 * 1024); }
+            catch (IOException e) { return null; }
+        }
+        return headers;
+    }
+
     public String toWireFormat() {// turns all messages to file format 
-        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now()); // create date header
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try { writeTo(b); } catch (IOException ignore) {}// a spooled body that cannot be read leaves just the headers
+        return new String(b.toByteArray(), StandardCharsets.UTF_8); // return full message as a string 
+    }
+
+    public long writeTo(OutputStream out) throws IOException { return writeTo(out, false); }// message as it goes out to another server
+
+    public long writeTo(OutputStream out, boolean returnPath) throws IOException {// returnPath adds Return-Path, only done at final delivery (RFC 5321 4.4)
         StringBuilder sb = new StringBuilder();
+        if (returnPath) sb.append("Return-Path: <").append(from == null ? "" : from).append(">\r\n");
+        if (bodyFile != null) {// received message, our trace fields on top and then its own bytes untouched
+            for (String t : trace) sb.append(t).append("\r\n");
+            byte[] h = sb.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(h);
+            return h.length + Files.copy(bodyFile, out);
+        }
+        sb.append(composed()).append(normalBody()).append("\r\n");// one of ours (bounce), it has no header yet
+        byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(b);
+        return b.length;
+    }
+
+    public MailMessage retain() { refs.incrementAndGet(); return this; }// one more holder (e.g. the relay) needs the body
 
-        
-        sb.append("From: ").append(from == null ? "" : from).append("\r\n");// headers
+    public void discard() {// done with the message, the last holder removes the spooled body file
+        if (refs.decrementAndGet() > 0 || bodyFile == null) return;
+        try { Files.deleteIfExists(bodyFile); } catch (IOException ignore) {}
+    }
+
+    private String composed() {// header block plus the blank line, for a message we wrote ourselves
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now()); // create date header
+        StringBuilder sb = new StringBuilder();
+        String who = author != null ? author : from;
+        sb.append("From: ").append(who == null ? "" : who).append("\r\n");// headers
         sb.append("To: ").append(String.join(", ", to)).append("\r\n");
         if (!subject.isBlank()) sb.append("Subject: ").append(subject).append("\r\n");
         sb.append("Date: ").append(date).append("\r\n");
         sb.append("\r\n"); 
+        return sb.toString();
+    }
 
-
-        // body
+    private String normalBody() {// body with every line ending as CRLF
         String b = body == null ? "" : body;
-        b = b.replace("\r\n", "\n").replace("\r", "\n").replace("\n", "\r\n");
-        sb.append(b).append("\r\n"); 
-
-        return sb.toString(); // return full message as a string 
+        return b.replace("\r\n", "\n").replace("\r", "\n").replace("\n", "\r\n");
     }
 }
@@ -0,0 +1,66 @@
+package maildir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//One per spool directory, hands out a single shared MailBox per user so every
+//service in the process sees the same index, and tells listeners about deliveries.
+public class MailStore {
+//every store created in this process, keyed by spool path
+    private static final Map<Path, MailStore> stores = new ConcurrentHashMap<>();
+
+    private final String spool;
+    private final Map<String, MailBox> boxes = new ConcurrentHashMap<>();
+    private final List<MailBoxListener> listeners = new CopyOnWriteArrayList<>();
+//true when every writer to this spool runs in this process, so indexes can be kept
+//up to date from delivery events instead of rescanning the directory
+    private volatile boolean live = false;
+
+    private MailStore(String spool) { this.spool = spool; }
+
+//Get (or create) the store for a spool directory
+    public static MailStore of(String spool) throws MailBoxException {
+        if (spool == null || spool.isBlank()) throw new MailBoxException("spool root missing");
+        Path key = Paths.get(spool).toAbsolutePath().normalize();
+        return stores.computeIfAbsent(key, k -> new MailStore(spool));
+    }
+
+//Get the shared mailbox for a user
+    public MailBox open(String user) throws MailBoxException {
+        if (user == null || user.isBlank()) throw new MailBoxException("user missing");
+        MailBox b = boxes.get(user);
+        if (b != null) return b;
+        MailBox made = new MailBox(spool, user, this);
+        b = boxes.putIfAbsent(user, made);
+        return b == null ? made : b;
+    }
+
+//Set by the launcher when delivery runs in the same process
+    public void setLive(boolean live) { this.live = live; }
+    public boolean isLive() { return live; }
+
+//register for delivery events
+    public void addListener(MailBoxListener l) { listeners.add(l); }
+    public void removeListener(MailBoxListener l) { listeners.remove(l); }
+
+//called by MailBox after a message lands in new/
+    void fireDelivered(MailBox box, Path file) {
+        for (MailBoxListener l : listeners) {
+            try { l.delivered(box, file); } catch (RuntimeException ignore) {}
+        }
+    }
+
+//called by MailBox after messages are deleted
+    void fireRemoved(MailBox box, Collection<String> names) {
+        for (MailBoxListener l : listeners) {
+            try { l.removed(box, names); } catch (RuntimeException ignore) {}
+        }
+    }
+
+    public String getSpool() { return spool; }
+}
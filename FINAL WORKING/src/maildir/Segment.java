@@ -0,0 +1,78 @@
+package maildir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//One packed file of old messages (seg/NNNNNN.seg) and its offset index (seg/NNNNNN.idx).
+//The data file is only ever appended to, deleted messages leave dead bytes behind
+//until the compactor rewrites the segment.
+final class Segment {
+    final int id;
+    final Path data;
+    final Path index;
+//bytes in the data file, live or dead
+    long length;
+//messages still indexed here, in index order
+    final Set<MailBox.Entry> entries = new LinkedHashSet<>();
+
+    Segment(Path dir, int id) {
+        this.id = id;
+        this.data = dir.resolve(String.format("%06d.seg", id));
+        this.index = dir.resolve(String.format("%06d.idx", id));
+    }
+
+//bytes that still belong to a message
+    long live() {
+        long sum = 0;
+        for (MailBox.Entry e : entries) sum += e.size;
+        return sum;
+    }
+
+    long dead() { return length - live(); }
+
+//rewrite the index from the live entries, one "<offset> <size> <created> <name>[:2,<flags>]" line
+//each, via tmp so a crash leaves the old one
+    void writeIndex() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (MailBox.Entry e : entries) {
+            sb.append(e.loc.off).append(' ').append(e.size).append(' ').append(e.created).append(' ').append(e.base);
+            if (!e.flags.isEmpty()) sb.append(":2,").append(e.flags);
+            sb.append('\n');
+        }
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, index, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+//drop both files once nothing lives here any more
+    void delete() throws IOException {
+        Files.deleteIfExists(index);
+        Files.deleteIfExists(data);
+    }
+
+//index lines as {offset, size, created, name}
+    static List<String[]> readIndex(Path index) throws IOException {
+        List<String[]> out = new ArrayList<>();
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] p = line.split(" ", 4);
+            if (p.length == 4) out.add(p);
+        }
+        return out;
+    }
+
+//segment number from a file name, -1 for anything else
+    static int idOf(Path p) {
+        String n = p.getFileName().toString();
+        if (!n.endsWith(".idx") && !n.endsWith(".seg")) return -1;
+        try { return Integer.parseInt(n.substring(0, n.length() - 4)); } catch (NumberFormatException e) { return -1; }
+    }
+}
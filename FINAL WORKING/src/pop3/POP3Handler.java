@@ -2,14 +2,20 @@ package pop3;
 
 import maildir.MailBox;
 import maildir.MailBoxException;
+import maildir.MailStore;
 import util.Config;
+import util.Events;
+import util.Tls;
 import merrimackutil.net.Log;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashSet;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.util.BitSet;
 import java.util.Locale;
-import java.util.Set;
 
 
 //Handles a POP3 client session 
@@ -21,24 +27,32 @@ public class POP3Handler implements Runnable {
     private final Config.Pop3Config cfg;
     private final Config.AccountsDB accounts;
     private final Log lg;
+    private final SSLContext tls;// shared TLS context for STLS, null when not configured
     private Phase ph = Phase.AUTH;
     private String pendingUser = null;
     private MailBox box = null;
-    private final Set<Integer> del = new HashSet<>();
+//deletion marks (bit i = message i) plus running totals of what is still visible
+    private final BitSet del = new BitSet();
+    private int liveCount = 0;
+    private long liveBytes = 0L;
 //Contructor 
-    public POP3Handler(Socket sk, Config.Pop3Config cfg, Config.AccountsDB accounts, Log lg) {
+    public POP3Handler(Socket sk, Config.Pop3Config cfg, Config.AccountsDB accounts, Log lg, SSLContext tls) {
         this.sk = sk;
         this.cfg = cfg;
         this.accounts = accounts;
         this.lg = lg;
+        this.tls = tls;
     }
 
     @Override
     public void run() {
-//Try-with-resources automatically closes resources
-        try (Socket s = sk;
-             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
+//the socket in use, swapped for the TLS one after STLS (closed in finally)
+        Socket s = sk;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+//Drop clients that sit idle longer than the configured timeout
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
 //Send greeting when connection is established
             greet(out);
 
@@ -59,8 +73,11 @@ public class POP3Handler implements Runnable {
 //Password requires a prior USER command
                         if (pendingUser == null) { err(out, "use USER first"); continue; }
                         String pw = raw.substring(5).trim();
+                        Events.Pop3Login ev = new Events.Pop3Login();
+                        ev.begin();
 //validate username and password
                         if (!accounts.validate(pendingUser, pw)) {
+                            loginEvent(ev, false);
                             err(out, "auth failed");
 //Reset state
                             pendingUser = null;
@@ -68,16 +85,37 @@ public class POP3Handler implements Runnable {
                         }
 //Login successful then open mailbox
                         try {
-                            box = new MailBox(cfg.spool, pendingUser);
+//shared mailbox for this user, only one session may hold it
+                            MailBox b = MailStore.of(cfg.spool).open(pendingUser);
+                            if (!b.lock(this)) { loginEvent(ev, false); err(out, "maildrop already locked"); continue; }
+                            box = b;
                             box.load(); // snapshot of current "new/" at login
+                            resetTotals();
                         } catch (MailBoxException e) {
+                            loginEvent(ev, false);
                             err(out, "mailbox error");
                             lg.log("mailbox open failed for " + pendingUser + ": " + e.getMessage());
                             continue;
                         }
 //Transition to TRANSACTION phase
                         ph = Phase.TRANS;
-                        ok(out, pendingUser + " has " + visibleCount() + " messages");
+                        loginEvent(ev, true);
+                        ok(out, pendingUser + " has " + liveCount + " messages");
+                    } else if (up.equals("STLS")) {
+//RFC 2595, only before login and only once
+                        if (tls == null || s instanceof SSLSocket) { err(out, "STLS not available"); continue; }
+                        ok(out, "begin TLS negotiation");
+                        s = Tls.upgrade(s, tls, "pop3");
+//anything sent before the handshake is dropped with the old reader
+                        in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                        out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+                        pendingUser = null;
+                    } else if (up.equals("CAPA")) {
+//capabilities, STLS only while it can still be used
+                        ok(out, "capability list follows");
+                        writeln(out, "USER");
+                        if (tls != null && !(s instanceof SSLSocket)) writeln(out, "STLS");
+                        writeln(out, ".");
                     } else if (up.equals("QUIT")) {
                         ok(out, "bye");
                         break;
@@ -92,34 +130,38 @@ public class POP3Handler implements Runnable {
 //TRANSACTION phase with STAT, LIST, RETR, DELE, RSET, NOOP, QUIT
                 if (ph == Phase.TRANS) {
                     if (up.equals("STAT")) {
-//Show number of messages and total size
-                        int c = visibleCount();
-                        long sz = visibleBytes();
-                        ok(out, c + " " + sz);
+//Show number of messages and total size, kept up to date by DELE/RSET
+                        ok(out, liveCount + " " + liveBytes);
                     }
                     else if (up.equals("LIST")) {
-//List all messages with sizes
-                        ok(out, "scan listing follows");
-                        for (int i = 1; i <= box.count(); i++) {
-                            if (del.contains(i)) continue;
-                            long size = safeSize(i);
-                            writeln(out, i + " " + size);
+//List all messages with sizes, one pass over the cached sizes and a single flush
+                        Events.Pop3Command ev = new Events.Pop3Command();
+                        ev.begin();
+                        long[] sizes = box.sizes();
+                        StringBuilder sb = new StringBuilder("+OK scan listing follows\r\n");
+                        for (int i = 1; i <= sizes.length; i++) {
+                            if (del.get(i)) continue;
+                            sb.append(i).append(' ').append(sizes[i - 1]).append("\r\n");
                         }
-                        writeln(out, ".");
+                        sb.append('.');
+                        writeln(out, sb.toString());
+                        commandEvent(ev, "LIST", 0);
                     }
                     else if (up.startsWith("LIST ")) {
 //List a specific message
                         Integer id = parseIndex(raw.substring(5).trim());
                         if (id == null || !inRange(id)) { err(out, "no such message"); }
-                        else if (del.contains(id)) { err(out, "message deleted"); }
+                        else if (del.get(id)) { err(out, "message deleted"); }
                         else { ok(out, id + " " + safeSize(id)); }
                     }
                     else if (up.startsWith("RETR ")) {
 //Retrieve a specific message
                         Integer id = parseIndex(raw.substring(5).trim());
                         if (id == null || !inRange(id)) { err(out, "no such message"); }
-                        else if (del.contains(id)) { err(out, "message deleted"); }
+                        else if (del.get(id)) { err(out, "message deleted"); }
                         else {
+                            Events.Pop3Command ev = new Events.Pop3Command();
+                            ev.begin();
                             try {
                                 String msg = box.get(id);
                                 ok(out, "message follows");
@@ -129,20 +171,25 @@ public class POP3Handler implements Runnable {
                                     writeln(out, ln);
                                 }
                                 writeln(out, ".");
+                                commandEvent(ev, "RETR", safeSize(id));
                             } catch (MailBoxException e) {
                                 err(out, "read failed");
                             }
                         }
                     }
                     else if (up.startsWith("DELE ")) {
+//a replica only changes through replication
+                        if (cfg.readOnly) { err(out, "[SYS/PERM] read-only replica, delete on the primary"); continue; }
 //Mark a message for deletion
                         Integer id = parseIndex(raw.substring(5).trim());
                         if (id == null || !inRange(id)) { err(out, "no such message"); }
-                        else if (del.contains(id)) { err(out, "already deleted"); }
+                        else if (del.get(id)) { err(out, "already deleted"); }
                         else {
                             try {
                                 box.markDelete(id);
-                                del.add(id);
+                                del.set(id);
+                                liveCount--;
+                                liveBytes -= safeSize(id);
                                 ok(out, "deleted");
                             } catch (MailBoxException e) {
                                 err(out, "delete failed");
@@ -153,7 +200,7 @@ public class POP3Handler implements Runnable {
 //Reset all deletion marks
                         try {
                             box.unmarkAll();
-                            del.clear();
+                            resetTotals();
                             ok(out, "reset");
                         } catch (Exception e) {
                             err(out, "reset failed");
@@ -183,35 +230,55 @@ public class POP3Handler implements Runnable {
 //UPDATE
                 err(out, "session closed");
             }
+        } catch (SocketTimeoutException e) {
+//idle too long, marked messages stay (no UPDATE state)
+            lg.log("pop3 timeout " + sk.getRemoteSocketAddress());
         } catch (IOException e) {
             lg.log("pop3 io: " + e.getMessage());
         } catch (Exception e) {
             lg.log("pop3 err: " + e.getMessage());
+        } finally {
+//let the next session in
+            if (box != null) box.unlock(this);
+            try { s.close(); } catch (IOException ignore) {}
         }
     }
 
 //Helper methods
 
+//finish a login event, fields are only filled in when it is being recorded
+    private void loginEvent(Events.Pop3Login ev, boolean ok) {
+        ev.end();
+        if (!ev.shouldCommit()) return;
+        ev.user = pendingUser;
+        ev.success = ok;
+        ev.messages = ok ? liveCount : 0;
+        ev.mailboxBytes = ok ? liveBytes : 0;
+        ev.commit();
+    }
+//finish a LIST/RETR event
+    private void commandEvent(Events.Pop3Command ev, String cmd, long bytes) {
+        ev.end();
+        if (!ev.shouldCommit()) return;
+        ev.command = cmd;
+        ev.user = box.getUser();
+        ev.messages = liveCount;
+        ev.mailboxBytes = liveBytes;
+        ev.bytes = bytes;
+        ev.commit();
+    }
+
 //Send greeting message
     private void greet(BufferedWriter out) throws IOException {
         ok(out, cfg.serverName + " POP3 ready");
     }
 //Check if message index is valid
     private boolean inRange(int i) { return i >= 1 && i <= box.count(); }
-//Count of messages not marked for deletion
-    private int visibleCount() {
-        int total = 0;
-        for (int i = 1; i <= box.count(); i++) if (!del.contains(i)) total++;
-        return total;
-    }
-//Calculate total size of messages not marked for deletion
-    private long visibleBytes() {
-        long sum = 0;
-        for (int i = 1; i <= box.count(); i++) {
-            if (del.contains(i)) continue;
-            sum += safeSize(i);
-        }
-        return sum;
+//Clear deletion marks and take the totals from the mailbox index
+    private void resetTotals() {
+        del.clear();
+        liveCount = box.count();
+        liveBytes = box.totalSize();
     }
 //Safely get size of a message
     private long safeSize(int i) {
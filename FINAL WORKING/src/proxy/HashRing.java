@@ -0,0 +1,44 @@
+package proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import util.Config;
+
+//Consistent hash ring of backend nodes. Every node is put on the ring at vnodes * weight
+//points hashed from its name, and a user belongs to the first point at or after the hash of
+//its name. Adding a node only takes over the arcs in front of its own points, so roughly
+//1/n of the users move and everyone else stays where their mailbox already is.
+public final class HashRing {
+    private final TreeMap<Long, Config.Backend> ring = new TreeMap<>();
+
+    public HashRing(Collection<Config.Backend> nodes, int vnodes) {
+        for (Config.Backend b : nodes) {
+            int points = Math.max(1, vnodes * Math.max(1, b.weight));
+//a collision keeps the first node, whichever config order that is it stays the same every start
+            for (int i = 0; i < points; i++) ring.putIfAbsent(hash(b.name + "#" + i), b);
+        }
+    }
+
+//node that owns this mailbox
+    public Config.Backend node(String user) {
+        Map.Entry<Long, Config.Backend> e = ring.ceilingEntry(hash(user));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+//first 8 bytes of the MD5 of the key, spreads well and is the same on every JVM
+    static long hash(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 missing", e);
+        }
+    }
+}
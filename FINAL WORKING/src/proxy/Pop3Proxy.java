@@ -0,0 +1,156 @@
+package proxy;
+
+import merrimackutil.net.Log;
+import util.Config;
+import util.LineReader;
+import util.Metrics;
+import util.Tls;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+//One POP3 client on the proxy. Answers the greeting, CAPA and STLS itself, and on USER picks
+//the node that owns the mailbox, replays USER there and from then on only moves bytes.
+public class Pop3Proxy implements Runnable {
+    private final Socket sk;
+    private final Config.ProxyConfig cfg;
+    private final HashRing ring;
+    private final Log lg;
+    private final SSLContext tls;// shared TLS context for STLS, null when not configured
+
+    public Pop3Proxy(Socket sk, Config.ProxyConfig cfg, HashRing ring, Log lg, SSLContext tls) {
+        this.sk = sk;
+        this.cfg = cfg;
+        this.ring = ring;
+        this.lg = lg;
+        this.tls = tls;
+    }
+
+    @Override
+    public void run() {
+//the socket in use, swapped for the TLS one after STLS (closed in finally)
+        Socket s = sk;
+        Socket back = null;
+        try {
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
+            LineReader in = new LineReader(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            line(out, "+OK " + cfg.serverName + " POP3 proxy ready");
+            String l;
+            while ((l = in.readLine()) != null) {
+                String raw = l.trim();
+                String up = raw.toUpperCase(Locale.ROOT);
+                if (up.equals("CAPA")) {
+                    line(out, "+OK capability list follows");
+                    line(out, "USER");
+                    if (tls != null && !(s instanceof SSLSocket)) line(out, "STLS");
+                    line(out, ".");
+                } else if (up.equals("STLS")) {
+                    if (tls == null) { line(out, "-ERR TLS not available"); continue; }
+                    if (s instanceof SSLSocket) { line(out, "-ERR TLS already active"); continue; }
+                    line(out, "+OK begin TLS negotiation");
+                    s = Tls.upgrade(s, tls, "proxy-pop3");
+                    in.reset(s.getInputStream());
+                    out = new BufferedOutputStream(s.getOutputStream());
+                } else if (up.startsWith("USER ")) {
+                    String user = raw.substring(5).trim();
+                    Config.Backend node = ring.node(user);
+                    try {
+                        back = ProxyServer.connect(node, node.pop3, cfg);
+                    } catch (IOException e) {
+                        lg.log("pop3 " + user + " -> " + node.name + " down: " + e.getMessage());
+                        line(out, "-ERR [SYS/TEMP] mailbox node unavailable, try again later");
+                        continue;
+                    }
+                    LineReader bin = new LineReader(back.getInputStream());
+                    OutputStream bout = back.getOutputStream();
+                    String greet = bin.readLine();
+                    if (greet == null || !greet.startsWith("+OK")) {
+                        back.close();
+                        back = null;
+                        line(out, "-ERR [SYS/TEMP] mailbox node unavailable, try again later");
+                        continue;
+                    }
+                    bout.write(("USER " + user + "\r\n").getBytes(StandardCharsets.UTF_8));
+                    bout.flush();
+                    String r = bin.readLine();
+                    if (r == null) throw new IOException("node " + node.name + " closed");
+                    line(out, r);
+                    if (!r.startsWith("+OK")) { back.close(); back = null; continue; }
+                    lg.log("pop3 " + user + " -> " + node.name);
+                    Metrics.inc("proxy.pop3." + node.name);
+//the rest of the session is the node's, anything either side already sent goes first
+                    in.copy(bout, in.buffered());
+                    bout.flush();
+                    splice(s, back, bin);
+                    return;
+                } else if (up.equals("QUIT")) {
+                    line(out, "+OK bye");
+                    break;
+                } else {
+                    line(out, "-ERR USER first");
+                }
+            }
+        } catch (IOException e) {
+            lg.log("io " + e.getMessage());
+        } finally {
+            close(back);
+            close(s);
+        }
+    }
+
+//Copy bytes both ways until one side is done, client to node on a helper thread and node
+//to client here. The client closing half-closes the node so its last reply still comes back.
+//The node runs its own idle timer and closes a quiet session, so our read timeouts come off
+//here; left on, a client thinking between commands would have its session cut under it.
+    private void splice(Socket client, Socket back, LineReader bin) throws IOException {
+        client.setSoTimeout(0);
+        back.setSoTimeout(0);
+        OutputStream cout = client.getOutputStream();
+        bin.copy(cout, bin.buffered());
+        cout.flush();
+        Thread up = new Thread(() -> {
+            try {
+                pump(client.getInputStream(), back.getOutputStream());
+                back.shutdownOutput();
+            } catch (IOException e) {
+                close(back);
+            }
+        }, "proxy-pop3-up");
+        up.setDaemon(true);
+        up.start();
+        try {
+            pump(back.getInputStream(), cout);
+        } catch (IOException e) {
+//node gone or the client stopped reading, either way the session is over
+        }
+    }
+
+//copy until end of stream, flushing each read so interactive replies are not held back
+    private static void pump(InputStream from, OutputStream to) throws IOException {
+        byte[] buf = new byte[16 * 1024];
+        int n;
+        while ((n = from.read(buf)) > 0) {
+            to.write(buf, 0, n);
+            to.flush();
+        }
+    }
+
+    private static void line(OutputStream out, String l) throws IOException {
+        out.write((l + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void close(Socket s) {
+        if (s == null) return;
+        try { s.close(); } catch (IOException ignore) {}
+    }
+}
@@ -0,0 +1,103 @@
+package proxy;
+
+import merrimackutil.json.InvalidJSONException;
+import merrimackutil.net.Log;
+import smtp.Aliases;
+import util.Acceptors;
+import util.Admission;
+import util.Config;
+import util.ConfigLoader;
+import util.LoggerSetup;
+import util.Metrics;
+import util.Tls;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLContext;
+
+//Front proxy for a sharded deployment. Users are spread over several SMTP/POP3 nodes by a
+//consistent hash of the mailbox name, the proxy reads just enough of each session to learn
+//who it is for (USER in POP3, RCPT TO in SMTP) and then passes the bytes to that node.
+//The nodes see every client as the proxy's address, so their per-ip limits need to be
+//raised (or the proxy listed in their relay allow) to match.
+//
+//Aliases and lists are expanded here, not on the nodes: the name of a list says nothing
+//about where its members live, so it is the members that are routed. Give the proxy the
+//alias file and leave it off the nodes. A list whose members are spread over more than one
+//node can't go in one transaction and is refused at RCPT.
+public class ProxyServer {
+
+    private final Config.ProxyConfig cfg;// config info from the server
+    private final Log lg;// writes events to log files
+    private final HashRing ring;// user -> node
+    private final SSLContext tls;// STARTTLS/STLS at the proxy, null when no keystore is configured
+    private final Aliases aliases;// alias and list table, null when none is configured
+
+    public ProxyServer(Config.ProxyConfig cfg) throws IOException, InvalidJSONException {
+        this.cfg = cfg;
+        this.lg = LoggerSetup.make(cfg.log, "proxyd");
+        this.lg.log("boot " + cfg);
+        this.ring = new HashRing(cfg.backends, cfg.vnodes);
+        Metrics.report(lg, 60);
+        this.tls = (cfg.tls != null) ? Tls.context(cfg.tls) : null;
+        this.aliases = (cfg.aliases != null)
+                ? new Aliases(ConfigLoader.locate(cfg.aliases, "aliases.json"), cfg.serverName, cfg.aliasReload, lg)
+                : null;
+    }
+
+//accept on every configured port until the sockets fail
+    public void start() {
+        List<Thread> loops = new ArrayList<>();
+        if (aliases != null) aliases.start();
+        if (cfg.pop3Port > 0) {
+            Admission adm = new Admission(cfg.limits, "proxy-pop3");
+            loops.add(new Thread(() -> listen(cfg.pop3Port, "proxy-pop3", adm, "-ERR server busy, try again later",
+                    sock -> new Pop3Proxy(sock, cfg, ring, lg, tls)), "proxy-pop3"));
+        }
+        if (cfg.smtpPort > 0) {
+            Admission adm = new Admission(cfg.limits, "proxy-smtp");
+            loops.add(new Thread(() -> listen(cfg.smtpPort, "proxy-smtp", adm, "421 server busy, try again later",
+                    sock -> new SmtpProxy(sock, cfg, ring, lg, tls, aliases)), "proxy-smtp"));
+        }
+        for (Thread t : loops) t.start();
+        for (Thread t : loops) {
+            try { t.join(); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    private void listen(int port, String name, Admission adm, String busy, Function<Socket, Runnable> handler) {
+        Acceptors.listen(port, cfg.limits.acceptors, name, adm, busy, handler, lg, "host=" + cfg.serverName + " | nodes=" + cfg.backends.size());
+    }
+
+//Open a connection to one node, timeouts in seconds from the config
+    static Socket connect(Config.Backend b, int port, Config.ProxyConfig cfg) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(b.host, port), cfg.connectTimeout * 1000);
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
+            s.setTcpNoDelay(true);
+            return s;
+        } catch (IOException e) {
+            s.close();
+            Metrics.inc("proxy.down." + b.name);
+            throw e;
+        }
+    }
+
+    public static ProxyServer fromFile(String cfgPath) throws Exception {// loads config and builds the proxy
+        return new ProxyServer(ConfigLoader.loadProxy(ConfigLoader.locate(cfgPath, "proxyd.json")));
+    }
+
+    public static void main(String[] args) {
+        try {
+            fromFile(args.length > 0 ? args[0] : null).start();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package proxy;
+
+import merrimackutil.net.Log;
+import smtp.Aliases;
+import util.Config;
+import util.LineReader;
+import util.Metrics;
+import util.Tls;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+//One SMTP client on the proxy. The envelope is read here, the first RCPT TO picks the node
+//that owns that mailbox and MAIL, RCPT and the body are passed to it, with its replies going
+//back to the client unchanged. A transaction stays on one node: a recipient owned by another
+//one gets 452, which tells the client to send that copy in a transaction of its own.
+//An alias or list is expanded here and its members passed on as recipients of their own,
+//so they land where their mailboxes are.
+public class SmtpProxy implements Runnable {
+
+//an open connection to one node, kept for the rest of the client's session
+    private static final class Link {
+        final Config.Backend node;
+        final Socket sk;
+        final LineReader in;
+        final OutputStream out;
+//code of the last reply
+        int code;
+
+        Link(Config.Backend node, Socket sk) throws IOException {
+            this.node = node;
+            this.sk = sk;
+            this.in = new LineReader(sk.getInputStream());
+            this.out = new BufferedOutputStream(sk.getOutputStream(), 64 * 1024);
+        }
+
+//send one command line and return the whole reply, CRLFs included
+        String cmd(String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return reply();
+        }
+
+        String reply() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            String l;
+            do {
+                l = in.readLine();
+                if (l == null || l.length() < 3) throw new IOException("node " + node.name + " closed");
+                sb.append(l).append("\r\n");
+            } while (l.length() > 3 && l.charAt(3) == '-');
+            try { code = Integer.parseInt(l.substring(0, 3)); }
+            catch (NumberFormatException e) { throw new IOException("bad reply from " + node.name + ": " + l); }
+            return sb.toString();
+        }
+
+        void close() {
+            try { out.write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII)); out.flush(); } catch (IOException ignore) {}
+            try { sk.close(); } catch (IOException ignore) {}
+        }
+    }
+
+//Output wrapper for a body on its way to a node: a failed write is remembered and the rest
+//thrown away, so the client's body is still read to its end and gets a proper reply
+    private static final class Sink extends OutputStream {
+        private final OutputStream o;
+        IOException err;
+        Sink(OutputStream o) { this.o = o; }
+        @Override public void write(int b) { write(new byte[]{ (byte) b }, 0, 1); }
+        @Override public void write(byte[] b, int off, int len) {
+            if (err != null) return;
+            try { o.write(b, off, len); } catch (IOException e) { err = e; }
+        }
+    }
+
+    private final Socket sk;
+    private final Config.ProxyConfig cfg;
+    private final HashRing ring;
+    private final Log lg;
+    private final SSLContext tls;// shared TLS context for STARTTLS, null when not configured
+    private final Aliases aliases;// alias and list table, null when there is none
+//node name -> open link
+    private final Map<String, Link> links = new HashMap<>();
+//what the client said in HELO/EHLO, replayed to each node we open
+    private String helo = null;
+//the MAIL FROM line of the current transaction, node it is bound to and recipients taken
+    private String mail = null;
+    private Link bound = null;
+    private int rcpts = 0;
+
+    public SmtpProxy(Socket sk, Config.ProxyConfig cfg, HashRing ring, Log lg, SSLContext tls, Aliases aliases) {
+        this.sk = sk;
+        this.cfg = cfg;
+        this.ring = ring;
+        this.lg = lg;
+        this.tls = tls;
+        this.aliases = aliases;
+    }
+
+    @Override
+    public void run() {
+//the socket in use, swapped for the TLS one after STARTTLS
+        Socket s = sk;
+        try {
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
+            LineReader in = new LineReader(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            send(out, "220 " + cfg.serverName + " ESMTP proxy ready");
+            String line;
+            while ((line = idle(in, out)) != null) {
+                String raw = line.trim();
+                String up = raw.toUpperCase(Locale.ROOT);
+                if (up.startsWith("HELO ") || up.startsWith("EHLO ")) {
+                    resetTx();
+                    helo = raw;
+                    String hello = "250" + (up.startsWith("EHLO ") ? "-" : " ") + cfg.serverName + " hello " + raw.substring(5).trim();
+                    if (up.startsWith("HELO ")) { send(out, hello); continue; }
+                    StringBuilder sb = new StringBuilder(hello).append("\r\n");
+                    sb.append("250-SIZE ").append(cfg.maxMessageSize).append("\r\n");
+                    sb.append("250-PIPELINING\r\n250-8BITMIME\r\n250-CHUNKING\r\n");
+                    if (tls != null && !(s instanceof SSLSocket)) sb.append("250-STARTTLS\r\n");
+                    sb.append("250 BINARYMIME");
+                    send(out, sb.toString());
+                } else if (up.equals("STARTTLS")) {
+                    if (tls == null) { send(out, "454 TLS not available"); continue; }
+                    if (s instanceof SSLSocket) { send(out, "503 TLS already active"); continue; }
+                    send(out, "220 ready to start TLS");
+                    s = Tls.upgrade(s, tls, "proxy-smtp");
+                    in.reset(s.getInputStream());
+                    out = new BufferedOutputStream(s.getOutputStream());
+                    resetTx();
+                    helo = null;
+                } else if (up.startsWith("MAIL FROM:")) {
+                    if (helo == null || mail != null) { send(out, "503 seq"); continue; }
+                    if (raw.indexOf('<') < 0 || raw.indexOf('>') < 0) { send(out, "501 MAIL FROM:<user@host>"); continue; }
+//held until the first recipient says which node gets it
+                    mail = raw;
+                    send(out, "250 ok");
+                } else if (up.startsWith("RCPT TO:")) {
+                    if (mail == null) { send(out, "503 seq"); continue; }
+                    rcpt(out, raw);
+                } else if (up.equals("DATA")) {
+                    if (bound == null || rcpts == 0) { send(out, "554 no valid recipients"); continue; }
+                    data(in, out);
+                } else if (up.startsWith("BDAT ")) {
+                    bdat(in, out, raw);
+                } else if (up.equals("RSET")) {
+                    resetTx();
+                    send(out, "250 ok");
+                } else if (up.equals("NOOP")) {
+                    send(out, "250 ok");
+                } else if (up.equals("QUIT")) {
+                    send(out, "221 bye");
+                    break;
+                } else {
+                    send(out, "502 nope");
+                }
+            }
+        } catch (IOException e) {
+            lg.log("io " + e.getMessage());
+        } finally {
+            for (Link l : links.values()) l.close();
+            try { s.close(); } catch (IOException ignore) {}
+        }
+    }
+
+//RCPT TO: find the owner's node, bind the transaction to it on the first one and pass the command on.
+//An alias goes to the one node holding its local members, each member as its own RCPT.
+    private void rcpt(OutputStream out, String raw) throws IOException {
+        int lt = raw.indexOf('<');
+        int gt = raw.indexOf('>', lt + 1);
+        String addr = (lt >= 0 && gt > lt) ? raw.substring(lt + 1, gt).trim() : "";
+        int at = addr.lastIndexOf('@');
+        if (at <= 0) { send(out, "501 RCPT TO:<user@host>"); return; }
+        boolean local = addr.substring(at + 1).equalsIgnoreCase(cfg.serverName);
+        if (!local && !relayAllowed()) { send(out, "550 relaying denied"); return; }
+        List<String> list = local && aliases != null ? aliases.expand(addr.substring(0, at)) : null;
+//local mail goes where the mailbox lives, outbound mail can leave from any node
+        Config.Backend node = null;
+        for (String t : list != null ? list : List.of(addr)) {
+            Config.Backend n = owner(t);
+            if (n == null) continue;
+            if (node != null && n != node) {
+                Metrics.inc("proxy.smtp.spread");
+                lg.log("smtp list " + addr + " has members on " + node.name + " and " + n.name);
+                send(out, "550 5.3.3 " + addr + " has members on more than one mailbox node, send to them directly");
+                return;
+            }
+            node = n;
+        }
+        if (node == null) node = bound != null ? bound.node : ring.node(addr.toLowerCase(Locale.ROOT));
+        if (bound != null && bound.node != node) {
+            Metrics.inc("proxy.smtp.split");
+            send(out, "452 4.5.3 recipient is on another node, send it separately");
+            return;
+        }
+        try {
+            if (bound == null) {
+                Link l = link(node);
+                String r = l.cmd(mail);
+                if (l.code / 100 != 2) { send(out, r.trim()); return; }
+                bound = l;
+            }
+            if (list == null) {
+                String r = bound.cmd(raw);
+                if (bound.code / 100 == 2) rcpts++;
+                send(out, r.trim());
+                return;
+            }
+//the list is taken if any member is, otherwise the client hears the last refusal
+            int n = 0;
+            String r = "550 5.1.1 " + addr + " has no deliverable members";
+            for (String t : list) {
+                String m = bound.cmd("RCPT TO:<" + t + ">");
+                if (bound.code / 100 == 2) n++;
+                else r = m.trim();
+            }
+            rcpts += n;
+            send(out, n > 0 ? "250 ok, " + n + " recipients" : r);
+        } catch (IOException e) {
+            lg.log("smtp " + addr + " -> " + node.name + " down: " + e.getMessage());
+            drop(node);
+            send(out, "451 4.4.1 mailbox node unavailable, try again later");
+        }
+    }
+
+//node holding the mailbox of a local address, null for an address in another domain
+    private Config.Backend owner(String addr) {
+        int at = addr.lastIndexOf('@');
+        if (at <= 0 || !addr.substring(at + 1).equalsIgnoreCase(cfg.serverName)) return null;
+        return ring.node(addr.substring(0, at));
+    }
+
+//DATA: the body goes to the bound node exactly as the client sent it
+    private void data(LineReader in, OutputStream out) throws IOException {
+        Link l = bound;
+        String r;
+        try {
+            r = l.cmd("DATA");
+        } catch (IOException e) {
+            drop(l.node);
+            send(out, "451 4.4.2 mailbox node connection lost");
+            return;
+        }
+        if (l.code != 354) { send(out, r.trim()); return; }
+        send(out, "354 end with .");
+        Sink sink = new Sink(l.out);
+        long n = in.copyDotData(sink);
+        if (n < 0) throw new IOException("client closed in DATA");
+        try {
+            if (sink.err != null) throw sink.err;
+            l.out.flush();
+            r = l.reply();
+        } catch (IOException e) {
+            drop(l.node);
+            send(out, "451 4.4.2 mailbox node connection lost");
+            return;
+        }
+        Metrics.add("proxy.smtp.bytes." + l.node.name, n);
+        lg.log("smtp " + rcpts + " rcpt, " + n + " bytes -> " + l.node.name + " " + l.code);
+        endTx();
+        send(out, r.trim());
+    }
+
+//BDAT <size> [LAST]: the chunk is passed through as it arrives, a chunk with nowhere to go is read and refused
+    private void bdat(LineReader in, OutputStream out, String raw) throws IOException {
+        String[] p = raw.substring(5).trim().split("\\s+");
+        long size;
+        try { size = Long.parseLong(p[0]); } catch (NumberFormatException e) { send(out, "501 BDAT <size> [LAST]"); return; }
+        boolean last = p.length > 1 && p[1].equalsIgnoreCase("LAST");
+        if (bound == null || rcpts == 0) { in.copy(null, size); send(out, "503 no valid recipients"); return; }
+        Link l = bound;
+        Sink sink = new Sink(l.out);
+        sink.write((raw + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        in.copy(sink, size);
+        String r;
+        try {
+            if (sink.err != null) throw sink.err;
+            l.out.flush();
+            r = l.reply();
+        } catch (IOException e) {
+            drop(l.node);
+            send(out, "451 4.4.2 mailbox node connection lost");
+            return;
+        }
+        Metrics.add("proxy.smtp.bytes." + l.node.name, size);
+        if (last || l.code / 100 != 2) {
+            if (last) lg.log("smtp " + rcpts + " rcpt, chunked -> " + l.node.name + " " + l.code);
+            endTx();
+        }
+        send(out, r.trim());
+    }
+
+//open link to a node, connected and greeted on first use
+    private Link link(Config.Backend node) throws IOException {
+        Link l = links.get(node.name);
+        if (l != null) return l;
+        l = new Link(node, ProxyServer.connect(node, node.smtp, cfg));
+        try {
+            l.reply();
+            if (l.code != 220) throw new IOException("node " + node.name + " greeted " + l.code);
+            l.cmd(helo);
+            if (l.code != 250) throw new IOException("node " + node.name + " refused " + helo);
+        } catch (IOException e) {
+            l.close();
+            throw e;
+        }
+        links.put(node.name, l);
+        Metrics.inc("proxy.smtp." + node.name);
+        return l;
+    }
+
+//forget a broken link, the transaction on it is gone too
+    private void drop(Config.Backend node) {
+        Link l = links.remove(node.name);
+        if (l != null) l.close();
+        if (bound != null && bound.node == node) endTx();
+    }
+
+//abandon the transaction here and on its node
+    private void resetTx() {
+        if (bound != null) {
+            try { bound.cmd("RSET"); } catch (IOException e) { drop(bound.node); }
+        }
+        endTx();
+    }
+
+//the transaction is finished on the node, start over
+    private void endTx() { mail = null; bound = null; rcpts = 0; }
+
+//true if this client's address matches one of the relay allow prefixes
+    private boolean relayAllowed() {
+        String ip = sk.getInetAddress().getHostAddress();
+        for (String pre : cfg.relayAllow) if (ip.startsWith(pre)) return true;
+        return false;
+    }
+
+//Read the next command, on timeout tell the client and end the session
+    private String idle(LineReader in, OutputStream out) throws IOException {
+        try {
+            return in.readLine();
+        } catch (SocketTimeoutException e) {
+            send(out, "421 " + cfg.serverName + " idle timeout");
+            return null;
+        }
+    }
+
+//write a reply (one or more lines) and flush it
+    private static void send(OutputStream out, String r) throws IOException {
+        out.write((r + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
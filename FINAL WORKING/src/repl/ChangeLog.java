@@ -0,0 +1,245 @@
+package repl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Append-only log of spool changes, one text line per change:
+//  <bytes> <millis> A <user> <name> <size>     message added
+//  <bytes> <millis> D <user> <name>            message deleted
+//bytes is the running total of message bytes added, so two positions give the lag in mail
+//bytes. A change's position is its byte offset in the whole log, which is what followers ack.
+//
+//The file only holds the log from some position on, given in its name (changes-<pos>.log,
+//plain changes.log is from 0). trim() drops the changes every follower already has by
+//copying the rest to a new file and switching to it, so positions stay as they were.
+final class ChangeLog {
+//one parsed line, next is the offset just after it
+    static final class Rec {
+        long pos, next, cum, time, size;
+        char kind;
+        String user, name;
+    }
+
+    private final Path dir;
+    private final boolean fresh;
+//readers hold it shared, trim() takes it alone while it swaps the file
+    private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+    private FileChannel ch;
+    private Path file;
+//log position of the file's first byte, of its last line, and just past the end
+    private long base;
+    private long tail;
+    private long end;
+    private long cum;
+
+    ChangeLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        List<Path> old = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "changes*")) {
+            for (Path p : ds) {
+                long b = baseOf(p);
+//a trim cut short before its copy was complete
+                if (b < 0) { if (p.getFileName().toString().endsWith(".tmp")) Files.delete(p); continue; }
+                if (file == null || b > base) {
+                    if (file != null) old.add(file);
+                    file = p;
+                    base = b;
+                } else old.add(p);
+            }
+        }
+//a trim cut short after its copy was in place leaves the file it replaced
+        for (Path p : old) Files.delete(p);
+        fresh = file == null;
+        if (file == null) file = dir.resolve("changes.log");
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = ch.size();
+//a crash mid line leaves a partial one at the end, cut back to the last whole line
+        long keep = size;
+        while (keep > 0 && !endsLine(keep)) keep--;
+        if (keep != size) ch.truncate(keep);
+        end = base + keep;
+        tail = base + Math.max(0, last(keep));
+        List<Rec> t = read(tail, 1, Long.MAX_VALUE);
+        cum = t.isEmpty() ? 0 : t.get(0).cum;
+    }
+
+//true when there was no log before, so it starts out empty
+    boolean isNew() { return fresh; }
+
+//true if dir already holds a change log
+    static boolean exists(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return false;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "changes*.log")) {
+            for (Path p : ds) if (baseOf(p) >= 0) return true;
+        }
+        return false;
+    }
+
+//Add one change, followers waiting for news are woken
+    synchronized void append(char kind, String user, String name, long size) throws IOException {
+        if (kind == 'A') cum += size;
+        String line = cum + " " + System.currentTimeMillis() + " " + kind + " " + user + " " + name + (kind == 'A' ? " " + size : "") + "\n";
+        ByteBuffer b = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (b.hasRemaining()) ch.write(b, end - base + b.position());
+        tail = end;
+        end += b.limit();
+        notifyAll();
+    }
+
+    synchronized long end() { return end; }
+    synchronized long cum() { return cum; }
+//first position still in the log
+    synchronized long start() { return base; }
+//bytes the log takes on disk
+    synchronized long size() { return end - base; }
+
+//wait up to ms for something after pos, true when there is
+    synchronized boolean await(long pos, long ms) throws InterruptedException {
+        if (end <= pos) wait(ms);
+        return end > pos;
+    }
+
+//Drop the changes before pos. The last change always stays, a reopened log takes its
+//running total from it. Appends wait while the rest is copied, readers while the files
+//are switched. True when anything was dropped.
+    synchronized boolean trim(long pos) throws IOException {
+        long to = Math.min(pos, tail);
+        if (to <= base) return false;
+//a whole line has to start there, otherwise the new file would begin mid change
+        if (to != end && !at0(to)) throw new IOException("no change starts at " + to);
+        Path next = dir.resolve("changes-" + to + ".log");
+        Path tmp = dir.resolve("changes-" + to + ".log.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long n = end - to;
+            long done = 0;
+            while (done < n) done += ch.transferTo(to - base + done, n - done, out);
+            out.force(true);
+        }
+        Files.move(tmp, next, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel nch = FileChannel.open(next, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        swap.writeLock().lock();
+        try {
+            ch.close();
+            ch = nch;
+            Files.delete(file);
+            file = next;
+            base = to;
+        } finally {
+            swap.writeLock().unlock();
+        }
+        return true;
+    }
+
+//Changes from pos on, stops after max of them or once their message bytes pass maxBytes
+//(at least one is always returned when there is one)
+    List<Rec> read(long pos, int max, long maxBytes) throws IOException {
+//taken before the read lock, trim() holds this object's lock while it waits for that one
+        long stop = end();
+        swap.readLock().lock();
+        try {
+            return read(pos, stop, max, maxBytes);
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    private List<Rec> read(long pos, long stop, int max, long maxBytes) throws IOException {
+        if (pos < base) throw new IOException("position " + pos + " was trimmed, the log starts at " + base);
+        List<Rec> out = new ArrayList<>();
+        long bytes = 0;
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        while (pos < stop && out.size() < max && (out.isEmpty() || bytes < maxBytes)) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), stop - pos));
+            while (buf.hasRemaining() && ch.read(buf, pos - base + buf.position()) > 0) { }
+            byte[] a = buf.array();
+            int n = buf.position();
+            int from = 0;
+            for (int i = 0; i < n && out.size() < max && (out.isEmpty() || bytes < maxBytes); i++) {
+                if (a[i] != '\n') continue;
+                Rec r = parse(new String(a, from, i - from, StandardCharsets.UTF_8));
+                r.pos = pos + from;
+                r.next = pos + i + 1;
+                out.add(r);
+                bytes += r.size;
+                from = i + 1;
+            }
+            if (from == 0) throw new IOException("change log line too long at " + pos);
+            pos += from;
+        }
+        return out;
+    }
+
+//the change at pos, null past the end
+    Rec at(long pos) throws IOException {
+        List<Rec> r = read(pos, 1, Long.MAX_VALUE);
+        return r.isEmpty() ? null : r.get(0);
+    }
+
+    private static Rec parse(String line) throws IOException {
+        String[] f = line.split(" ");
+        if (f.length < 5) throw new IOException("bad change log line: " + line);
+        Rec r = new Rec();
+        try {
+            r.cum = Long.parseLong(f[0]);
+            r.time = Long.parseLong(f[1]);
+            r.kind = f[2].charAt(0);
+            r.user = f[3];
+            r.name = f[4];
+            r.size = r.kind == 'A' && f.length > 5 ? Long.parseLong(f[5]) : 0;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad change log line: " + line);
+        }
+        return r;
+    }
+
+//log position of a file name, -1 for anything else
+//message name of a file, an imported one can land in cur/ with its flags on the end
+    static String name(Path file) {
+        String n = file.getFileName().toString();
+        int c = n.indexOf(":2,");
+        return c < 0 ? n : n.substring(0, c);
+    }
+
+    private static long baseOf(Path p) {
+        String n = p.getFileName().toString();
+        if (n.equals("changes.log")) return 0;
+        if (!n.startsWith("changes-") || !n.endsWith(".log")) return -1;
+        try {
+            return Long.parseLong(n.substring(8, n.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+//true if a line starts at log position pos
+    private boolean at0(long pos) throws IOException {
+        return pos == base || endsLine(pos - base);
+    }
+
+//true if the byte before file offset off is a line end
+    private boolean endsLine(long off) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1);
+        ch.read(b, off - 1);
+        return b.get(0) == '\n';
+    }
+
+//file offset of the last whole line before off, -1 when there is none
+    private long last(long off) throws IOException {
+        if (off == 0) return -1;
+        long p = off - 1;
+        while (p > 0 && !endsLine(p)) p--;
+        return p;
+    }
+}
@@ -0,0 +1,140 @@
+package repl;
+
+import merrimackutil.net.Log;
+import maildir.MailBoxException;
+import maildir.MailStore;
+import util.Config;
+import util.LoggerSetup;
+import util.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//Follower end of spool replication (see Primary for the wire format). Applies each batch
+//to the local spool through MailStore, then saves the position (<spool>/.repl/applied)
+//and acks it. Adds and deletes are by message name and skip what is already done, so a
+//batch replayed after a crash between applying and saving changes nothing.
+public class Follower {
+    private final Config.ReplConfig cfg;
+    private final Log lg;
+    private final MailStore store;
+    private final Path state;
+//position in the primary's log and the message bytes up to it
+    private long pos = 0;
+    private long cum = 0;
+
+    public Follower(Config.ReplConfig cfg) throws IOException, MailBoxException {
+        this.cfg = cfg;
+        this.lg = LoggerSetup.make(cfg.log, "repl");
+        this.lg.log("boot " + cfg);
+        this.store = MailStore.of(cfg.spool);
+        this.state = Paths.get(cfg.spool, ".repl", "applied");
+        Files.createDirectories(state.getParent());
+        if (Files.exists(state)) {
+            String[] f = new String(Files.readAllBytes(state), StandardCharsets.UTF_8).trim().split(" ");
+            pos = Long.parseLong(f[0]);
+            cum = Long.parseLong(f[1]);
+        }
+        Metrics.report(lg, 60);
+    }
+
+//Follow the primary for good, reconnecting after a pause whenever the link drops
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    follow();
+                } catch (IOException | MailBoxException e) {
+                    lg.log("primary " + cfg.primary + ": " + e.getMessage());
+                    Metrics.inc("repl.reconnects");
+                }
+                try { Thread.sleep(cfg.retry * 1000L); } catch (InterruptedException e) { return; }
+            }
+        }, "repl-follow");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void follow() throws IOException, MailBoxException {
+        int c = cfg.primary.lastIndexOf(':');
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(cfg.primary.substring(0, c), Integer.parseInt(cfg.primary.substring(c + 1))), 10000);
+            s.setSoTimeout(cfg.heartbeat * 3000);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF("FOLLOW");
+            out.writeUTF(cfg.name);
+            out.writeLong(pos);
+            out.writeLong(cum);
+            out.flush();
+            lg.log("following " + cfg.primary + " from " + pos);
+            while (true) {
+                long next = in.readLong();
+                long nextCum = in.readLong();
+                long time = in.readLong();
+                long logEnd = in.readLong();
+                long logCum = in.readLong();
+                int n = in.readInt();
+                byte[] z = new byte[in.readInt()];
+                in.readFully(z);
+                if (n > 0) apply(n, z);
+                if (next != pos) save(next, nextCum);
+                out.writeLong(pos);
+                out.flush();
+//behind by the message bytes still to come, and by how old the newest change here is
+//when there is more waiting
+                Metrics.set("repl.lag.bytes", logCum - cum);
+                Metrics.set("repl.lag.ms", pos >= logEnd ? 0 : Math.max(0, System.currentTimeMillis() - time));
+            }
+        }
+    }
+
+//apply one batch of changes in order
+    private void apply(int n, byte[] z) throws IOException, MailBoxException {
+        try (DataInputStream d = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(z)))) {
+            for (int i = 0; i < n; i++) {
+                int kind = d.readByte();
+                String user = d.readUTF();
+                String name = d.readUTF();
+                if (user.isEmpty() || user.startsWith(".") || user.indexOf('/') >= 0 || user.indexOf('\\') >= 0) {
+                    throw new IOException("bad user name from primary: " + user);
+                }
+                if (kind == 'A') {
+                    long size = d.readLong();
+                    store.open(user).addCopy(name, d, size);
+                    Metrics.add("repl.applied.bytes", size);
+                } else if (kind == 'D') {
+                    store.open(user).removeNames(List.of(name));
+                } else {
+                    throw new IOException("bad change kind " + kind);
+                }
+                Metrics.inc("repl.applied");
+            }
+        }
+    }
+
+//remember how far we got, via tmp so a crash keeps the old position
+    private void save(long next, long nextCum) throws IOException {
+        Path tmp = state.resolveSibling("applied.tmp");
+        Files.write(tmp, (next + " " + nextCum + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, state, REPLACE_EXISTING, ATOMIC_MOVE);
+        pos = next;
+        cum = nextCum;
+    }
+}
@@ -0,0 +1,380 @@
+package repl;
+
+import merrimackutil.net.Log;
+import maildir.MailBox;
+import maildir.MailBoxException;
+import maildir.MailBoxListener;
+import maildir.MailStore;
+import util.Config;
+import util.LoggerSetup;
+import util.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+//Primary end of spool replication. Every add and delete in this process goes into the
+//change log (<spool>/.repl/changes*.log) and each connected follower gets the log from
+//where it left off, in deflated batches, one batch in flight at a time.
+//
+//How far each follower got is kept in <spool>/.repl/followers, so a restart still knows
+//what they need. Once the log passes log-max the changes all of them have are trimmed off;
+//a follower away for longer than forget stops counting. A follower starting from 0 after
+//that first gets a copy of the spool as it is and then the log from where it now starts.
+//
+//Wire format, all numbers big endian:
+//  follower -> primary   "FOLLOW" name (writeUTF x2), position, message bytes there (longs)
+//  primary -> follower   batch: end position, message bytes at end, time of last change,
+//                        log end, log message bytes (longs), changes (int), deflated
+//                        length (int), then the deflated changes:
+//                          'A' user name size <size bytes>  |  'D' user name
+//  follower -> primary   position applied (long), after every batch
+//A batch with no changes is the heartbeat. Only changes made through MailStore in this
+//process are seen, so the primary has to run delivery, POP3 and IMAP in one Launcher.
+public class Primary implements MailBoxListener {
+    private final Config.ReplConfig cfg;
+    private final Log lg;
+    private final MailStore store;
+    private final ChangeLog log;
+//follower name -> {position acked, message bytes acked, millis of its last ack}, kept after
+//it disconnects so its lag keeps growing until it is back
+    private final Map<String, long[]> followers = new ConcurrentHashMap<>();
+//where that map is saved, and whether it changed since
+    private final Path acks;
+    private volatile boolean dirty = false;
+
+    public Primary(Config.ReplConfig cfg) throws IOException, MailBoxException {
+        this.cfg = cfg;
+        this.lg = LoggerSetup.make(cfg.log, "repl");
+        this.lg.log("boot " + cfg);
+        this.store = MailStore.of(cfg.spool);
+        this.log = new ChangeLog(Paths.get(cfg.spool, ".repl"));
+//a new log starts with everything already in the spool, so position 0 is a full copy
+        if (log.isNew()) seed();
+        this.acks = Paths.get(cfg.spool, ".repl", "followers");
+        loadAcks();
+//registered before any service runs, so no change can slip in between
+        store.addListener(this);
+        Metrics.report(lg, 60);
+    }
+
+//Start accepting followers and the lag gauge updates
+    public void start() {
+        Thread acc = new Thread(this::listen, "repl-accept");
+        acc.setDaemon(true);
+        acc.start();
+        Thread gauge = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(1000); } catch (InterruptedException e) { return; }
+                for (Map.Entry<String, long[]> f : followers.entrySet()) lag(f.getKey(), f.getValue());
+                tend();
+            }
+        }, "repl-lag");
+        gauge.setDaemon(true);
+        gauge.start();
+    }
+
+    @Override
+    public void delivered(MailBox box, Path file) {
+        try {
+            log.append('A', box.getUser(), ChangeLog.name(file), Files.size(file));
+        } catch (IOException e) {
+            lg.log("change log write failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void removed(MailBox box, Collection<String> names) {
+        try {
+            for (String n : names) log.append('D', box.getUser(), n, 0);
+        } catch (IOException e) {
+            lg.log("change log write failed: " + e.getMessage());
+        }
+    }
+
+//every message already in the spool, in each box's uid order
+    private void seed() throws IOException, MailBoxException {
+        long n = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(cfg.spool))) {
+            for (Path d : ds) {
+                String user = d.getFileName().toString();
+                if (user.startsWith(".") || !Files.isDirectory(d.resolve("new"))) continue;
+                for (MailBox.Entry e : store.open(user).entries()) {
+                    log.append('A', user, e.name(), e.size());
+                    n++;
+                }
+            }
+        }
+        lg.log("change log started with " + n + " messages");
+    }
+
+    private void listen() {
+        try (ServerSocket srv = new ServerSocket(cfg.port)) {
+            lg.log("listen " + cfg.port + " | spool=" + cfg.spool);
+            while (true) {
+                Socket sock = srv.accept();
+                String ip = sock.getInetAddress().getHostAddress();
+                boolean ok = false;
+                for (String pre : cfg.allow) if (ip.startsWith(pre)) ok = true;
+                if (!ok) {
+                    lg.log("refused follower " + ip);
+                    sock.close();
+                    continue;
+                }
+                Thread t = new Thread(() -> ship(sock), "repl-ship-" + ip);
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            lg.log("fatal " + e.getMessage());
+        }
+    }
+
+//Feed one follower until it goes away
+    private void ship(Socket sock) {
+        String name = "?";
+        try (Socket s = sock) {
+            s.setSoTimeout(cfg.heartbeat * 3000);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            if (!"FOLLOW".equals(in.readUTF())) throw new IOException("not a follower");
+            name = in.readUTF();
+            long pos = in.readLong();
+            long[] st = new long[] {pos, in.readLong(), System.currentTimeMillis()};
+            if (pos < 0 || pos > log.end()) throw new IOException("follower " + name + " is at " + pos + ", past the log end " + log.end());
+            long start = log.start();
+            if (pos < start && pos != 0) {
+                throw new IOException("follower " + name + " is at " + pos + ", before the log start " + start +
+                        ", clear its .repl/applied to copy the spool again");
+            }
+            lg.log("follower " + name + " from " + s.getRemoteSocketAddress() + " at " + pos);
+            if (pos < start) {
+//registered at the log start first, so the copy can't be trimmed out from under it
+                st[0] = start;
+                st[1] = cumAt(start);
+                followers.put(name, st);
+                copy(in, out, name, st);
+                pos = start;
+            }
+            followers.put(name, st);
+            while (true) {
+                List<ChangeLog.Rec> recs = List.of();
+                if (log.await(pos, cfg.heartbeat * 1000L)) {
+//let a burst of changes pile up into one batch
+                    if (cfg.batchDelay > 0) Thread.sleep(cfg.batchDelay);
+                    recs = log.read(pos, 10000, cfg.batchBytes);
+                }
+                ChangeLog.Rec last = recs.isEmpty() ? null : recs.get(recs.size() - 1);
+                long next = last == null ? pos : last.next;
+                long cum = last == null ? st[1] : last.cum;
+                send(out, recs, next, cum, last == null ? 0 : last.time);
+                long acked = in.readLong();
+                if (acked != next) throw new IOException("follower " + name + " acked " + acked + ", expected " + next);
+                pos = next;
+                st[0] = pos;
+                st[1] = cum;
+                st[2] = System.currentTimeMillis();
+                dirty = true;
+                lag(name, st);
+            }
+        } catch (EOFException e) {
+            lg.log("follower " + name + " disconnected");
+        } catch (IOException | MailBoxException e) {
+            lg.log("follower " + name + " gone: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+//The spool as it is now, for a follower starting from nothing once the log no longer
+//does. Sent as batches at position 0, then an empty one moves it to the log start. Changes
+//made meanwhile are in the log from there as well, the follower skips what it has.
+    private void copy(DataInputStream in, DataOutputStream out, String name, long[] st) throws IOException, MailBoxException {
+        List<ChangeLog.Rec> batch = new ArrayList<>();
+        long bytes = 0;
+        long n = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(cfg.spool))) {
+            for (Path d : ds) {
+                String user = d.getFileName().toString();
+                if (user.startsWith(".") || !Files.isDirectory(d.resolve("new"))) continue;
+                for (MailBox.Entry e : store.open(user).entries()) {
+                    ChangeLog.Rec r = new ChangeLog.Rec();
+                    r.kind = 'A';
+                    r.user = user;
+                    r.name = e.name();
+                    r.size = e.size();
+                    batch.add(r);
+                    bytes += r.size;
+                    n++;
+                    if (batch.size() >= 10000 || bytes >= cfg.batchBytes) {
+                        copied(in, out, name, batch, 0, 0);
+                        st[2] = System.currentTimeMillis();
+                        batch.clear();
+                        bytes = 0;
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) copied(in, out, name, batch, 0, 0);
+        copied(in, out, name, List.of(), st[0], st[1]);
+        lg.log("follower " + name + " copied " + n + " messages, log from " + st[0]);
+    }
+
+//send one batch of the copy and wait for its ack
+    private void copied(DataInputStream in, DataOutputStream out, String name, List<ChangeLog.Rec> recs, long next, long cum) throws IOException {
+        send(out, recs, next, cum, 0);
+        long acked = in.readLong();
+        if (acked != next) throw new IOException("follower " + name + " acked " + acked + ", expected " + next);
+    }
+
+//message bytes in the log before pos
+    private long cumAt(long pos) throws IOException {
+        ChangeLog.Rec r = log.at(pos);
+        return r == null ? log.cum() : r.cum - r.size;
+    }
+
+//Once a second: drop followers away too long, save where the rest are, and trim the log
+//when it is over its size and at least half of it is behind all of them
+    private void tend() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, long[]>> it = followers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, long[]> f = it.next();
+            if (now - f.getValue()[2] <= cfg.forget * 1000L) continue;
+            it.remove();
+            dirty = true;
+            lg.log("follower " + f.getKey() + " away too long, no longer kept in the log");
+        }
+        if (dirty) saveAcks();
+        long min = log.end();
+        for (long[] st : followers.values()) min = Math.min(min, st[0]);
+        try {
+            if (log.size() > cfg.logMax && min - log.start() >= log.size() / 2 && log.trim(min)) {
+                Metrics.inc("repl.trims");
+                lg.log("change log trimmed, starts at " + log.start());
+            }
+        } catch (IOException e) {
+            lg.log("change log trim failed: " + e.getMessage());
+        }
+    }
+
+//followers as "name position bytes millis" lines, via tmp so a crash keeps the old file
+    private void saveAcks() {
+        dirty = false;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, long[]> f : followers.entrySet()) {
+            long[] st = f.getValue();
+            sb.append(f.getKey()).append(' ').append(st[0]).append(' ').append(st[1]).append(' ').append(st[2]).append('\n');
+        }
+        try {
+            Path tmp = acks.resolveSibling("followers.tmp");
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, acks, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            lg.log("followers save failed: " + e.getMessage());
+        }
+    }
+
+    private void loadAcks() throws IOException {
+        if (!Files.exists(acks)) return;
+        for (String l : Files.readAllLines(acks, StandardCharsets.UTF_8)) {
+            String[] f = l.trim().split(" ");
+            if (f.length != 4) continue;
+            try {
+                followers.put(f[0], new long[] {Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3])});
+            } catch (NumberFormatException e) {
+                lg.log("bad followers line: " + l);
+            }
+        }
+    }
+
+//one batch, bodies come out of the mailbox as they are now. A message deleted since its
+//change was logged is left out, its delete follows later in the log anyway
+    private void send(DataOutputStream out, List<ChangeLog.Rec> recs, long next, long cum, long time) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Deflater def = new Deflater(cfg.level);
+        int n = 0;
+        long bytes = 0;
+        try (DataOutputStream z = new DataOutputStream(new DeflaterOutputStream(raw, def, 64 * 1024))) {
+            for (ChangeLog.Rec r : recs) {
+                if (r.kind == 'A') {
+                    byte[] body;
+                    try {
+                        MailBox box = store.open(r.user);
+                        MailBox.Entry e = box.find(r.name);
+                        if (e == null) continue;
+                        body = box.read(e, 0, (int) Math.min(Integer.MAX_VALUE, e.size()));
+                    } catch (MailBoxException gone) {
+                        continue;
+                    }
+                    z.writeByte('A');
+                    z.writeUTF(r.user);
+                    z.writeUTF(r.name);
+                    z.writeLong(body.length);
+                    z.write(body);
+                    bytes += body.length;
+                } else {
+                    z.writeByte('D');
+                    z.writeUTF(r.user);
+                    z.writeUTF(r.name);
+                }
+                n++;
+            }
+        } finally {
+            def.end();
+        }
+        out.writeLong(next);
+        out.writeLong(cum);
+        out.writeLong(time);
+        out.writeLong(log.end());
+        out.writeLong(log.cum());
+        out.writeInt(n);
+        out.writeInt(raw.size());
+        raw.writeTo(out);
+        out.flush();
+        if (n > 0) {
+            Metrics.add("repl.changes", n);
+            Metrics.add("repl.bytes", bytes);
+            Metrics.add("repl.wire", raw.size());
+        }
+    }
+
+//how far a follower is behind: message bytes not yet applied, and the age of the oldest
+//change it has not acked (0 when it has everything)
+    private void lag(String name, long[] st) {
+        try {
+            long pos = st[0];
+            if (pos < log.start()) return;
+            long bytes = log.cum() - st[1];
+            ChangeLog.Rec r = pos < log.end() ? log.at(pos) : null;
+            long ms = r == null ? 0 : Math.max(0, System.currentTimeMillis() - r.time);
+            Metrics.set("repl.lag.bytes." + name, bytes);
+            Metrics.set("repl.lag.ms." + name, ms);
+        } catch (IOException e) {
+            lg.log("lag for " + name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package repl;
+
+import maildir.MailBox;
+import maildir.MailBoxListener;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+//Change log writer for a tool that fills the spool while the primary is stopped (the bulk
+//import), so followers get that mail once it is back. Kept apart from Primary so the tool's
+//jar only needs this and ChangeLog. Failures go to stderr, the tool has no log of its own.
+public final class Recorder implements MailBoxListener {
+    private final ChangeLog log;
+
+    private Recorder(ChangeLog log) {
+        this.log = log;
+    }
+
+//null when the spool has no change log yet, a primary started later puts the whole spool
+//in its new log anyway
+    public static Recorder of(String spool) throws IOException {
+        Path dir = Paths.get(spool, ".repl");
+        if (!ChangeLog.exists(dir)) return null;
+        return new Recorder(new ChangeLog(dir));
+    }
+
+    @Override
+    public void delivered(MailBox box, Path file) {
+        try {
+            log.append('A', box.getUser(), ChangeLog.name(file), Files.size(file));
+        } catch (IOException e) {
+            System.err.println("change log write failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void removed(MailBox box, Collection<String> names) {
+        try {
+            for (String n : names) log.append('D', box.getUser(), n, 0);
+        } catch (IOException e) {
+            System.err.println("change log write failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import imap.IMAPServer;
+import maildir.MailStore;
+import pop3.POP3Server;
+import proxy.ProxyServer;
+import repl.Follower;
+import repl.Primary;
+import smtp.SMTPServer;
+import util.Config;
+import util.ConfigLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Runs SMTP, the delivery queue, POP3 and IMAP in one JVM so they share one heap and one
+//MailStore, deliveries then update mailbox indexes directly instead of a directory rescan
+//and wake IMAP clients sitting in IDLE. With --proxy the front proxy for a sharded setup
+//runs too, on its own (--only proxy) or next to one of the nodes. --repl replicates the
+//spool: a primary ships its changes, a follower applies them and serves POP3 and IMAP
+//read-only, whatever their own config files say.
+//usage: Launcher [--smtp smtpd.json] [--pop3 pop3d.json] [--imap imapd.json] [--proxy proxyd.json]
+//                [--repl repl.json] [--only smtp|pop3|imap|proxy]
+public class Launcher {
+
+    public static void main(String[] args) {
+        String smtpCfg = null;
+        String pop3Cfg = null;
+        String imapCfg = null;
+        String proxyCfg = null;
+        String replCfg = null;
+        String only = null;
+//parse the command line
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--smtp") && i + 1 < args.length) smtpCfg = args[++i];
+            else if (a.equals("--pop3") && i + 1 < args.length) pop3Cfg = args[++i];
+            else if (a.equals("--imap") && i + 1 < args.length) imapCfg = args[++i];
+            else if (a.equals("--proxy") && i + 1 < args.length) proxyCfg = args[++i];
+            else if (a.equals("--repl") && i + 1 < args.length) replCfg = args[++i];
+            else if (a.equals("--only") && i + 1 < args.length) only = args[++i];
+            else { usage(); return; }
+        }
+        boolean runSmtp = only == null || only.equals("smtp");
+        boolean runPop3 = only == null || only.equals("pop3");
+        boolean runImap = only == null || only.equals("imap");
+//the proxy is never started by default, a node does not need one
+        boolean runProxy = "proxy".equals(only) || (only == null && proxyCfg != null);
+        if (!runSmtp && !runPop3 && !runImap && !runProxy) { usage(); return; }
+
+        try {
+            List<Thread> services = new ArrayList<>();
+            boolean follower = false;
+//replication hooks the spool before any service can change it
+            if (replCfg != null) {
+                Config.ReplConfig rc = ConfigLoader.loadRepl(ConfigLoader.locate(replCfg, "repl.json"));
+                if (rc.role.equals("primary")) {
+                    if (!runSmtp) System.err.println("replication primary without SMTP in this process, changes made elsewhere are not shipped");
+                    new Primary(rc).start();
+                } else {
+                    if (runSmtp) { System.err.println("a replication follower must not take mail, use --only pop3 or --only imap"); return; }
+//the follower is the only writer of its spool
+                    MailStore.of(rc.spool).setLive(true);
+                    new Follower(rc).start();
+                    follower = true;
+                }
+            }
+            if (runSmtp) {
+                Config.SmtpConfig cfg = ConfigLoader.loadSmtp(ConfigLoader.locate(smtpCfg, "smtpd.json"));
+//every write to this spool now happens in this process
+                MailStore.of(cfg.spool).setLive(true);
+                SMTPServer smtp = new SMTPServer(cfg, true);
+                services.add(new Thread(smtp::start, "smtp-accept"));
+            }
+            if (runPop3) {
+                POP3Server pop3 = POP3Server.fromFile(pop3Cfg, follower);
+                services.add(new Thread(pop3::start, "pop3-accept"));
+            }
+            if (runImap) {
+                IMAPServer imap = IMAPServer.fromFile(imapCfg, follower);
+                services.add(new Thread(imap::start, "imap-accept"));
+            }
+            if (runProxy) {
+                ProxyServer proxy = ProxyServer.fromFile(proxyCfg);
+                services.add(new Thread(proxy::start, "proxy"));
+            }
+//start every service then wait on them, each accept loop runs until it fails
+            for (Thread t : services) t.start();
+            for (Thread t : services) t.join();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: Launcher [--smtp smtpd.json] [--pop3 pop3d.json] [--imap imapd.json] [--proxy proxyd.json] [--repl repl.json] [--only smtp|pop3|imap|proxy]");
+    }
+}
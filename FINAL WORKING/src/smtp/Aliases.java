@@ -0,0 +1,136 @@
+package smtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import merrimackutil.json.InvalidJSONException;
+import merrimackutil.net.Log;
+import util.ConfigLoader;
+import util.Metrics;
+
+//Alias and mailing list table for the local domain. The file is compiled once into a map
+//from each name to its final list of addresses, lists inside lists already expanded and
+//repeats removed, so a lookup at RCPT is one hash get. A background thread watches the
+//file and swaps in a fresh table when it changes; a file that fails to load leaves the old
+//table in place.
+//
+//A name that comes back around while it is being expanded is a loop. The name is then
+//taken as a mailbox of that name, which is what "alice: [alice, archive]" means, and any
+//other loop is logged.
+public class Aliases {
+    private final File file;
+    private final String host;
+    private final int period;
+    private final Log lg;
+//current table, replaced whole on reload
+    private volatile Map<String, List<String>> table;
+    private long stamp;
+
+    public Aliases(File file, String host, int period, Log lg) throws IOException, InvalidJSONException {
+        this.file = file;
+        this.host = host.toLowerCase(Locale.ROOT);
+        this.period = period;
+        this.lg = lg;
+        this.stamp = file.lastModified();
+        this.table = compile(ConfigLoader.loadAliases(file));
+        lg.log("aliases " + table.size() + " from " + file);
+    }
+
+//Every address a local name goes to, null when the name is not an alias
+    public List<String> expand(String name) {
+        return table.get(name.toLowerCase(Locale.ROOT));
+    }
+
+//Start the thread that picks up edits to the file
+    public void start() {
+        if (period <= 0) return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(period * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reload();
+            }
+        }, "aliases");
+        t.setDaemon(true);
+        t.start();
+    }
+
+//Load the file again if it changed since last time
+    public void reload() {
+        long m = file.lastModified();
+        if (m == stamp) return;
+        stamp = m;
+        try {
+            table = compile(ConfigLoader.loadAliases(file));
+            Metrics.inc("smtp.aliases.reloaded");
+            lg.log("aliases reloaded, " + table.size() + " names");
+        } catch (IOException | InvalidJSONException | RuntimeException e) {
+            lg.log("aliases reload failed, keeping the old table: " + e.getMessage());
+        }
+    }
+
+//Expand every name of the raw table into full addresses
+    private Map<String, List<String>> compile(Map<String, List<String>> raw) {
+        Map<String, List<String>> done = new HashMap<>();
+        Map<String, List<String>> table = new HashMap<>();
+//a name on a loop isn't kept in done, but taken from the top the loop closes at it
+        for (String name : raw.keySet()) table.put(name, expand(name, raw, done, new ArrayList<>(), new int[1]));
+        return Map.copyOf(table);
+    }
+
+//depth first, path holds the names being expanded right now. low gets the highest place
+//on the path this subtree looped back to (MAX_VALUE when it did not). A name whose subtree
+//loops back to it or above it is on a loop, and where that loop gets cut depends on the
+//way in, so only names on no loop are kept in done. A name listing itself is no loop.
+    private List<String> expand(String name, Map<String, List<String>> raw, Map<String, List<String>> done, List<String> path, int[] low) {
+        low[0] = Integer.MAX_VALUE;
+        List<String> have = done.get(name);
+        if (have != null) return have;
+        int me = path.size();
+        path.add(name);
+        int reach = Integer.MAX_VALUE;
+        int[] sub = new int[1];
+        Set<String> out = new LinkedHashSet<>();
+        for (String t : raw.get(name)) {
+            if (t.isEmpty()) continue;
+            String local = local(t);
+            String key = local == null ? null : local.toLowerCase(Locale.ROOT);
+            if (key == null || !raw.containsKey(key)) {
+//a mailbox here or an address somewhere else
+                out.add(local != null ? local + "@" + host : t);
+            } else if (path.contains(key)) {
+                if (!key.equals(name)) lg.log("alias loop " + String.join(" -> ", path) + " -> " + key);
+                out.add(local + "@" + host);
+                if (!key.equals(name)) reach = Math.min(reach, path.indexOf(key));
+            } else {
+                out.addAll(expand(key, raw, done, path, sub));
+                reach = Math.min(reach, sub[0]);
+            }
+        }
+        path.remove(me);
+        List<String> list = List.copyOf(out);
+        if (reach > me) done.put(name, list);
+        low[0] = reach;
+        return list;
+    }
+
+//local part of a target in our domain, null for a remote address. Split here rather than
+//with Delivery.splitAddr, the proxy jar ships this class without the rest of smtp/
+    private String local(String t) {
+        String a = t.trim();
+        if (a.startsWith("<") && a.endsWith(">")) a = a.substring(1, a.length() - 1).trim();
+        int at = a.lastIndexOf('@');
+        if (at <= 0 || at == a.length() - 1) return a;
+        return a.substring(at + 1).equalsIgnoreCase(host) ? a.substring(0, at) : null;
+    }
+}
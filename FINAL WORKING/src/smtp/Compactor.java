@@ -0,0 +1,72 @@
+package smtp;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import merrimackutil.net.Log;
+import maildir.MailBoxException;
+import maildir.MailStore;
+import util.Config;
+import util.Metrics;
+
+//Background packer for the spool. Every interval it walks the user mailboxes and has
+//each one move its old messages out of maildir into append-only segment files, and
+//rewrite segments that deletes have mostly emptied. Recent mail is left alone so
+//delivery stays one file write. POP3 and IMAP may run in other processes on the same
+//spool, the switch-over to a segment holds the maildir lock they take to move or delete
+//messages (see MailBox.locked), and a box whose maildrop a POP3 session holds is skipped.
+public class Compactor {
+    private final String spool;
+    private final Config.CompactConfig cfg;
+    private final Log lg;
+
+    public Compactor(String spool, Config.CompactConfig cfg, Log lg) {
+        this.spool = spool;
+        this.cfg = cfg;
+        this.lg = lg;
+    }
+
+//Start the packing thread
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(cfg.interval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pass();
+            }
+        }, "compactor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+//One pass over every mailbox in the spool
+    public void pass() {
+        long cutoff = System.currentTimeMillis() - cfg.age * 1000L;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(spool))) {
+            MailStore store = MailStore.of(spool);
+            for (Path d : ds) {
+                String user = d.getFileName().toString();
+//skip the SMTP spool area and anything that is not a maildir
+                if (user.startsWith(".") || !Files.isDirectory(d.resolve("new"))) continue;
+                try {
+                    long[] r = store.open(user).compact(cutoff, cfg.segmentSize, cfg.reclaim);
+                    if (r[0] > 0 || r[1] > 0) {
+                        lg.log("compact " + user + " packed=" + r[0] + " reclaimed=" + r[1]);
+                        Metrics.add("compact.packed", r[0]);
+                        Metrics.add("compact.reclaimed", r[1]);
+                    }
+                } catch (MailBoxException e) {
+                    lg.log("compact " + user + " failed: " + e.getMessage());
+                }
+            }
+        } catch (IOException | MailBoxException e) {
+            lg.log("compact pass failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package smtp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import merrimackutil.net.Log;
+import maildir.MailBoxException;
+import maildir.MailMessage;
+import maildir.MailStore;
+import util.Metrics;
+
+//Local delivery agent, drops a message into the mailbox of every local recipient.
+//Used directly by SMTPHandler or from the queue by MailQueueThread. A message for a big
+//list is written to its mailboxes by several threads at once, each box has its own lock.
+public class Delivery {
+//local recipients needed before the fan-out threads are used
+    private static final int FANOUT_MIN = 8;
+
+//spool store, local domain, logger, the outbound relay (null drops remote mail), and the retry queue
+    private final MailStore store;
+    private final String host;
+    private final Log lg;
+    private final Relay relay;
+    private final RetryQueue retry;
+//threads for writing one message to many mailboxes, null when that is done in turn
+    private final ExecutorService fanout;
+
+    public Delivery(MailStore store, String host, Log lg, Relay relay, RetryQueue retry) {
+        this(store, host, lg, relay, retry, 1);
+    }
+
+    public Delivery(MailStore store, String host, Log lg, Relay relay, RetryQueue retry, int threads) {
+        this.store = store;
+//normalize host to lowercase
+        this.host = host.toLowerCase(Locale.ROOT);
+        this.lg = lg;
+        this.relay = relay;
+        this.retry = retry;
+        AtomicInteger n = new AtomicInteger();
+        this.fanout = threads > 1 ? Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fanout-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+//Deliver to each recipient of the message
+    public void deliver(MailMessage m) {
+        List<String> remote = new ArrayList<>();
+        List<String[]> mine = new ArrayList<>();
+        for (String addr : m.getTo()) {
+//Split address into user and domain
+            String[] parts = splitAddr(addr);
+//invalid address log and continue
+            if (parts == null) { lg.log("bad rcpt " + addr); continue; }
+            String user = parts[0];
+            String dom  = parts[1].toLowerCase(Locale.ROOT);
+//not ours, goes to the relay (or is skipped when there is none)
+            if (!dom.equals(host)) {
+                if (relay != null) remote.add(addr);
+                else lg.log("skip remote " + addr);
+                continue;
+            }
+            mine.add(new String[]{ addr, user });
+        }
+        if (fanout != null && mine.size() >= FANOUT_MIN) fan(m, mine);
+        else for (String[] r : mine) local(m, r[0], r[1]);
+//the relay keeps its own hold on the body
+        if (!remote.isEmpty()) relay.submit(m, remote);
+//every local copy is written, the spooled body can go once the relay is done too
+        m.discard();
+    }
+
+//Try one recipient again, called by the retry queue
+    public void redeliver(MailMessage m, String addr) {
+        String[] parts = splitAddr(addr);
+        if (parts == null) { retry.bounce(m, addr, "bad address"); return; }
+        if (parts[1].toLowerCase(Locale.ROOT).equals(host)) local(m, addr, parts[0]);
+        else if (relay != null) relay.submit(m, List.of(addr));
+        else retry.bounce(m, addr, "no relay for remote address");
+    }
+
+//Write to every local box on the fan-out threads, back once all are written (or parked on
+//the retry queue) so the spooled body is not discarded under them. An interrupt doesn't
+//cut that short, the caller discards the body next, it is passed on once all are done
+    private void fan(MailMessage m, List<String[]> mine) {
+        List<Future<?>> done = new ArrayList<>();
+        for (String[] r : mine) done.add(fanout.submit(() -> local(m, r[0], r[1])));
+        boolean interrupted = false;
+        for (Future<?> f : done) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    lg.log("fanout " + e.getMessage());
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        Metrics.add("smtp.fanout", mine.size());
+    }
+
+//Add the message to one local mailbox, a failure is parked on the retry queue
+    private void local(MailMessage m, String addr, String user) {
+        try {
+//Add message to the shared mailbox
+            store.open(user).add(m);
+            lg.log("-> " + user + "@" + host);
+            retry.done(m, addr);
+        } catch (MailBoxException e) {
+            lg.log("store fail " + addr + ": " + e.getMessage());
+            retry.defer(m, addr, e.getMessage());
+        }
+    }
+
+//Helper method to split email address into user and domain
+    static String[] splitAddr(String s) {
+//null check
+        if (s == null) return null;
+        String t = s.trim();
+//remove angle brackets
+        if (t.startsWith("<") && t.endsWith(">")) t = t.substring(1, t.length() - 1).trim();
+//find '@' 
+        int at = t.lastIndexOf('@');
+//invalid if no '@' or at start or end
+        if (at <= 0 || at == t.length() - 1) return null;
+//return user and domain 
+        return new String[]{ t.substring(0, at), t.substring(at + 1) };
+    }
+}
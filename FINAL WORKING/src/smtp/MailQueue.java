@@ -6,10 +6,18 @@ import maildir.MailMessage;
 
 //Thread safe queue for mailmessage
 public class MailQueue {
+//a queued message and when it went in, so the consumer can tell how long it waited
+    public static final class Item {
+        public final MailMessage m;
+        public final long queued = System.nanoTime();
+        Item(MailMessage m) { this.m = m; }
+    }
 //Queue to hold mail messages objects
-    private final BlockingQueue<MailMessage> q = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Item> q = new LinkedBlockingQueue<>();
 //Add message to the queue if not null
-    public void put(MailMessage m) { if (m != null) q.offer(m); }
+    public void put(MailMessage m) { if (m != null) q.offer(new Item(m)); }
 //Take and remove message from the queue block if empty
-    public MailMessage take() throws InterruptedException { return q.take(); }
+    public Item take() throws InterruptedException { return q.take(); }
+//messages waiting
+    public int size() { return q.size(); }
 }
@@ -0,0 +1,77 @@
+package smtp;
+
+import merrimackutil.net.Log;
+import maildir.MailBoxException;
+import maildir.MailStore;
+import util.Config;
+import util.Metrics;
+
+//Per-account mailbox quotas from accounts.json. The check at RCPT reads the mailbox's
+//in-memory usage counter, so it costs nothing per recipient. A background thread
+//re-counts each quota'd mailbox from disk now and then to catch anything the counter
+//missed (another process writing the spool, files removed by hand).
+public class Quotas {
+    private final Config.AccountsDB accounts;
+    private final MailStore store;
+    private final int period;
+    private final Log lg;
+
+    public Quotas(Config.AccountsDB accounts, MailStore store, int period, Log lg) {
+        this.accounts = accounts;
+        this.store = store;
+        this.period = period;
+        this.lg = lg;
+    }
+
+//Reply code for a recipient given the declared message size (-1 when unknown):
+//0 when it fits, 552 when the message could never fit, 452 when the box is full for now
+    public int check(String user, long size) {
+        Config.Account a = accounts.find(user);
+        if (a == null || a.quota <= 0) return 0;
+        if (size > a.quota) {
+            Metrics.inc("smtp.quota.rejected");
+            return 552;
+        }
+        long used;
+        try {
+            used = store.open(user).usage();
+        } catch (MailBoxException e) {
+//can't tell, let delivery find out
+            return 0;
+        }
+        if (used >= a.quota || used + Math.max(size, 0) > a.quota) {
+            Metrics.inc("smtp.quota.rejected");
+            return 452;
+        }
+        return 0;
+    }
+
+//Start the reconcile thread
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(period * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reconcile();
+            }
+        }, "quota");
+        t.setDaemon(true);
+        t.start();
+    }
+
+//Re-count every mailbox that has a quota
+    public void reconcile() {
+        for (Config.Account a : accounts.accounts) {
+            if (a.quota <= 0) continue;
+            try {
+                long drift = store.open(a.username).reconcile();
+                if (drift != 0) lg.log("quota " + a.username + " usage corrected by " + drift);
+            } catch (MailBoxException e) {
+                lg.log("quota " + a.username + " recount failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package smtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import merrimackutil.net.Log;
+import maildir.MailMessage;
+import util.Config;
+import util.Metrics;
+
+//Outbound relay engine. Messages for non local recipients are queued here, worker
+//threads drain the queue in batches, group the recipients by next hop (from the static
+//route table) and push every message for one hop through one pooled connection.
+public class Relay {
+//one message and the remote recipients it still has to reach
+    private static final class Job {
+        final MailMessage m;
+        final List<String> rcpts;
+        Job(MailMessage m, List<String> rcpts) { this.m = m; this.rcpts = rcpts; }
+    }
+//the part of a job going to one next hop
+    private static final class Part {
+        final Job job;
+        final List<String> rcpts = new ArrayList<>();
+        Part(Job job) { this.job = job; }
+    }
+
+//most jobs one worker takes at a time
+    private static final int BATCH = 256;
+
+    private final Config.RelayConfig cfg;
+    private final RelayRoutes routes;
+    private final RelayPool pool;
+    private final Log lg;
+    private final RetryQueue retry;
+    private final BlockingQueue<Job> q = new LinkedBlockingQueue<>();
+    private volatile boolean run = true;
+
+    public Relay(Config.RelayConfig cfg, String helo, Log lg, RetryQueue retry) {
+        this.cfg = cfg;
+        this.routes = new RelayRoutes(cfg.routes);
+        this.pool = new RelayPool(cfg, helo);
+        this.lg = lg;
+        this.retry = retry;
+    }
+
+//Start the sender threads
+    public void start() {
+        for (int i = 0; i < Math.max(1, cfg.workers); i++) {
+            Thread t = new Thread(this::work, "relay-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+        lg.log("relay start " + cfg);
+    }
+
+//Stop the workers and close pooled connections
+    public void stop() {
+        run = false;
+        pool.closeAll();
+    }
+
+//Queue a message for its remote recipients, the relay holds the body until it is done
+    public void submit(MailMessage m, List<String> rcpts) {
+        if (rcpts.isEmpty()) return;
+        q.offer(new Job(m.retain(), new ArrayList<>(rcpts)));
+        Metrics.inc("relay.queued");
+    }
+
+//Worker loop, takes a batch and sends it
+    private void work() {
+        List<Job> batch = new ArrayList<>();
+        while (run) {
+            try {
+                Job first = q.poll(Math.max(1, cfg.idle), TimeUnit.SECONDS);
+//quiet period, a good time to drop stale pooled connections
+                if (first == null) { pool.closeIdle(); continue; }
+                batch.add(first);
+                q.drainTo(batch, BATCH - 1);
+                send(batch);
+            } catch (InterruptedException e) {
+                if (!run) break;
+            } catch (RuntimeException e) {
+                lg.log("relay err " + e.getMessage());
+            } finally {
+                for (Job j : batch) j.m.discard();
+                batch.clear();
+            }
+        }
+    }
+
+//Group the batch by next hop and send each group over one connection
+    private void send(List<Job> batch) throws InterruptedException {
+        Map<InetSocketAddress, List<Part>> byHop = new LinkedHashMap<>();
+        for (Job j : batch) {
+            Map<InetSocketAddress, Part> mine = new LinkedHashMap<>();
+            for (String r : j.rcpts) {
+                String[] parts = Delivery.splitAddr(r);
+                InetSocketAddress hop = parts == null ? null : routes.lookup(parts[1]);
+                if (hop == null) { outcome(j.m, r, 550, "no route to " + r); continue; }
+                Part p = mine.get(hop);
+                if (p == null) {
+                    p = new Part(j);
+                    mine.put(hop, p);
+                    byHop.computeIfAbsent(hop, k -> new ArrayList<>()).add(p);
+                }
+                p.rcpts.add(r);
+            }
+        }
+        for (Map.Entry<InetSocketAddress, List<Part>> e : byHop.entrySet()) sendHop(e.getKey(), e.getValue());
+    }
+
+//Push every part for one hop down one pooled connection, one fresh retry if a reused link dies
+    private void sendHop(InetSocketAddress hop, List<Part> parts) throws InterruptedException {
+        RelayConnection c = null;
+        int i = 0;
+        boolean retried = false;
+        try {
+            while (i < parts.size()) {
+                if (c == null) {
+                    try {
+                        c = pool.borrow(hop);
+                    } catch (IOException e) {
+//cannot reach the hop, everything left waits for a later try
+                        for (; i < parts.size(); i++) {
+                            for (String r : parts.get(i).rcpts) outcome(parts.get(i).job.m, r, RelayConnection.NO_REPLY, e.getMessage());
+                        }
+                        return;
+                    }
+                }
+                Part p = parts.get(i);
+                boolean reused = c.messagesSent() > 0;
+                Map<String, Integer> res = c.send(p.job.m, p.rcpts);
+                if (!c.usable()) {
+                    pool.release(c);
+                    c = null;
+//a pooled link can go stale between messages, give this part one go on a new one
+                    if (reused && !retried && res.values().stream().allMatch(v -> v == RelayConnection.NO_REPLY)) {
+                        retried = true;
+                        continue;
+                    }
+                }
+                for (Map.Entry<String, Integer> r : res.entrySet()) {
+                    outcome(p.job.m, r.getKey(), r.getValue(), c == null ? "link lost" : c.lastReply());
+                }
+                retried = false;
+                i++;
+            }
+        } finally {
+            if (c != null) pool.release(c);
+        }
+    }
+
+//What happened to one recipient: 2xx relayed, 5xx bounced, anything else goes to the retry queue
+    private void outcome(MailMessage m, String rcpt, int code, String text) {
+        if (code / 100 == 2) {
+            Metrics.inc("relay.sent");
+            lg.log("relayed -> " + rcpt);
+            retry.done(m, rcpt);
+        } else if (code / 100 == 5) {
+            Metrics.inc("relay.bounced");
+            retry.bounce(m, rcpt, text);
+        } else {
+            Metrics.inc("relay.deferred");
+            retry.defer(m, rcpt, text);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package smtp;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import maildir.MailMessage;
+import util.LineReader;
+
+//One outbound SMTP client connection. Says EHLO once and then carries any number of
+//messages, pipelining MAIL/RCPT/DATA when the server offers PIPELINING.
+public class RelayConnection {
+//reply code used for a recipient when the connection itself failed
+    public static final int NO_REPLY = 0;
+
+    private final InetSocketAddress dest;
+    private final Socket sk;
+    private final LineReader in;
+    private final OutputStream out;
+    private boolean pipelining = false;
+//EHLO keywords the server offered, upper case, with their parameter ("SIZE" -> "10485760")
+    private final Map<String, String> ext = new HashMap<>();
+    private boolean learning = false;
+    private boolean broken = false;
+    private long lastUsed = System.currentTimeMillis();
+    private int sent = 0;
+//last reply text, for logging
+    private String lastText = "";
+
+//Connect, read the greeting and say EHLO (HELO if the server does not know EHLO)
+    public RelayConnection(InetSocketAddress dest, String helo, int timeoutMs) throws IOException {
+        this.dest = dest;
+        this.sk = new Socket();
+        try {
+            sk.connect(new InetSocketAddress(dest.getHostString(), dest.getPort()), timeoutMs);
+            sk.setSoTimeout(timeoutMs);
+            sk.setTcpNoDelay(true);
+            in = new LineReader(sk.getInputStream());
+            out = new BufferedOutputStream(sk.getOutputStream(), 64 * 1024);
+            expect(reply(), 220);
+            write("EHLO " + helo);
+            flush();
+            learning = true;
+            int c = reply();
+            learning = false;
+            pipelining = ext.containsKey("PIPELINING");
+            if (c / 100 != 2) {
+                write("HELO " + helo);
+                flush();
+                expect(reply(), 250);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+//Send one message to the given recipients over this connection. The body goes out as
+//the client declared it (BODY=, SIZE=) when the server offers that, a BINARYMIME body by
+//BDAT. A server that lacks the extension gets the body only if its bytes fit what it does
+//take, otherwise every recipient is refused with 554 and the message bounces.
+//returns recipient -> reply code (NO_REPLY if the link broke before an answer)
+    public Map<String, Integer> send(MailMessage m, List<String> rcpts) {
+        Map<String, Integer> res = new LinkedHashMap<>();
+        for (String r : rcpts) res.put(r, NO_REPLY);
+        lastUsed = System.currentTimeMillis();
+        long size;
+        String type;
+        try {
+            size = m.wireSize();
+            type = bodyFor(m);
+        } catch (IOException e) {
+//the spooled body can't be read, nothing was said to the server yet
+            lastText = "message unreadable: " + e.getMessage();
+            return res;
+        }
+        long max = maxSize();
+        if (type == null || (max > 0 && size > max)) {
+            lastText = type == null
+                    ? "554 5.6.3 " + hop() + " does not take " + m.getBodyType() + " mail"
+                    : "552 5.3.4 message is bigger than " + hop() + " accepts (" + max + ")";
+            for (String r : rcpts) res.put(r, type == null ? 554 : 552);
+            return res;
+        }
+        boolean chunk = type.equals("BINARYMIME");
+        try {
+            String mail = "MAIL FROM:<" + (m.getFrom() == null ? "" : m.getFrom()) + ">"
+                    + (ext.containsKey("SIZE") ? " SIZE=" + size : "")
+                    + (type.equals("7BIT") ? "" : " BODY=" + type);
+            int accepted = 0;
+            int mc;
+            int dc = 0;
+            write(mail);
+            if (pipelining) {
+//one round trip for the whole envelope. DATA goes with it, BDAT carries the body so it
+//waits until someone has been accepted
+                for (String r : rcpts) write("RCPT TO:<" + r + ">");
+                if (!chunk) write("DATA");
+                flush();
+                mc = reply();
+                for (String r : rcpts) {
+                    int c = reply();
+                    res.put(r, c);
+                    if (c / 100 == 2) accepted++;
+                }
+                if (!chunk) dc = reply();
+            } else {
+                flush();
+                mc = reply();
+                if (mc / 100 == 2) {
+                    for (String r : rcpts) {
+                        write("RCPT TO:<" + r + ">");
+                        flush();
+                        int c = reply();
+                        res.put(r, c);
+                        if (c / 100 == 2) accepted++;
+                    }
+                }
+                if (!chunk && accepted > 0) {
+                    write("DATA");
+                    flush();
+                    dc = reply();
+                }
+            }
+            if (mc / 100 != 2) {
+//sender refused, every recipient gets that answer
+                for (String r : rcpts) res.put(r, mc);
+                if (dc == 354) endData();
+                reset();
+                return res;
+            }
+            if (accepted == 0) {
+//server took DATA with nobody to deliver to, close it off empty
+                if (dc == 354) endData();
+                reset();
+                return res;
+            }
+            if (chunk) {
+//the whole message as one last chunk, its bytes untouched
+                write("BDAT " + size + " LAST");
+                if (m.writeTo(out) != size) throw new IOException("message changed size while sending");
+                flush();
+            } else {
+                if (dc != 354) {
+                    for (String r : rcpts) if (res.get(r) / 100 == 2) res.put(r, dc);
+                    reset();
+                    return res;
+                }
+//stream the message dot-stuffed, then the final dot
+                DotStuffer ds = new DotStuffer(out);
+                m.writeTo(ds);
+                ds.finish();
+                flush();
+            }
+            int fc = reply();
+            for (String r : rcpts) if (res.get(r) / 100 == 2) res.put(r, fc);
+            sent++;
+        } catch (IOException e) {
+            broken = true;
+            lastText = e.getMessage();
+//anything not answered yet stays NO_REPLY, accepted ones never got a final answer either
+            for (Map.Entry<String, Integer> en : res.entrySet()) if (en.getValue() / 100 == 2) en.setValue(NO_REPLY);
+        }
+        lastUsed = System.currentTimeMillis();
+        return res;
+    }
+
+//BODY type to send m with on this connection, null when the server can't take it.
+//A body is only looked at when the server lacks the extension it was declared with
+    private String bodyFor(MailMessage m) throws IOException {
+        String t = m.getBodyType();
+        if (t.equals("BINARYMIME") && ext.containsKey("BINARYMIME") && ext.containsKey("CHUNKING")) return t;
+        if (t.equals("8BITMIME") && ext.containsKey("8BITMIME")) return t;
+        if (!t.equals("BINARYMIME") && !t.equals("8BITMIME")) return "7BIT";
+//what the bytes really are: 7-bit lines go anywhere, 8-bit lines need 8BITMIME
+        Sniffer sn = new Sniffer();
+        m.writeTo(sn);
+        if (sn.binary) return null;
+        if (!sn.eight) return "7BIT";
+        return ext.containsKey("8BITMIME") ? "8BITMIME" : null;
+    }
+
+    private String hop() { return dest.getHostString() + ":" + dest.getPort(); }
+
+//SIZE limit the server announced, 0 for none
+    private long maxSize() {
+        try { return Long.parseLong(ext.getOrDefault("SIZE", "0")); }
+        catch (NumberFormatException e) { return 0; }
+    }
+
+//true while the link can take another message
+    public boolean usable() { return !broken && !sk.isClosed(); }
+
+//millis since the last message
+    public long idleFor() { return System.currentTimeMillis() - lastUsed; }
+
+    public InetSocketAddress destination() { return dest; }
+    public int messagesSent() { return sent; }
+    public String lastReply() { return lastText; }
+
+//Say QUIT and close, errors do not matter any more
+    public void close() {
+        try {
+            if (!broken && out != null && !sk.isClosed()) { write("QUIT"); flush(); }
+        } catch (IOException ignore) {}
+        try { sk.close(); } catch (IOException ignore) {}
+        broken = true;
+    }
+
+//empty body, used when the server said 354 but we have nothing to send
+    private void endData() throws IOException {
+        write(".");
+        flush();
+        reply();
+    }
+
+//abandon the transaction so the next MAIL starts clean
+    private void reset() throws IOException {
+        write("RSET");
+        flush();
+        if (reply() / 100 != 2) broken = true;
+    }
+
+//Read one (possibly multi-line) reply and return its code, learns EHLO keywords on the way
+    private int reply() throws IOException {
+        String l;
+        while (true) {
+            l = in.readLine();
+            if (l == null) throw new IOException("connection closed by " + dest);
+            if (l.length() < 3) throw new IOException("bad reply " + l);
+            if (learning && l.length() > 4) {
+                String[] kw = l.substring(4).trim().split("\\s+", 2);
+                ext.put(kw[0].toUpperCase(Locale.ROOT), kw.length > 1 ? kw[1] : "");
+            }
+            if (l.length() < 4 || l.charAt(3) != '-') break;
+        }
+        lastText = l;
+        try { return Integer.parseInt(l.substring(0, 3)); }
+        catch (NumberFormatException e) { throw new IOException("bad reply " + l); }
+    }
+
+    private void expect(int got, int want) throws IOException {
+        if (got != want) throw new IOException("unexpected reply from " + dest + ": " + lastText);
+    }
+
+    private void write(String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void flush() throws IOException { out.flush(); }
+
+//Looks at a message on its way past: 8-bit bytes, or anything DATA can't carry at all
+//(NUL, a CR or LF on its own, a line over 998 bytes)
+    private static final class Sniffer extends OutputStream {
+        boolean eight = false;
+        boolean binary = false;
+        private int prev = -1;
+        private int line = 0;
+
+        @Override public void write(int b) {
+            b &= 0xff;
+            if (b >= 0x80) eight = true;
+            if (b == 0 || (prev == '\r' && b != '\n') || (b == '\n' && prev != '\r')) binary = true;
+            line = b == '\n' ? 0 : line + 1;
+            if (line > 999) binary = true;
+            prev = b;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len && !binary; i++) write(b[i]);
+        }
+    }
+
+//Output filter that doubles a dot at the start of a line and ends with CRLF "." CRLF
+    private static final class DotStuffer extends FilterOutputStream {
+        private int prev = '\n';
+        private int prev2 = '\r';
+
+        DotStuffer(OutputStream out) { super(out); }
+
+        @Override public void write(int b) throws IOException {
+            if (b == '.' && prev == '\n') out.write('.');
+            out.write(b);
+            prev2 = prev;
+            prev = b;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+//write whole runs, only break them up where a line starts with a dot
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '.' && (i == off ? prev == '\n' : b[i - 1] == '\n')) {
+                    out.write(b, start, i - start);
+                    out.write('.');
+                    start = i;
+                }
+            }
+            out.write(b, start, end - start);
+            if (len >= 2) { prev2 = b[end - 2]; prev = b[end - 1]; }
+            else if (len == 1) { prev2 = prev; prev = b[end - 1]; }
+        }
+
+//terminate the body, adding a line break first if the message did not end with one
+        void finish() throws IOException {
+            if (prev != '\n' || prev2 != '\r') out.write(new byte[]{ '\r', '\n' });
+            out.write(new byte[]{ '.', '\r', '\n' });
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package smtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+import util.Config;
+import util.Metrics;
+
+//Keeps a bounded set of open RelayConnections per destination so repeated deliveries to
+//the same next hop reuse an EHLO'd session instead of reconnecting for every message.
+public class RelayPool {
+//per destination: permits bound how many connections can be out at once, idle ones wait in the deque
+    private static final class Slot {
+        final Semaphore permits;
+        final ConcurrentLinkedDeque<RelayConnection> idle = new ConcurrentLinkedDeque<>();
+        Slot(int n) { permits = new Semaphore(n); }
+    }
+
+    private final Config.RelayConfig cfg;
+    private final String helo;
+    private final Map<InetSocketAddress, Slot> slots = new ConcurrentHashMap<>();
+
+    public RelayPool(Config.RelayConfig cfg, String helo) {
+        this.cfg = cfg;
+        this.helo = helo;
+    }
+
+//Get a connection to dest, reusing an idle one when possible (blocks while the pool is full)
+    public RelayConnection borrow(InetSocketAddress dest) throws IOException, InterruptedException {
+        Slot s = slots.computeIfAbsent(dest, k -> new Slot(Math.max(1, cfg.poolSize)));
+        s.permits.acquire();
+        try {
+            RelayConnection c;
+            while ((c = s.idle.pollFirst()) != null) {
+//most recently used first, anything idle too long is likely dropped by the far end
+                if (c.usable() && c.idleFor() < cfg.idle * 1000L) {
+                    Metrics.inc("relay.reuse");
+                    return c;
+                }
+                c.close();
+            }
+            Metrics.inc("relay.connect");
+            return new RelayConnection(dest, helo, cfg.timeout * 1000);
+        } catch (IOException | RuntimeException e) {
+            s.permits.release();
+            throw e;
+        }
+    }
+
+//Hand a connection back, broken ones are closed instead of kept
+    public void release(RelayConnection c) {
+        Slot s = slots.get(c.destination());
+        if (c.usable() && s != null) s.idle.offerFirst(c);
+        else c.close();
+        if (s != null) s.permits.release();
+    }
+
+//Close idle connections that have sat unused longer than the idle setting
+    public void closeIdle() {
+        for (Slot s : slots.values()) {
+            for (RelayConnection c : s.idle) {
+                if (c.idleFor() >= cfg.idle * 1000L && s.idle.remove(c)) c.close();
+            }
+        }
+    }
+
+//Close every idle connection
+    public void closeAll() {
+        for (Slot s : slots.values()) {
+            RelayConnection c;
+            while ((c = s.idle.pollFirst()) != null) c.close();
+        }
+    }
+}
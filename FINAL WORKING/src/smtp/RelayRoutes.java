@@ -0,0 +1,39 @@
+package smtp;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+//Static route table for outbound mail: domain -> next hop. A domain matches its own entry,
+//then its parent domains ("mail.oz" falls back to "oz"), then the "*" default.
+public class RelayRoutes {
+    private final Map<String, InetSocketAddress> routes = new HashMap<>();
+
+    public RelayRoutes(Map<String, String> table) {
+        for (Map.Entry<String, String> e : table.entrySet()) {
+            routes.put(e.getKey().toLowerCase(Locale.ROOT), hop(e.getValue()));
+        }
+    }
+
+//Next hop for a domain, null when there is no route
+    public InetSocketAddress lookup(String domain) {
+        String d = domain.toLowerCase(Locale.ROOT);
+        while (true) {
+            InetSocketAddress a = routes.get(d);
+            if (a != null) return a;
+            int dot = d.indexOf('.');
+            if (dot < 0) break;
+            d = d.substring(dot + 1);
+        }
+        return routes.get("*");
+    }
+
+//parse "host:port" (port defaults to 25)
+    private static InetSocketAddress hop(String s) {
+        String t = s.trim();
+        int c = t.lastIndexOf(':');
+        if (c < 0) return InetSocketAddress.createUnresolved(t, 25);
+        return InetSocketAddress.createUnresolved(t.substring(0, c), Integer.parseInt(t.substring(c + 1)));
+    }
+}
@@ -0,0 +1,293 @@
+package smtp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import merrimackutil.net.Log;
+import maildir.MailMessage;
+import util.Config;
+import util.Metrics;
+import util.TimingWheel;
+
+//Deferred deliveries. A recipient whose delivery failed for a temporary reason (disk full,
+//next hop down, 4xx reply) is parked here and tried again with exponential backoff. The
+//waits are kept on one timing wheel driven by a single thread, so a large backlog costs a
+//list entry per recipient rather than a timer or thread each. Recipients still failing
+//after the configured lifetime are bounced back to the sender.
+//Each parked recipient is also written to <spool>/.retry as a small text file, one
+//"key value" line per field, naming the spooled body it still needs. A restart reads them
+//back and tries those recipients again, so deferred mail and its body survive it.
+public class RetryQueue {
+//wheel resolution
+    private static final long TICK_MS = 1000;
+
+//a message/recipient pair, the same message object is shared by all its recipients
+    private static final class Key {
+        final MailMessage m;
+        final String rcpt;
+        Key(MailMessage m, String rcpt) { this.m = m; this.rcpt = rcpt; }
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).m == m && ((Key) o).rcpt.equals(rcpt);
+        }
+        @Override public int hashCode() { return System.identityHashCode(m) * 31 + rcpt.hashCode(); }
+    }
+//retry state for one recipient
+    private static final class Deferred {
+        final Key key;
+        final long first;
+        int attempts = 0;
+        String why = "";
+//its file under .retry, null until first written
+        Path file = null;
+        Deferred(Key key, long first) { this.key = key; this.first = first; }
+    }
+
+    private final Config.RetryConfig cfg;
+    private final String host;
+    private final Log lg;
+//where parked recipients are written, null keeps them in memory only
+    private final Path dir;
+    private final TimingWheel<Deferred> wheel = new TimingWheel<>(TICK_MS, System.currentTimeMillis());
+    private final Map<Key, Deferred> states = new ConcurrentHashMap<>();
+    private volatile Delivery dlv;
+    private volatile boolean run = true;
+
+    public RetryQueue(Config.RetryConfig cfg, String host, Log lg) {
+        this(cfg, null, host, lg);
+    }
+
+    public RetryQueue(Config.RetryConfig cfg, String spool, String host, Log lg) {
+        this.cfg = cfg;
+        this.dir = spool == null ? null : Paths.get(spool, ".retry");
+        this.host = host;
+        this.lg = lg;
+    }
+
+//Delivery and this queue point at each other, so it is set after both exist
+    public void setDelivery(Delivery dlv) { this.dlv = dlv; }
+
+//Pick up what a previous run left parked, then start the thread that turns the wheel
+    public void start() {
+        load();
+        Thread t = new Thread(this::turn, "smtp-retry");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() { run = false; }
+
+//Park a recipient after a temporary failure, or bounce it once it has failed too long
+    public void defer(MailMessage m, String rcpt, String why) {
+        long now = System.currentTimeMillis();
+        Key k = new Key(m, rcpt);
+        Deferred d = states.computeIfAbsent(k, x -> {
+//the queue holds the body until this recipient is settled
+            m.retain();
+            return new Deferred(x, now);
+        });
+        d.attempts++;
+        d.why = why;
+        if (now - d.first >= cfg.lifetime * 1000L) {
+            bounce(m, rcpt, "gave up after " + d.attempts + " attempts: " + why);
+            return;
+        }
+        long wait = (long) Math.min(cfg.maxBackoff * 1000.0, cfg.first * 1000.0 * Math.pow(cfg.factor, d.attempts - 1));
+        save(d);
+        wheel.schedule(d, now + wait);
+        Metrics.inc("retry.deferred");
+        lg.log("defer " + rcpt + " try " + d.attempts + " in " + wait / 1000 + "s: " + why);
+    }
+
+//A recipient was delivered, forget any retry state it had
+    public void done(MailMessage m, String rcpt) {
+        if (states.isEmpty()) return;
+        Deferred d = states.remove(new Key(m, rcpt));
+        if (d != null) forget(d);
+    }
+
+//Permanent failure: forget the recipient and tell the sender
+    public void bounce(MailMessage m, String rcpt, String why) {
+        Metrics.inc("retry.bounced");
+        lg.log("bounce " + rcpt + ": " + why);
+        String sender = m.getFrom();
+//mail from the null reverse-path is never bounced, and our notices go out from it so a
+//failing notice can't start a loop (RFC 5321 4.5.5)
+        if (sender == null || sender.isBlank()) lg.log("no bounce for " + rcpt + ", null sender");
+        else if (dlv != null) {
+            MailMessage notice = new MailMessage("", List.of(sender),
+                    "Undelivered Mail Returned to Sender",
+                    "Your message to " + rcpt + " could not be delivered.\n\n" + why + "\n\n" +
+                    "Original subject: " + m.getSubject() + "\n")
+                    .setAuthor("MAILER-DAEMON@" + host);
+            dlv.deliver(notice);
+        }
+        Deferred d = states.remove(new Key(m, rcpt));
+        if (d != null) forget(d);
+    }
+
+//recipients waiting for another try
+    public int pending() { return states.size(); }
+
+//Write a parked recipient's file, replaced whole so a crash leaves the old one or the new one.
+//A received message is kept as the name of its spooled body plus our trace fields, one we
+//composed (a bounce) has no body file and is kept as its text.
+    private void save(Deferred d) {
+        if (dir == null) return;
+        MailMessage m = d.key.m;
+        StringBuilder sb = new StringBuilder();
+        line(sb, "rcpt", d.key.rcpt);
+        line(sb, "from", m.getFrom() == null ? "" : m.getFrom());
+        line(sb, "first", Long.toString(d.first));
+        line(sb, "attempts", Integer.toString(d.attempts));
+        line(sb, "why", d.why);
+        line(sb, "type", m.getBodyType());
+        if (m.getBodyFile() != null) {
+            line(sb, "body", m.getBodyFile().toAbsolutePath().toString());
+            for (String t : m.getTrace()) line(sb, "trace", t);
+        } else {
+            if (m.getAuthor() != null) line(sb, "author", m.getAuthor());
+            for (String t : m.getTo()) line(sb, "to", t);
+            line(sb, "subject", m.getSubject());
+            line(sb, "text", m.getBody());
+        }
+        synchronized (d) {
+            try {
+                Files.createDirectories(dir);
+                if (d.file == null) d.file = Files.createTempFile(dir, "retry-", ".q");
+                Path tmp = d.file.resolveSibling(d.file.getFileName() + ".tmp");
+                Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+                Files.move(tmp, d.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                lg.log("retry save " + d.key.rcpt + ": " + e.getMessage());
+            }
+        }
+    }
+
+//A recipient is settled, drop its file and the queue's hold on the body
+    private void forget(Deferred d) {
+        synchronized (d) {
+            if (d.file != null) {
+                try { Files.deleteIfExists(d.file); } catch (IOException ignore) {}
+            }
+        }
+        d.key.m.discard();
+    }
+
+//Read back the recipients a previous run left parked, they are all due on the next tick.
+//Recipients of the same body share one message again so it goes once the last is settled.
+    private void load() {
+        if (dir == null || !Files.isDirectory(dir)) return;
+        Map<String, MailMessage> bodies = new HashMap<>();
+        long now = System.currentTimeMillis();
+        int n = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path f : ds) {
+//a write cut short by the crash, the file it was replacing is still there
+                if (!f.getFileName().toString().endsWith(".q")) {
+                    Files.deleteIfExists(f);
+                    continue;
+                }
+                try {
+                    Deferred d = restore(f, bodies);
+                    if (d == null) continue;
+                    states.put(d.key, d);
+                    wheel.schedule(d, now);
+                    n++;
+                } catch (IOException | RuntimeException e) {
+                    lg.log("retry load " + f.getFileName() + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            lg.log("retry load " + dir + ": " + e.getMessage());
+        }
+        if (n > 0) lg.log("retry: " + n + " deferred recipients picked up from " + dir);
+    }
+
+//One file back into its retry state, null (and the file removed) when its body is gone
+    private Deferred restore(Path f, Map<String, MailMessage> bodies) throws IOException {
+        Map<String, String> v = new HashMap<>();
+        List<String> trace = new ArrayList<>();
+        List<String> to = new ArrayList<>();
+        for (String l : Files.readAllLines(f, StandardCharsets.UTF_8)) {
+            int sp = l.indexOf(' ');
+            String k = sp < 0 ? l : l.substring(0, sp);
+            String val = sp < 0 ? "" : unescape(l.substring(sp + 1));
+            if (k.equals("trace")) trace.add(val);
+            else if (k.equals("to")) to.add(val);
+            else v.put(k, val);
+        }
+        String body = v.get("body");
+        MailMessage m;
+        if (body != null) {
+            if (!Files.exists(Paths.get(body))) {
+                lg.log("retry load " + f.getFileName() + ": body " + body + " is gone");
+                Files.deleteIfExists(f);
+                return null;
+            }
+            m = bodies.get(body);
+            if (m == null) {
+                m = new MailMessage().setFrom(v.get("from")).setBodyFile(Paths.get(body)).setBodyType(v.get("type"));
+//trace comes newest first and addTrace puts each in front
+                for (int i = trace.size() - 1; i >= 0; i--) m.addTrace(trace.get(i));
+                bodies.put(body, m);
+            } else m.retain();
+        } else {
+            m = new MailMessage(v.get("from"), to, v.get("subject"), v.get("text"))
+                    .setAuthor(v.get("author")).setBodyType(v.get("type"));
+        }
+        Deferred d = new Deferred(new Key(m, v.get("rcpt")), Long.parseLong(v.get("first")));
+        d.attempts = Integer.parseInt(v.get("attempts"));
+        d.why = v.getOrDefault("why", "");
+        d.file = f;
+        return d;
+    }
+
+//one "key value" line, line breaks and backslashes in the value escaped
+    private static void line(StringBuilder sb, String k, String val) {
+        sb.append(k).append(' ')
+          .append(val.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n"))
+          .append('\n');
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) { sb.append(c); continue; }
+            char e = s.charAt(++i);
+            sb.append(e == 'r' ? '\r' : e == 'n' ? '\n' : e);
+        }
+        return sb.toString();
+    }
+
+//Wheel thread: once a tick, hand every due recipient back to delivery
+    private void turn() {
+        while (run) {
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                if (!run) break;
+            }
+            for (Deferred d : wheel.advance(System.currentTimeMillis())) {
+//settled some other way while it was waiting
+                if (states.get(d.key) != d) continue;
+                Metrics.inc("retry.attempt");
+                try {
+                    dlv.redeliver(d.key.m, d.key.rcpt);
+                } catch (RuntimeException e) {
+                    defer(d.key.m, d.key.rcpt, "retry err " + e.getMessage());
+                }
+            }
+        }
+    }
+}
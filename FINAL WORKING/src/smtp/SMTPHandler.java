@@ -1,16 +1,29 @@
 package smtp;
 
 import merrimackutil.net.Log;
-import maildir.MailBox;
-import maildir.MailBoxException;
 import maildir.MailMessage;
 import util.Config;
+import util.Events;
+import util.LineReader;
+import util.Metrics;
+import util.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 //Handles a single SMTP connection
 public class SMTPHandler implements Runnable {
@@ -20,48 +33,123 @@ public class SMTPHandler implements Runnable {
     private final Socket sk;
     private final Config.SmtpConfig cfg;
     private final Log lg;
-//current phase, sender, recipients, and message buffer
+//local delivery, and the queue to use instead when the server runs one (may be null)
+    private final Delivery dlv;
+    private final MailQueue queue;
+//shared TLS context for STARTTLS (null when TLS is not configured)
+    private final SSLContext tls;
+//known users, mail for anyone else is refused at RCPT (null when there is no accounts file)
+    private final Config.AccountsDB accounts;
+//mailbox quotas checked at RCPT (null when there is no accounts file)
+    private final Quotas quotas;
+//alias and list table (null when none is configured)
+    private final Aliases aliases;
+//current phase, sender, recipients
     private Phase ph = Phase.NEW;
     private String from = null;
-    private final List<String> rcpt = new ArrayList<>();
-    private final StringBuilder buf = new StringBuilder();
+    private final Set<String> rcpt = new LinkedHashSet<>();
+//client said EHLO (so MAIL FROM may carry parameters), and the BODY type it declared
+    private boolean esmtp = false;
+//name the client gave in HELO/EHLO, for the Received field
+    private String helo = "";
+//session went through STARTTLS
+    private boolean secure = false;
+    private String bodyType = "7BIT";
+//SIZE given on MAIL FROM, -1 when the client did not say
+    private long declared = -1;
+//message body is spooled to this file as it arrives, open across BDAT chunks
+    private Path spoolFile = null;
+    private OutputStream spoolOut = null;
+    private long chunked = 0;
+//flight recorder events in progress: the current command (ended by its reply) and the current body
+    private Events.SmtpCommand cmdEv = null;
+    private String cmdVerb = null;
+    private Events.SmtpData dataEv = null;
 //Constructor to initialize fields
-    public SMTPHandler(Socket sk, Config.SmtpConfig cfg, Log lg) {
+    public SMTPHandler(Socket sk, Config.SmtpConfig cfg, Log lg, Delivery dlv, MailQueue queue, SSLContext tls, Config.AccountsDB accounts, Quotas quotas, Aliases aliases) {
         this.sk = sk;
         this.cfg = cfg;
         this.lg = lg;
+        this.dlv = dlv;
+        this.queue = queue;
+        this.tls = tls;
+        this.accounts = accounts;
+        this.quotas = quotas;
+        this.aliases = aliases;
     }
 
     @Override
 //Run method to handle SMTP session
     public void run() {
-        try (Socket s = sk;
-//set up input and output streams
-             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
-//set socket timeout to 5 minutes
-            s.setSoTimeout(5 * 60 * 1000);
+//the socket in use, swapped for the TLS one after STARTTLS
+        Socket s = sk;
+        try {
+//drop clients that sit idle longer than the configured timeout
+            s.setSoTimeout(cfg.limits.idleTimeout * 1000);
+//set up input and output streams, a byte level reader so BDAT chunks can be copied straight through
+            LineReader in = new LineReader(s.getInputStream());
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
 //send initial greeting
             send(out, 220, cfg.serverName + " ready");
 //read and process commands
             String line;
-            while ((line = in.readLine()) != null) {
+            while ((line = idle(in, out)) != null) {
                 String raw = line.trim();
                 if (raw.isEmpty()) { send(out, 500, "empty"); continue; }
                 String up = raw.toUpperCase(Locale.ROOT);
+                cmdEv = new Events.SmtpCommand();
+                cmdEv.begin();
+                cmdVerb = up;
 //HELO / EHLO 
                 if (up.startsWith("HELO ") || up.startsWith("EHLO ")) {
 //HELO can be sent anytime, reset transaction state
                     ph = Phase.HELO; resetTx();
-                    send(out, 250, cfg.serverName + " hello " + raw.substring(5).trim());
+                    esmtp = up.startsWith("EHLO ");
+                    helo = raw.substring(5).trim();
+                    String hello = cfg.serverName + " hello " + raw.substring(5).trim();
+                    if (!esmtp) send(out, 250, hello);
+                    else if (tls != null && !(s instanceof SSLSocket)) sendMulti(out, 250, hello, "SIZE " + cfg.maxMessageSize, "PIPELINING", "8BITMIME", "CHUNKING", "BINARYMIME", "STARTTLS");
+                    else sendMulti(out, 250, hello, "SIZE " + cfg.maxMessageSize, "PIPELINING", "8BITMIME", "CHUNKING", "BINARYMIME");
+                }
+//STARTTLS (RFC 3207), the session starts over on the encrypted socket
+                else if (up.equals("STARTTLS")) {
+                    if (tls == null) { send(out, 454, "TLS not available"); continue; }
+                    if (s instanceof SSLSocket) { send(out, 503, "TLS already active"); continue; }
+                    send(out, 220, "ready to start TLS");
+                    s = Tls.upgrade(s, tls, "smtp");
+                    secure = true;
+//anything the client sent before the handshake is thrown away
+                    in.reset(s.getInputStream());
+                    out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+                    ph = Phase.NEW; esmtp = false; helo = ""; resetTx();
                 }
 //MAIL FROM
                 else if (up.startsWith("MAIL FROM:")) {
                     if (ph != Phase.HELO && ph != Phase.MAIL) { send(out, 503, "seq"); continue; }
-//extract and validate email path
-                    String a = path(raw.substring(10).trim());
+//split off ESMTP parameters, then extract and validate email path
+                    String[] pp = params(raw.substring(10).trim());
+//the null reverse-path <> is how bounces arrive, it has to be taken (RFC 5321 4.5.5)
+                    String a = pp[0].trim().equals("<>") ? "" : path(pp[0]);
                     if (a == null) { send(out, 501, "MAIL FROM:<user@host>"); continue; }
-                    from = a; ph = Phase.MAIL; send(out, 250, "ok");
+                    if (pp.length > 1 && !esmtp) { send(out, 555, "parameters need EHLO"); continue; }
+                    long size = -1;
+                    String body = "7BIT";
+                    String bad = null;
+                    for (int i = 1; i < pp.length; i++) {
+                        String pu = pp[i].toUpperCase(Locale.ROOT);
+                        if (pu.startsWith("SIZE=")) {
+                            try { size = Long.parseLong(pu.substring(5)); } catch (NumberFormatException e) { bad = pp[i]; }
+                        } else if (pu.equals("BODY=7BIT") || pu.equals("BODY=8BITMIME") || pu.equals("BODY=BINARYMIME")) {
+                            body = pu.substring(5);
+                        } else bad = pp[i];
+                    }
+                    if (bad != null) { send(out, 555, "unsupported parameter " + bad); continue; }
+//refuse before any data moves when the declared size is already too big
+                    if (overLimit(size)) {
+                        send(out, 552, "message size exceeds fixed maximum message size");
+                        continue;
+                    }
+                    from = a; bodyType = body; declared = size; ph = Phase.MAIL; send(out, 250, "ok");
                 }
 //RCPT TO
                 else if (up.startsWith("RCPT TO:")) {
@@ -69,11 +157,58 @@ public class SMTPHandler implements Runnable {
 //extract and validate email path
                     String a = path(raw.substring(8).trim());
                     if (a == null) { send(out, 501, "RCPT TO:<user@host>"); continue; }
-                    rcpt.add(a); ph = Phase.RCPT; send(out, 250, "ok");
+//remote recipients are only relayed for allowed clients
+                    if (!isLocal(a) && cfg.relay != null && !relayAllowed()) { send(out, 550, "relaying denied"); continue; }
+                    if (!isLocal(a)) { rcpt.add(norm(a)); ph = Phase.RCPT; send(out, 250, "ok"); continue; }
+                    String user = Delivery.splitAddr(a)[0];
+//an alias or list goes in as its members, repeats across the transaction counted once
+                    List<String> list = aliases == null ? null : aliases.expand(user);
+                    if (list != null) {
+//each local member gets the same mailbox and quota checks as a direct recipient, the
+//members that fail them are left out and the rest still get the mail
+                        int n = 0;
+                        int worst = 0;
+                        for (String t : list) {
+                            if (isLocal(t)) {
+                                String mu = Delivery.splitAddr(t)[0];
+                                if (!known(mu)) {
+                                    lg.log("alias " + user + " member " + t + " has no mailbox");
+                                    continue;
+                                }
+                                int q = quotas != null ? quotas.check(mu, declared) : 0;
+                                if (q != 0) {
+                                    lg.log("alias " + user + " member " + t + (q == 552 ? " over quota" : " mailbox full"));
+//a member that is only full for now makes the whole refusal temporary
+                                    if (worst != 452) worst = q;
+                                    continue;
+                                }
+                            }
+                            rcpt.add(norm(t));
+                            n++;
+                        }
+                        if (n == 0 && worst == 452) { send(out, 452, "4.2.2 mailbox full"); continue; }
+                        if (n == 0 && worst == 552) { send(out, 552, "5.2.2 message exceeds mailbox quota"); continue; }
+                        if (n == 0) { send(out, 550, "5.1.1 " + a + " has no deliverable members"); continue; }
+                        ph = Phase.RCPT; send(out, 250, "ok, " + n + " recipients");
+                        continue;
+                    }
+//nobody to deliver to, refused now instead of bounced later
+                    if (!known(user)) {
+                        Metrics.inc("smtp.rcpt.unknown");
+                        send(out, 550, "5.1.1 " + a + " no such user");
+                        continue;
+                    }
+//full mailboxes are turned away here, before any of the body is read
+                    int q = quotas != null ? quotas.check(user, declared) : 0;
+                    if (q == 552) { send(out, 552, "5.2.2 message exceeds mailbox quota"); continue; }
+                    if (q == 452) { send(out, 452, "4.2.2 mailbox full"); continue; }
+                    rcpt.add(norm(a)); ph = Phase.RCPT; send(out, 250, "ok");
                 }
 //DATA
                 else if (up.equals("DATA")) {
                     if (ph != Phase.RCPT || rcpt.isEmpty() || from == null) { send(out, 503, "seq"); continue; }
+//binary bodies cannot be dot-stuffed, RFC 3030 says BDAT only
+                    if (bodyType.equals("BINARYMIME")) { send(out, 503, "BINARYMIME needs BDAT"); continue; }
 //prompt for data
                     send(out, 354, "end with .");
 //process and store message
@@ -83,6 +218,10 @@ public class SMTPHandler implements Runnable {
 //back to HELO phase
                     ph = Phase.HELO;
                 }
+//BDAT <size> [LAST], the chunk bytes follow the command line right away
+                else if (up.startsWith("BDAT ")) {
+                    bdat(in, out, raw.substring(5).trim());
+                }
 //reset transaction state
                 else if (up.equals("RSET")) {
                     resetTx(); ph = Phase.HELO; send(out, 250, "ok");
@@ -106,68 +245,170 @@ public class SMTPHandler implements Runnable {
         } catch (Exception e) {
 //log other errors
             lg.log("err " + e.getMessage());
+        } finally {
+//half received message, nobody will ever deliver it
+            dropSpool();
+            try { s.close(); } catch (IOException ignore) {}
         }
     }
-//Reads DATA from client
-    private void readData(BufferedReader in, BufferedWriter out) throws IOException {
-//clear buffer
-        buf.setLength(0);
-        String ln;
-        while ((ln = in.readLine()) != null) {
-//end of message
-            if (ln.equals(".")) {
+//Read the next command, on timeout tell the client and end the session
+    private String idle(LineReader in, BufferedWriter out) throws IOException {
+        try {
+            return in.readLine();
+        } catch (SocketTimeoutException e) {
+            send(out, 421, cfg.serverName + " idle timeout");
+            return null;
+        }
+    }
+//Reads DATA from client, straight into the spool file
+    private void readData(LineReader in, BufferedWriter out) throws IOException {
+        dataEv = new Events.SmtpData();
+        dataEv.begin();
+        long got;
+        try (OutputStream os = openSpool()) {
+            got = in.readDotData(os, cfg.maxMessageSize);
+        }
+//connection was lost before end of message
+        if (got < 0) { dropSpool(); send(out, 451, "link lost"); endData(451, 0, false); return; }
+//over the limit: the body was discarded while reading up to the final dot
+        if (overLimit(got)) {
+            lg.log("too big from " + from + " (" + got + " bytes)");
+            dropSpool();
+            send(out, 552, "message size exceeds fixed maximum message size");
+            endData(552, got, false);
+            return;
+        }
 //store message in local mailboxes
-                store();
+        store();
 //acknowledge storage
-                send(out, 250, "stored");
-                return;
-            }
-//handle dot-stuffing
-            if (ln.startsWith("..")) ln = ln.substring(1);
-//append line to buffer
-            buf.append(ln).append("\r\n");
+        send(out, 250, "stored");
+        endData(250, got, false);
+    }
+//finish the body event, if one is running
+    private void endData(int reply, long bytes, boolean chunks) {
+        Events.SmtpData ev = dataEv;
+        dataEv = null;
+        if (ev == null) return;
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.bytes = bytes;
+            ev.recipients = rcpt.size();
+            ev.chunked = chunks;
+            ev.reply = reply;
+            ev.commit();
         }
-//connection was lost before end of message
-        send(out, 451, "link lost");
     }
-//Store message in local mailboxes
-    private void store() {
-        String body = buf.toString();
-        String subj = "";
-//extract subject from body
-        for (String l : body.split("\r\n")) {
-            if (l.regionMatches(true, 0, "Subject:", 0, 8)) { subj = l.substring(8).trim(); break; }
+//Handle one BDAT chunk (RFC 3030), the bytes are copied to the spool file with no line scanning
+    private void bdat(LineReader in, BufferedWriter out, String arg) throws IOException {
+        String[] a = arg.split("\\s+");
+        long n;
+        try { n = Long.parseLong(a[0]); } catch (NumberFormatException e) { n = -1; }
+        boolean last = a.length > 1 && a[1].equalsIgnoreCase("LAST");
+        if (n < 0 || a.length > 2 || (a.length == 2 && !last)) {
+//cannot tell how many bytes follow, so the session cannot continue
+            send(out, 501, "BDAT <size> [LAST]");
+            throw new IOException("bad BDAT " + arg);
         }
-//create MailMessage object
+//no transaction to add to, swallow the chunk so we stay in sync
+        boolean ok = (ph == Phase.RCPT || ph == Phase.DATA) && !rcpt.isEmpty() && from != null;
+        if (!ok) { in.copy(null, n); send(out, 503, "seq"); return; }
+//chunk would go over the limit, throw it away and fail the transaction
+        if (overLimit(chunked + n)) {
+            in.copy(null, n);
+            lg.log("too big from " + from + " (" + (chunked + n) + " bytes)");
+            endData(552, chunked + n, true);
+            dropSpool(); resetTx(); ph = Phase.HELO;
+            send(out, 552, "message size exceeds fixed maximum message size");
+            return;
+        }
+        if (spoolOut == null) {
+            spoolOut = openSpool();
+            dataEv = new Events.SmtpData();
+            dataEv.begin();
+        }
+        ph = Phase.DATA;
+        in.copy(spoolOut, n);
+        chunked += n;
+        if (!last) { send(out, 250, n + " octets received"); return; }
+        spoolOut.close();
+        spoolOut = null;
+        store();
+        send(out, 250, "stored, " + chunked + " octets");
+        endData(250, chunked, true);
+        resetTx(); ph = Phase.HELO;
+    }
+//Store message in local mailboxes
+    private void store() throws IOException {
+        Path f = spoolFile;
+//the delivery side owns the file from here on
+        spoolFile = null;
+//create MailMessage object backed by the spooled body
         MailMessage m = new MailMessage()
                 .setFrom(from)
                 .setRecipients(new ArrayList<>(rcpt))
-                .setSubject(subj)
-                .setBody(body);
-//determine local host for recipient filtering
-        String localHost = cfg.serverName.toLowerCase(Locale.ROOT);
-//process each recipient
-        for (String r : rcpt) {
-//Split address into user and domain
-            String[] parts = split(r);
-            if (parts == null) { lg.log("bad rcpt " + r); continue; }
-            String user = parts[0];
-            String dom  = parts[1].toLowerCase(Locale.ROOT);
-//Skip if domain does not match local host
-            if (!dom.equals(localHost)) { lg.log("skip remote " + r); continue; }
-            try {
-//Open mailbox
-                MailBox mb = new MailBox(cfg.spool, user);
-//Add message to mailbox
-                mb.add(m);
-                lg.log("-> " + user + "@" + cfg.serverName);
-            } catch (MailBoxException e) {
-                lg.log("store fail " + r + ": " + e.getMessage());
-            }
-        }
+                .setBodyFile(f)
+                .setBodyType(bodyType)
+                .addTrace(received());
+//hand off to the delivery queue, or deliver right here
+        if (queue != null) queue.put(m);
+        else dlv.deliver(m);
+    }
+//Open a fresh spool file for this transaction's body
+    private OutputStream openSpool() throws IOException {
+        dropSpool();
+        Path dir = Paths.get(cfg.spool, ".incoming");
+        Files.createDirectories(dir);
+        spoolFile = Files.createTempFile(dir, "smtp-", ".msg");
+        return new BufferedOutputStream(Files.newOutputStream(spoolFile), 64 * 1024);
+    }
+//Close and delete a spool file nobody will deliver
+    private void dropSpool() {
+        if (spoolOut != null) { try { spoolOut.close(); } catch (IOException ignore) {} spoolOut = null; }
+        if (spoolFile != null) { try { Files.deleteIfExists(spoolFile); } catch (IOException ignore) {} spoolFile = null; }
+    }
+//Received trace field for this hop (RFC 5321 4.4), the rest of the message is kept as sent
+    private String received() {
+        String with = secure ? "ESMTPS" : esmtp ? "ESMTP" : "SMTP";
+        return "Received: from " + (helo.isEmpty() ? "unknown" : helo) + " (" + sk.getInetAddress().getHostAddress() + ")\r\n"
+                + "\tby " + cfg.serverName + " with " + with + (rcpt.size() == 1 ? " for <" + rcpt.iterator().next() + ">" : "") + ";\r\n"
+                + "\t" + DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now());
     }
 //Clear transaction buffers
-    private void resetTx() { from = null; rcpt.clear(); buf.setLength(0); }
+    private void resetTx() { from = null; bodyType = "7BIT"; declared = -1; rcpt.clear(); chunked = 0; dataEv = null; dropSpool(); }
+//address with its domain lowercased, so the same mailbox is only added once
+    private static String norm(String addr) {
+        int at = addr.lastIndexOf('@');
+        return at < 0 ? addr : addr.substring(0, at + 1) + addr.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+//true if the address is in our own domain
+    private boolean isLocal(String addr) {
+        String[] p = Delivery.splitAddr(addr);
+        return p != null && p[1].equalsIgnoreCase(cfg.serverName);
+    }
+//true if the local user has an account, anyone goes when there is no accounts file
+    private boolean known(String user) {
+        return accounts == null || accounts.find(user) != null;
+    }
+//true if this client's address matches one of the relay allow prefixes
+    private boolean relayAllowed() {
+        String ip = sk.getInetAddress().getHostAddress();
+        for (String pre : cfg.relay.allow) if (ip.startsWith(pre)) return true;
+        return false;
+    }
+//true when n bytes is over the configured SIZE limit
+    private boolean overLimit(long n) { return cfg.maxMessageSize > 0 && n > cfg.maxMessageSize; }
+//Split "<path> KEY=VAL ..." into the path and its parameters
+    private static String[] params(String s) {
+        int end = s.startsWith("<") ? s.indexOf('>') + 1 : 0;
+        if (end <= 0) end = s.indexOf(' ') < 0 ? s.length() : s.indexOf(' ');
+        String rest = s.substring(end).trim();
+        if (rest.isEmpty()) return new String[]{ s.substring(0, end) };
+        String[] kv = rest.split("\\s+");
+        String[] outp = new String[kv.length + 1];
+        outp[0] = s.substring(0, end);
+        System.arraycopy(kv, 0, outp, 1, kv.length);
+        return outp;
+    }
 //Helper to parse user@host 
     private static String path(String s) {
         if (s == null || s.isBlank()) return null;
@@ -176,18 +417,34 @@ public class SMTPHandler implements Runnable {
         if (!t.contains("@")) return null;
         return t;
     }
-//Helper to split email address into user and host
-    private static String[] split(String s) {
-        if (s == null) return null;
-        String t = s.trim();
-        if (t.startsWith("<") && t.endsWith(">")) t = t.substring(1, t.length() - 1).trim();
-        int at = t.lastIndexOf('@');
-        if (at <= 0 || at == t.length() - 1) return null;
-        return new String[]{ t.substring(0, at), t.substring(at + 1) };
+//Helper to send a multi-line reply, every line but the last uses "code-"
+    private void sendMulti(BufferedWriter out, int code, String... lines) throws IOException {
+        for (int i = 0; i < lines.length; i++) {
+            out.write(code + (i < lines.length - 1 ? "-" : " ") + lines[i] + "\r\n");
+        }
+        out.flush();
+        endCommand(code);
     }
 //Helper to send response to client
-    private static void send(BufferedWriter out, int code, String msg) throws IOException {
+    private void send(BufferedWriter out, int code, String msg) throws IOException {
         out.write(code + " " + msg + "\r\n");
         out.flush();
+        endCommand(code);
+    }
+//the first reply to a command finishes its event, the fields are only filled in when recording
+    private void endCommand(int code) {
+        Events.SmtpCommand ev = cmdEv;
+        if (ev == null) return;
+        cmdEv = null;
+        ev.end();
+        if (ev.shouldCommit()) {
+            int sp = cmdVerb.indexOf(' ');
+            if (cmdVerb.startsWith("MAIL FROM:")) ev.command = "MAIL FROM";
+            else if (cmdVerb.startsWith("RCPT TO:")) ev.command = "RCPT TO";
+            else ev.command = sp < 0 ? cmdVerb : cmdVerb.substring(0, sp);
+            ev.reply = code;
+            ev.client = sk.getInetAddress().getHostAddress();
+            ev.commit();
+        }
     }
 }
@@ -2,63 +2,93 @@ package smtp;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import javax.net.ssl.SSLContext;
+
+import merrimackutil.json.InvalidJSONException;
 import merrimackutil.net.Log;
+import maildir.MailBoxException;
+import maildir.MailStore;
+import util.Acceptors;
+import util.Admission;
 import util.Config;
 import util.ConfigLoader;
 import util.LoggerSetup;
+import util.Metrics;
+import util.Tls;
 
 
 public class SMTPServer {
-//config, log, and thread pool
+//config, log, and admission control (owns the thread pool)
     private final Config.SmtpConfig cfg;
     private final Log lg;
-    private final ExecutorService exec;
-//Constructor to initialize config, log, and thread pool
-    public SMTPServer(Config.SmtpConfig cfg) throws IOException {
+    private final Admission adm;
+//retry queue, outbound relay (null when not configured), local delivery, plus the delivery queue and its thread when queued (else null)
+    private final RetryQueue retry;
+    private final Relay relay;
+    private final Delivery dlv;
+    private final MailQueue queue;
+    private final MailQueueThread queueThread;
+//shared TLS context for STARTTLS, null when no keystore is configured
+    private final SSLContext tls;
+//known users, and the quotas set on them, null when there is no accounts file
+    private final Config.AccountsDB accounts;
+    private final Quotas quotas;
+//alias and list table, null when no alias file is configured
+    private final Aliases aliases;
+//Standalone server, delivers to the mailboxes straight from the session
+    public SMTPServer(Config.SmtpConfig cfg) throws IOException, InvalidJSONException, MailBoxException {
+        this(cfg, false);
+    }
+//Constructor to initialize config, log, and thread pool, queued puts delivery on its own thread
+    public SMTPServer(Config.SmtpConfig cfg, boolean queued) throws IOException, InvalidJSONException, MailBoxException {
         this.cfg = cfg;
 //Create file logger
         this.lg  = LoggerSetup.make(cfg.log, "smtpd");
 //Log boot
         this.lg.log("boot " + cfg);
-//Determine number of threads and create fixed thread pool
-        int n = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
-        this.exec = Executors.newFixedThreadPool(n);
+//bounded thread pool plus connection caps from the limits config
+        this.adm = new Admission(cfg.limits, "smtp");
+        Metrics.report(lg, 60);
+//deliveries go through the shared mailbox store for this spool
+        this.retry = new RetryQueue(cfg.retry, cfg.spool, cfg.serverName, lg);
+        this.relay = (cfg.relay != null) ? new Relay(cfg.relay, cfg.serverName, lg, retry) : null;
+        this.dlv = new Delivery(MailStore.of(cfg.spool), cfg.serverName, lg, relay, retry, cfg.fanout);
+        retry.setDelivery(dlv);
+        this.tls = (cfg.tls != null) ? Tls.context(cfg.tls) : null;
+//users and quotas come from the same accounts file POP3 uses, found the same way
+        File acctFile = ConfigLoader.locate(cfg.accounts, "accounts.json");
+        this.accounts = (cfg.accounts != null || acctFile.exists()) ? ConfigLoader.loadAccounts(acctFile) : null;
+        this.quotas = (accounts != null) ? new Quotas(accounts, MailStore.of(cfg.spool), cfg.quotaReconcile, lg) : null;
+        this.aliases = (cfg.aliases != null)
+                ? new Aliases(ConfigLoader.locate(cfg.aliases, "aliases.json"), cfg.serverName, cfg.aliasReload, lg)
+                : null;
+        this.queue = queued ? new MailQueue() : null;
+        this.queueThread = queued ? new MailQueueThread(queue, dlv, lg) : null;
     }
 //Start the SMTP server
     public void start() {
-//Listen on configured port
-        try (ServerSocket srv = new ServerSocket(cfg.port)) {
-            lg.log("listen " + cfg.port + " | host=" + cfg.serverName + " | spool=" + cfg.spool);
-            while (true) {
-//Accept incoming connection
-                Socket sock = srv.accept();
-                lg.log("conn " + sock.getRemoteSocketAddress());
-//Handle connection in a new thread
-                exec.execute(new SMTPHandler(sock, cfg, lg));
-            }
-        } catch (IOException e) {
-//Log fatal error
-            lg.log("fatal " + e.getMessage());
+//start the retry wheel, relay and delivery queue first so nothing sits in them
+        retry.start();
+        if (relay != null) relay.start();
+        if (cfg.compact != null) new Compactor(cfg.spool, cfg.compact, lg).start();
+        if (quotas != null) quotas.start();
+        if (aliases != null) aliases.start();
+        if (queueThread != null) {
+            Thread t = new Thread(queueThread, "smtp-queue");
+            t.setDaemon(true);
+            t.start();
         }
+//Listen on configured port
+//Accept threads hand each connection to the pool, or answer 421 right away when overloaded
+        Acceptors.listen(cfg.port, cfg.limits.acceptors, "smtp", adm, "421 " + cfg.serverName + " busy, try again later",
+                sock -> new SMTPHandler(sock, cfg, lg, dlv, queue, tls, accounts, quotas, aliases), lg, "host=" + cfg.serverName + " | spool=" + cfg.spool);
     }
 //Main method to load config and start server
 public static void main(String[] args) {
     try {
-//Determine config file path
-        String p = (args.length > 0) ? args[0] : "smtpd.json";
-//Check if file exists otherwise try alternative path
-        if (!new File(p).exists()) {
-            String alt = "config/smtpd.json";
-            if (new File(alt).exists()) p = alt;
-        }
-
-//Load SMTP config from JSON
-        util.Config.SmtpConfig cfg = util.ConfigLoader.loadSmtp(new File(p));
+//Load SMTP config from JSON (smtpd.json or config/smtpd.json by default)
+        Config.SmtpConfig cfg = ConfigLoader.loadSmtp(ConfigLoader.locate(args.length > 0 ? args[0] : null, "smtpd.json"));
 //Start SMTP server with loaded config
         new SMTPServer(cfg).start();
     } catch (Exception e) {
@@ -0,0 +1,86 @@
+package util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import merrimackutil.net.Log;
+
+//Accept loop for one port run by several threads. Each thread binds its own listening
+//socket with SO_REUSEPORT so the kernel spreads new connections over them, where the
+//option is missing they all take turns on one socket instead. An acceptor only stamps
+//the time and hands the socket to Admission, the "conn" log line is written by the
+//worker so a slow log file never holds up accept().
+public final class Acceptors {
+    private Acceptors() {}
+
+//Run count acceptors on port until their sockets fail, returns when all of them have
+    public static void listen(int port, int count, String name, Admission adm, String busy,
+                              Function<Socket, Runnable> handler, Log lg, String banner) {
+        int n = Math.max(1, count);
+        List<ServerSocket> socks = new ArrayList<>();
+        try {
+            boolean reuse = n > 1 && reusePort();
+            for (int i = 0; i < (reuse ? n : 1); i++) socks.add(bind(port, reuse));
+            lg.log("listen " + port + " | " + banner + " | acceptors=" + n + (n > 1 && !reuse ? " (shared socket)" : ""));
+        } catch (IOException e) {
+            lg.log("fatal " + e.getMessage());
+            for (ServerSocket s : socks) { try { s.close(); } catch (IOException ignore) {} }
+            return;
+        }
+        List<Thread> loops = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ServerSocket srv = socks.get(i % socks.size());
+            loops.add(new Thread(() -> accept(srv, port, adm, busy, handler, lg), name + "-accept-" + (i + 1)));
+        }
+        for (Thread t : loops) t.start();
+        for (Thread t : loops) {
+            try { t.join(); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    private static void accept(ServerSocket srv, int port, Admission adm, String busy, Function<Socket, Runnable> handler, Log lg) {
+        try (ServerSocket s = srv) {
+            while (true) {
+                Socket sock = s.accept();
+                long at = System.nanoTime();
+                Runnable h = handler.apply(sock);
+                SocketAddress from = sock.getRemoteSocketAddress();
+                adm.submit(sock, () -> {
+                    lg.log("conn " + from + " -> " + port);
+                    h.run();
+                }, busy, at);
+            }
+        } catch (IOException e) {
+//a shared socket closed by another acceptor ends up here as well
+            if (!srv.isClosed()) lg.log("fatal " + e.getMessage());
+        }
+    }
+
+    private static ServerSocket bind(int port, boolean reuse) throws IOException {
+        ServerSocket s = new ServerSocket();
+        try {
+            if (reuse) s.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            s.bind(new InetSocketAddress(port), 1024);
+            return s;
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+//true when this platform lets several sockets listen on one port
+    private static boolean reusePort() {
+        try (ServerSocket s = new ServerSocket()) {
+            return s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
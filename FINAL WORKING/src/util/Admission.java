@@ -0,0 +1,148 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Decides whether a freshly accepted socket gets a worker or is turned away right away.
+//Caps open connections (total and per remote ip), limits the connect rate with token
+//buckets and hands admitted sockets to a pool with a bounded queue, so a flood gets
+//an early busy reply instead of piling up until it times out.
+public final class Admission {
+//state kept for each remote address
+    private static final class PerIp {
+        int active;
+        final TokenBucket bucket;
+        PerIp(Config.Limits l) { bucket = new TokenBucket(l.ipRate, l.ipBurst); }
+    }
+
+    private final Config.Limits lim;
+    private final String name;
+    private final ExecutorService exec;
+    private final TokenBucket rate;
+    private final AtomicInteger active = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, PerIp> perIp = new ConcurrentHashMap<>();
+    private final AtomicInteger sweepTick = new AtomicInteger();
+
+//name is used as the metrics prefix and thread name ("smtp", "pop3")
+    public Admission(Config.Limits lim, String name) {
+        this.lim = lim;
+        this.name = name;
+        this.rate = new TokenBucket(lim.connRate, lim.connBurst);
+        AtomicInteger n = new AtomicInteger();
+//fixed pool, but the waiting line is bounded so overload is refused instead of queued forever
+        this.exec = new ThreadPoolExecutor(lim.threads, lim.threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, lim.queue)),
+                r -> new Thread(r, name + "-" + n.incrementAndGet()));
+    }
+
+//Admit the socket and run the handler on the pool, or write the busy line and close it.
+//returns false when the connection was refused
+    public boolean submit(Socket sock, Runnable handler, String busy) {
+        return submit(sock, handler, busy, System.nanoTime());
+    }
+
+//Same, accepted is the nanoTime the socket came out of accept(). Time from there to the
+//handler starting (its greeting is the first thing it writes) goes in <name>.accept and
+//time spent in the handler in <name>.session, so a backed up pool shows apart from slow
+//sessions
+    public boolean submit(Socket sock, Runnable handler, String busy, long accepted) {
+        InetAddress ip = remote(sock);
+        String why = acquire(ip);
+        if (why == null) {
+            try {
+                exec.execute(() -> {
+                    long start = System.nanoTime();
+                    Metrics.time(name + ".accept", start - accepted);
+                    try { handler.run(); } finally {
+                        release(ip);
+                        Metrics.time(name + ".session", System.nanoTime() - start);
+                    }
+                });
+                Metrics.inc(name + ".accepted");
+                return true;
+            } catch (RejectedExecutionException e) {
+                release(ip);
+                why = "queue";
+            }
+        }
+        Metrics.inc(name + ".rejected." + why);
+        refuse(sock, busy);
+        return false;
+    }
+
+//number of connections currently holding a slot
+    public int active() { return active.get(); }
+
+//Stop taking work
+    public void shutdown() { exec.shutdownNow(); }
+
+//Take a slot for ip, returns null on success or the reason it was refused. The caps are
+//checked before any token is taken, so connections turned away for being over a cap don't
+//use up the rate meant for the ones that can be served; the global bucket comes last so a
+//single address hits its own bucket first. When the global one refuses, the address gets
+//its token back, a busy server shouldn't drain every client's own budget
+    private String acquire(InetAddress ip) {
+        if (active.incrementAndGet() > lim.maxConnections) { active.decrementAndGet(); return "max"; }
+        String[] why = new String[1];
+        perIp.compute(ip, (k, st) -> {
+            if (st == null) st = new PerIp(lim);
+            if (st.active >= lim.maxPerIp) why[0] = "ip";
+            else if (!st.bucket.tryTake()) why[0] = "iprate";
+            else st.active++;
+            return st;
+        });
+        if (why[0] != null) { active.decrementAndGet(); return why[0]; }
+        if (!rate.tryTake()) {
+            perIp.computeIfPresent(ip, (k, st) -> { st.bucket.giveBack(); return st; });
+            release(ip);
+            return "rate";
+        }
+        if ((sweepTick.incrementAndGet() & 1023) == 0) sweep();
+        return null;
+    }
+
+//Give back the slot taken for ip
+    private void release(InetAddress ip) {
+        active.decrementAndGet();
+        perIp.computeIfPresent(ip, (k, st) -> {
+            st.active--;
+            return (st.active <= 0 && st.bucket.isFull()) ? null : st;
+        });
+    }
+
+//forget idle addresses whose bucket has refilled, they would start over full anyway
+    private void sweep() {
+        for (InetAddress ip : perIp.keySet()) {
+            perIp.computeIfPresent(ip, (k, st) -> (st.active <= 0 && st.bucket.isFull()) ? null : st);
+        }
+    }
+
+//Best effort busy reply then close, runs on the accept thread so it must not block
+    private static void refuse(Socket sock, String busy) {
+        try (Socket s = sock) {
+            s.setSoTimeout(1000);
+            OutputStream out = s.getOutputStream();
+            out.write((busy + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException ignore) {}
+    }
+
+//remote address of the socket (loopback if it is already gone)
+    private static InetAddress remote(Socket s) {
+        if (s.getRemoteSocketAddress() instanceof InetSocketAddress) {
+            return ((InetSocketAddress) s.getRemoteSocketAddress()).getAddress();
+        }
+        return InetAddress.getLoopbackAddress();
+    }
+}
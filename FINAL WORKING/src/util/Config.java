@@ -1,7 +1,9 @@
 package util;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class Config {
 // Prevent instantiation
@@ -13,10 +15,33 @@ public final class Config {
         public String serverName;
         public int port;
         public String log;
+//largest message we take in bytes, advertised with SIZE (0 means no limit)
+        public long maxMessageSize = 10L * 1024 * 1024;
+//admission control and timeouts
+        public Limits limits = new Limits(300);
+//keystore for STARTTLS (null means no TLS)
+        public TlsConfig tls = null;
+//outbound relay for non local recipients (null means remote mail is dropped)
+        public RelayConfig relay = null;
+//retry schedule for deliveries that failed for a temporary reason
+        public RetryConfig retry = new RetryConfig();
+//segment packing of old mail (null means everything stays in maildir files)
+        public CompactConfig compact = null;
+//accounts file for quota checks at RCPT (null means no quotas), and how often usage is re-counted from disk (seconds)
+        public String accounts = null;
+        public int quotaReconcile = 900;
+//alias/list file (null means every local address is a mailbox), seconds between checks for edits
+        public String aliases = null;
+        public int aliasReload = 30;
+//threads writing a message to many local mailboxes at once (1 writes them one after another)
+        public int fanout = 4;
 
         @Override public String toString() {
 //Readable string representation
-            return "SmtpConfig{spool=" + spool + ", serverName=" + serverName + ", port=" + port + ", log=" + log + "}";
+            return "SmtpConfig{spool=" + spool + ", serverName=" + serverName + ", port=" + port + ", log=" + log +
+                   ", maxMessageSize=" + maxMessageSize + ", limits=" + limits + ", tls=" + tls + ", relay=" + relay + ", retry=" + retry + ", compact=" + compact +
+                   ", accounts=" + accounts + ", quotaReconcile=" + quotaReconcile + ", aliases=" + aliases +
+                   ", aliasReload=" + aliasReload + ", fanout=" + fanout + "}";
         }
     }
 //POP3 server configuration
@@ -27,10 +52,200 @@ public final class Config {
         public int port;
         public String log;
         public String accounts;
+//admission control and timeouts
+        public Limits limits = new Limits(600);
+//keystore for STLS (null means no TLS)
+        public TlsConfig tls = null;
+//serving a replica spool, DELE is refused
+        public boolean readOnly = false;
         @Override public String toString() {
 //Readable string representation
             return "Pop3Config{spool=" + spool + ", serverName=" + serverName + ", port=" + port +
-                   ", log=" + log + ", accounts=" + accounts + "}";
+                   ", log=" + log + ", accounts=" + accounts + ", limits=" + limits + ", tls=" + tls + ", readOnly=" + readOnly + "}";
+        }
+    }
+//IMAP server settings, same shape as POP3 (same spool and accounts)
+    public static final class ImapConfig {
+        public String spool;
+        public String serverName;
+        public int port;
+        public String log;
+        public String accounts;
+//admission control, IDLE clients sit on a thread so the idle timeout is the RFC 3501 minimum
+        public Limits limits = new Limits(1800);
+//keystore for STARTTLS (null means no TLS)
+        public TlsConfig tls = null;
+//serving a replica spool, every mailbox opens read-only
+        public boolean readOnly = false;
+        @Override public String toString() {
+//Readable string representation
+            return "ImapConfig{spool=" + spool + ", serverName=" + serverName + ", port=" + port +
+                   ", log=" + log + ", accounts=" + accounts + ", limits=" + limits + ", tls=" + tls + ", readOnly=" + readOnly + "}";
+        }
+    }
+//Spool replication (repl.json), one primary ships its change log to any number of followers
+    public static final class ReplConfig {
+        public String spool;
+        public String log;
+//"primary" or "follower"
+        public String role;
+//primary: port followers connect to, and the address prefixes allowed to
+        public int port;
+        public final List<String> allow = new ArrayList<>(List.of("127.", "0:0:0:0:0:0:0:1"));
+//follower: primary as host:port and the name it reports under
+        public String primary;
+        public String name;
+//most message bytes in one batch, and millis to wait for more changes before sending one
+        public long batchBytes = 1024 * 1024;
+        public int batchDelay = 20;
+//deflate level for batches (1 fast .. 9 small)
+        public int level = 1;
+//seconds between empty batches when nothing changes, and before a follower reconnects
+        public int heartbeat = 5;
+        public int retry = 5;
+//primary: change log bytes before what every follower has is dropped, and seconds a
+//follower can stay away before it no longer holds the log back
+        public long logMax = 64L * 1024 * 1024;
+        public int forget = 7 * 24 * 3600;
+        @Override public String toString() {
+//Readable string representation
+            return "ReplConfig{role=" + role + ", spool=" + spool + ", port=" + port + ", primary=" + primary + ", name=" + name +
+                   ", batchBytes=" + batchBytes + ", batchDelay=" + batchDelay + ", level=" + level + ", heartbeat=" + heartbeat +
+                   ", logMax=" + logMax + ", forget=" + forget + "}";
+        }
+    }
+//Front proxy settings (proxyd.json), shards users over the backend nodes
+    public static final class ProxyConfig {
+        public String serverName;
+        public String log;
+//listening ports, 0 leaves that protocol off
+        public int pop3Port = 0;
+        public int smtpPort = 0;
+//points each node gets on the hash ring, more means an even spread
+        public int vnodes = 160;
+//advertised with SIZE, the backends still enforce their own
+        public long maxMessageSize = 10L * 1024 * 1024;
+//seconds to wait when connecting to a backend
+        public int connectTimeout = 10;
+//client address prefixes that may send to other domains through the proxy
+        public final List<String> relayAllow = new ArrayList<>();
+//admission control and timeouts for client connections
+        public Limits limits = new Limits(600);
+//keystore for STARTTLS/STLS at the proxy (null means no TLS)
+        public TlsConfig tls = null;
+//alias/list file, expanded here so each member goes to its own node (null means none), seconds between checks for edits
+        public String aliases = null;
+        public int aliasReload = 30;
+        public final List<Backend> backends = new ArrayList<>();
+        @Override public String toString() {
+//Readable string representation
+            return "ProxyConfig{serverName=" + serverName + ", log=" + log + ", pop3Port=" + pop3Port + ", smtpPort=" + smtpPort +
+                   ", vnodes=" + vnodes + ", backends=" + backends + ", limits=" + limits + ", tls=" + tls + ", aliases=" + aliases + "}";
+        }
+    }
+//One mail node behind the proxy
+    public static final class Backend {
+        public String name;
+        public String host = "127.0.0.1";
+        public int pop3;
+        public int smtp;
+//relative share of users, scales the node's points on the ring
+        public int weight = 1;
+        @Override public String toString() {
+//Readable string representation
+            return name + "@" + host + "{pop3=" + pop3 + ", smtp=" + smtp + ", weight=" + weight + "}";
+        }
+    }
+//TLS settings (the "tls" object in smtpd.json / pop3d.json)
+    public static final class TlsConfig {
+//keystore holding the server key and certificate
+        public String keystore;
+        public String password;
+        public String type = "PKCS12";
+//sessions remembered for resumption and for how long (seconds), shared by every service using this keystore
+        public int sessionCache = 20000;
+        public int sessionTimeout = 24 * 3600;
+//let clients resume from a session ticket instead of the server side cache
+        public boolean tickets = true;
+        @Override public String toString() {
+//Readable string representation, the password stays out of the log
+            return "TlsConfig{keystore=" + keystore + ", type=" + type + ", sessionCache=" + sessionCache +
+                   ", sessionTimeout=" + sessionTimeout + ", tickets=" + tickets + "}";
+        }
+    }
+//Outbound relay settings (the "relay" object in smtpd.json)
+    public static final class RelayConfig {
+//domain -> "host:port", "*" is the fallback route
+        public final Map<String, String> routes = new LinkedHashMap<>();
+//client addresses (prefixes) allowed to send to remote domains, so we are not an open relay
+        public final List<String> allow = new ArrayList<>(List.of("127.", "0:0:0:0:0:0:0:1"));
+//open connections kept per destination, and sender threads
+        public int poolSize = 4;
+        public int workers = 2;
+//socket timeout and how long an idle pooled connection is kept, in seconds
+        public int timeout = 60;
+        public int idle = 60;
+        @Override public String toString() {
+//Readable string representation
+            return "RelayConfig{routes=" + routes + ", allow=" + allow + ", poolSize=" + poolSize + ", workers=" + workers +
+                   ", timeout=" + timeout + ", idle=" + idle + "}";
+        }
+    }
+//Deferred delivery settings (the "retry" object in smtpd.json), all in seconds
+    public static final class RetryConfig {
+//first wait, each retry waits this much times factor longer, up to maxBackoff
+        public int first = 60;
+        public double factor = 2.0;
+        public int maxBackoff = 4 * 3600;
+//give up and bounce once a message has been failing this long
+        public int lifetime = 5 * 24 * 3600;
+        @Override public String toString() {
+//Readable string representation
+            return "RetryConfig{first=" + first + ", factor=" + factor + ", maxBackoff=" + maxBackoff +
+                   ", lifetime=" + lifetime + "}";
+        }
+    }
+//Packing of old messages into segment files (the "compact" object in smtpd.json)
+    public static final class CompactConfig {
+//messages older than this (seconds) leave maildir for a segment
+        public int age = 30 * 24 * 3600;
+//seconds between passes over the spool
+        public int interval = 3600;
+//start a new segment once the open one reaches this many bytes
+        public long segmentSize = 64L * 1024 * 1024;
+//rewrite a segment once this share of it belongs to deleted messages
+        public double reclaim = 0.3;
+        @Override public String toString() {
+//Readable string representation
+            return "CompactConfig{age=" + age + ", interval=" + interval + ", segmentSize=" + segmentSize +
+                   ", reclaim=" + reclaim + "}";
+        }
+    }
+//Connection limits shared by both servers (the "limits" object in the json files)
+    public static final class Limits {
+//worker threads and how many accepted sockets may wait for one
+        public int threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        public int queue = 64;
+//concurrent connection caps, whole server and per remote ip
+        public int maxConnections = 512;
+        public int maxPerIp = 16;
+//token bucket for new connections per second, whole server and per remote ip
+        public double connRate = 200;
+        public int connBurst = 400;
+        public double ipRate = 5;
+        public int ipBurst = 20;
+//seconds a client may sit idle before we drop it
+        public int idleTimeout;
+//threads accepting connections, each on its own SO_REUSEPORT socket
+        public int acceptors = 1;
+
+        public Limits(int idleTimeout) { this.idleTimeout = idleTimeout; }
+
+        @Override public String toString() {
+//Readable string representation
+            return "Limits{threads=" + threads + ", queue=" + queue + ", maxConnections=" + maxConnections +
+                   ", maxPerIp=" + maxPerIp + ", connRate=" + connRate + "/" + connBurst +
+                   ", ipRate=" + ipRate + "/" + ipBurst + ", idleTimeout=" + idleTimeout + ", acceptors=" + acceptors + "}";
         }
     }
 //User account information
@@ -39,9 +254,11 @@ public final class Config {
         public String username;
         public String pass;
         public String spool;
+//most bytes the mailbox may hold, 0 means no limit
+        public long quota = 0;
         @Override public String toString() {
 //Readable string representation
-            return "Account{username=" + username + ", spool=" + spool + "}";
+            return "Account{username=" + username + ", spool=" + spool + ", quota=" + quota + "}";
         }
     }
 //Database of user accounts
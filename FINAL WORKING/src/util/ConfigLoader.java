@@ -2,6 +2,11 @@ package util;
 
 import java.io.File; // import statments for project and this file
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import merrimackutil.json.InvalidJSONException;
 import merrimackutil.json.JsonIO;
@@ -10,8 +15,17 @@ import merrimackutil.json.types.JSONObject;
 
 import util.Config.Account;
 import util.Config.AccountsDB;
+import util.Config.Backend;
+import util.Config.CompactConfig;
+import util.Config.Limits;
+import util.Config.ImapConfig;
 import util.Config.Pop3Config;
+import util.Config.ProxyConfig;
+import util.Config.RelayConfig;
+import util.Config.ReplConfig;
+import util.Config.RetryConfig;
 import util.Config.SmtpConfig;
+import util.Config.TlsConfig;
 
 public final class ConfigLoader {
     private ConfigLoader() {} // this constructor is private that way no one can make an object of this class.
@@ -28,6 +42,16 @@ public final class ConfigLoader {
         return loadAccounts(new File("accounts.json")); // uses "accounts.json" as the default file also calls file version
     }
 
+    // finds a config file, falls back to config/<name> when the given path is missing
+    public static File locate(String path, String name) {
+        File f = new File(path == null ? name : path);
+        if (!f.exists()) {
+            File alt = new File("config/" + name);
+            if (alt.exists()) f = alt;
+        }
+        return f;
+    }
+
     //loads SMTP config
     public static SmtpConfig loadSmtp(File f) throws IOException, InvalidJSONException {
         JSONObject o = JsonIO.readObject(f);            // opens than turns json file into object
@@ -36,6 +60,17 @@ public final class ConfigLoader {
         c.serverName = o.getString("server-name");// severs name
         c.port = o.getInt("port");// port # for smtp
         c.log = o.getString("log");// where logs get stored
+        c.maxMessageSize = optLong(o, "max-message-size", c.maxMessageSize);// SIZE limit in bytes
+        loadLimits(o.getObject("limits"), c.limits);// optional connection limits
+        c.tls = loadTls(o.getObject("tls"));// optional STARTTLS/STLS keystore
+        c.relay = loadRelay(o.getObject("relay"));// optional outbound relay
+        loadRetry(o.getObject("retry"), c.retry);// optional retry schedule
+        c.compact = loadCompact(o.getObject("compact"));// optional segment packing
+        c.accounts = o.getString("accounts");// optional accounts file, turns on quotas
+        c.quotaReconcile = optInt(o, "quota-reconcile", c.quotaReconcile);// seconds between usage re-counts
+        c.aliases = o.getString("aliases");// optional alias and mailing list file
+        c.aliasReload = optInt(o, "alias-reload", c.aliasReload);// seconds between checks of that file
+        c.fanout = optInt(o, "fanout", c.fanout);// threads for delivering to many local boxes
         return c;
     }
 
@@ -47,9 +82,190 @@ public final class ConfigLoader {
         c.port = o.getInt("port");// port # for pop 3
         c.log = o.getString("log");// where logs are stored
         c.accounts = o.getString("accounts");// accounts file path
+        loadLimits(o.getObject("limits"), c.limits);// optional connection limits
+        c.tls = loadTls(o.getObject("tls"));// optional STARTTLS/STLS keystore
+        Boolean ro = o.getBoolean("read-only");// replica spool, no deletes
+        if (ro != null) c.readOnly = ro;
+        return c; // returns final config
+    }
+
+    public static ImapConfig loadImap(File f) throws IOException, InvalidJSONException {// load imap config
+        JSONObject o = JsonIO.readObject(f); // opens than turns json file into object
+        ImapConfig c = new ImapConfig();
+        c.spool = o.getString("spool");// folder for emails, same one POP3 reads
+        c.serverName = o.getString("server-name");// sever name
+        c.port = o.getInt("port");// port # for imap
+        c.log = o.getString("log");// where logs are stored
+        c.accounts = o.getString("accounts");// accounts file path
+        loadLimits(o.getObject("limits"), c.limits);// optional connection limits
+        c.tls = loadTls(o.getObject("tls"));// optional STARTTLS keystore
+        Boolean ro = o.getBoolean("read-only");// replica spool, no flag changes or expunges
+        if (ro != null) c.readOnly = ro;
+        return c; // returns final config
+    }
+
+    public static ReplConfig loadRepl(File f) throws IOException, InvalidJSONException {// load replication config
+        JSONObject o = JsonIO.readObject(f); // opens than turns json file into object
+        ReplConfig c = new ReplConfig();
+        c.spool = o.getString("spool");// the spool being copied, or copied into
+        c.log = o.getString("log");// where logs are stored
+        c.role = o.getString("role");// primary or follower
+        if (!"primary".equals(c.role) && !"follower".equals(c.role)) throw new InvalidJSONException("role must be primary or follower");
+        c.port = optInt(o, "port", 0);// primary: port followers connect to
+        JSONArray allow = o.getArray("allow");// primary: follower address prefixes
+        if (allow != null) {
+            c.allow.clear();
+            for (int i = 0; i < allow.size(); i++) c.allow.add(allow.getString(i));
+        }
+        c.primary = o.getString("primary");// follower: host:port of the primary
+        c.name = o.getString("name");// follower: name for logs and lag metrics
+        if (c.role.equals("follower") && (c.primary == null || c.name == null)) throw new InvalidJSONException("follower needs primary and name");
+        c.batchBytes = optLong(o, "batch-bytes", c.batchBytes);// message bytes per batch
+        c.batchDelay = optInt(o, "batch-delay", c.batchDelay);// millis to gather a batch
+        c.level = optInt(o, "level", c.level);// deflate level
+        c.heartbeat = optInt(o, "heartbeat", c.heartbeat);// seconds
+        c.retry = optInt(o, "retry", c.retry);// seconds before reconnecting
+        c.logMax = optLong(o, "log-max", c.logMax);// primary: change log size that triggers a trim
+        c.forget = optInt(o, "forget", c.forget);// primary: seconds before an absent follower is dropped
+        return c; // returns final config
+    }
+
+    public static ProxyConfig loadProxy(File f) throws IOException, InvalidJSONException {// load front proxy config
+        JSONObject o = JsonIO.readObject(f); // opens than turns json file into object
+        ProxyConfig c = new ProxyConfig();
+        c.serverName = o.getString("server-name");// mail domain, same as the backends
+        c.log = o.getString("log");// where logs are stored
+        c.pop3Port = optInt(o, "pop3-port", c.pop3Port);// 0 for no POP3
+        c.smtpPort = optInt(o, "smtp-port", c.smtpPort);// 0 for no SMTP
+        c.vnodes = optInt(o, "vnodes", c.vnodes);// ring points per unit of weight
+        c.maxMessageSize = optLong(o, "max-message-size", c.maxMessageSize);// advertised SIZE
+        c.connectTimeout = optInt(o, "connect-timeout", c.connectTimeout);// seconds
+        JSONArray allow = o.getArray("relay-allow");// client prefixes that may send off-domain
+        if (allow != null) for (int i = 0; i < allow.size(); i++) c.relayAllow.add(allow.getString(i));
+        loadLimits(o.getObject("limits"), c.limits);// optional connection limits
+        c.tls = loadTls(o.getObject("tls"));// optional STARTTLS/STLS keystore
+        c.aliases = o.getString("aliases");// optional alias and mailing list file, the one the nodes would use
+        c.aliasReload = optInt(o, "alias-reload", c.aliasReload);// seconds between checks of that file
+        JSONArray arr = o.getArray("backends");// the nodes users are spread over
+        if (arr == null || arr.size() == 0) throw new InvalidJSONException("proxy needs at least one backend");
+        for (int i = 0; i < arr.size(); i++) {
+            JSONObject bo = arr.getObject(i);
+            Backend b = new Backend();
+            b.name = bo.getString("name");// stable id, the ring is built from it so renaming moves users
+            if (bo.getString("host") != null) b.host = bo.getString("host");
+            b.pop3 = optInt(bo, "pop3", 0);// backend POP3 port
+            b.smtp = optInt(bo, "smtp", 0);// backend SMTP port
+            b.weight = optInt(bo, "weight", b.weight);
+            if (b.name == null || b.name.isBlank()) throw new InvalidJSONException("backend without a name");
+            c.backends.add(b);
+        }
         return c; // returns final config
     }
 
+    // fills in any limits present in the json, everything missing keeps its default
+    static void loadLimits(JSONObject o, Limits l) {
+        if (o == null) return;
+        l.threads = optInt(o, "threads", l.threads);// worker threads
+        l.queue = optInt(o, "queue", l.queue);// sockets allowed to wait for a worker
+        l.maxConnections = optInt(o, "max-connections", l.maxConnections);// total open connections
+        l.maxPerIp = optInt(o, "max-per-ip", l.maxPerIp);// open connections from one address
+        l.connRate = optDouble(o, "conn-rate", l.connRate);// new connections per second
+        l.connBurst = optInt(o, "conn-burst", l.connBurst);
+        l.ipRate = optDouble(o, "ip-rate", l.ipRate);// new connections per second from one address
+        l.ipBurst = optInt(o, "ip-burst", l.ipBurst);
+        l.idleTimeout = optInt(o, "idle-timeout", l.idleTimeout);// seconds
+        l.acceptors = optInt(o, "acceptors", l.acceptors);// accept threads, one listening socket each
+    }
+
+    // tls section of smtpd.json / pop3d.json, null when there is none
+    static TlsConfig loadTls(JSONObject o) {
+        if (o == null) return null;
+        TlsConfig t = new TlsConfig();
+        t.keystore = o.getString("keystore");// keystore file
+        t.password = o.getString("password");// keystore password
+        if (o.getString("type") != null) t.type = o.getString("type");// PKCS12 or JKS
+        t.sessionCache = optInt(o, "session-cache", t.sessionCache);// sessions kept for resumption
+        t.sessionTimeout = optInt(o, "session-timeout", t.sessionTimeout);// seconds
+        Boolean tk = o.getBoolean("tickets");// stateless resumption
+        if (tk != null) t.tickets = tk;
+        return t;
+    }
+
+    // relay section of smtpd.json, null when there is none
+    static RelayConfig loadRelay(JSONObject o) {
+        if (o == null) return null;
+        RelayConfig r = new RelayConfig();
+        JSONObject routes = o.getObject("routes");// domain -> host:port
+        if (routes != null) {
+            for (String dom : routes.keySet()) r.routes.put(dom.toLowerCase(Locale.ROOT), routes.getString(dom));
+        }
+        JSONArray allow = o.getArray("allow");// client address prefixes that may relay
+        if (allow != null) {
+            r.allow.clear();
+            for (int i = 0; i < allow.size(); i++) r.allow.add(allow.getString(i));
+        }
+        r.poolSize = optInt(o, "pool-size", r.poolSize);// connections kept per destination
+        r.workers = optInt(o, "workers", r.workers);// sender threads
+        r.timeout = optInt(o, "timeout", r.timeout);// seconds
+        r.idle = optInt(o, "idle", r.idle);// seconds a pooled connection may sit unused
+        return r;
+    }
+
+    // retry section of smtpd.json, missing values keep their defaults
+    static void loadRetry(JSONObject o, RetryConfig r) {
+        if (o == null) return;
+        r.first = optInt(o, "first", r.first);// seconds before the first retry
+        r.factor = optDouble(o, "factor", r.factor);// backoff growth
+        r.maxBackoff = optInt(o, "max-backoff", r.maxBackoff);// longest wait between tries
+        r.lifetime = optInt(o, "lifetime", r.lifetime);// bounce after this long
+    }
+
+    // compact section of smtpd.json, null when there is none
+    static CompactConfig loadCompact(JSONObject o) {
+        if (o == null) return null;
+        CompactConfig c = new CompactConfig();
+        c.age = optInt(o, "age", c.age);// seconds before a message gets packed
+        c.interval = optInt(o, "interval", c.interval);// seconds between passes
+        c.segmentSize = optLong(o, "segment-size", c.segmentSize);// bytes per segment
+        c.reclaim = optDouble(o, "reclaim", c.reclaim);// dead share that triggers a rewrite
+        return c;
+    }
+
+    // optional values, missing keys fall back to the default
+    static int optInt(JSONObject o, String k, int def) {
+        Integer v = o.getInt(k);
+        return v == null ? def : v;
+    }
+    static long optLong(JSONObject o, String k, long def) {
+        Long v = o.getLong(k);
+        return v == null ? def : v;
+    }
+    static double optDouble(JSONObject o, String k, double def) {
+        Double v = o.getDouble(k);
+        return v == null ? def : v;
+    }
+
+    // alias file: {"aliases": {"name": ["user", "other-alias", "someone@elsewhere"], ...}}
+    // names are lowercased, the result can't be changed
+    public static Map<String, List<String>> loadAliases(File f) throws IOException, InvalidJSONException {
+        JSONObject o = JsonIO.readObject(f);
+        JSONObject tab = o.getObject("aliases");
+        Map<String, List<String>> out = new HashMap<>();
+        if (tab == null) return Map.of();
+        for (String name : tab.keySet()) {
+            JSONArray arr = tab.getArray(name);
+            List<String> to = new ArrayList<>();
+            if (arr == null) {
+                String one = tab.getString(name);// a single target can be a plain string
+                if (one != null) to.add(one.trim());
+            } else {
+                for (int i = 0; i < arr.size(); i++) to.add(arr.getString(i).trim());
+            }
+            out.put(name.trim().toLowerCase(Locale.ROOT), List.copyOf(to));
+        }
+        return Map.copyOf(out);
+    }
+
     public static AccountsDB loadAccounts(File f) throws IOException, InvalidJSONException {
         JSONObject o = JsonIO.readObject(f); // opens than turns json file into object
         JSONArray arr = o.getArray("accounts");// the json file grabs account array
@@ -60,6 +276,7 @@ public final class ConfigLoader {
             a.username = ao.getString("username"); // account name
             a.pass = ao.getString("pass");// account password
             a.spool = ao.getString("spool");// spool folder
+            a.quota = optLong(ao, "quota", a.quota);// mailbox size limit in bytes, 0 for none
             if (a.username != null && !a.username.isBlank()) db.accounts.add(a); // only add the account if it has a username
         }
         return db;// returns database of finished accounts
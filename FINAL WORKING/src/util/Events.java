@@ -0,0 +1,96 @@
+package util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+//Flight recorder events for the mail servers. All are off unless a recording turns them
+//on (see maild.jfc), and callers only fill in fields after shouldCommit(), so a disabled
+//event is one allocation the JIT removes. Record alongside the JDK defaults with
+//  jcmd <pid> JFR.start settings=default,maild.jfc
+public final class Events {
+    private Events() {}
+
+//one SMTP command, from reading the line to sending the reply
+    @Name("maild.SmtpCommand")
+    @Label("SMTP Command")
+    @Category({"Mail", "SMTP"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class SmtpCommand extends Event {
+        @Label("Command") public String command;
+        @Label("Reply Code") public int reply;
+        @Label("Client") public String client;
+    }
+
+//a message body, DATA up to the final dot or BDAT from the first chunk to LAST
+    @Name("maild.SmtpData")
+    @Label("SMTP Message Body")
+    @Category({"Mail", "SMTP"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class SmtpData extends Event {
+        @Label("Size") @DataAmount public long bytes;
+        @Label("Recipients") public int recipients;
+        @Label("Chunked") @Description("Sent with BDAT") public boolean chunked;
+        @Label("Reply Code") public int reply;
+    }
+
+//POP3 USER/PASS, including opening and locking the mailbox
+    @Name("maild.Pop3Login")
+    @Label("POP3 Login")
+    @Category({"Mail", "POP3"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class Pop3Login extends Event {
+        @Label("User") public String user;
+        @Label("Success") public boolean success;
+        @Label("Messages") public int messages;
+        @Label("Mailbox Size") @DataAmount public long mailboxBytes;
+    }
+
+//POP3 LIST or RETR
+    @Name("maild.Pop3Command")
+    @Label("POP3 Command")
+    @Category({"Mail", "POP3"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class Pop3Command extends Event {
+        @Label("Command") public String command;
+        @Label("User") public String user;
+        @Label("Messages") public int messages;
+        @Label("Mailbox Size") @DataAmount public long mailboxBytes;
+        @Label("Message Size") @DataAmount @Description("RETR only") public long bytes;
+    }
+
+//MailBox load, add or commitDeletes
+    @Name("maild.MailBoxOp")
+    @Label("Mailbox Operation")
+    @Category({"Mail", "Storage"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class MailBoxOp extends Event {
+        @Label("Operation") public String operation;
+        @Label("User") public String user;
+        @Label("Messages") public int messages;
+        @Label("Size") @DataAmount public long bytes;
+    }
+
+//a message taken off the delivery queue, with how long it sat there
+    @Name("maild.QueueWait")
+    @Label("Delivery Queue Wait")
+    @Category({"Mail", "SMTP"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class QueueWait extends Event {
+        @Label("Wait") @Timespan(Timespan.NANOSECONDS) public long wait;
+        @Label("Queue Depth") @Description("Messages still queued after this one") public int depth;
+        @Label("Recipients") public int recipients;
+    }
+}
@@ -0,0 +1,160 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+//Buffered reader over the raw socket bytes. Gives protocol lines as text but can also
+//hand the following bytes over untouched, which a Reader over the same stream cannot.
+public final class LineReader {
+//longest command line we accept before giving up on the client
+    private static final int MAX_LINE = 64 * 1024;
+
+    private InputStream in;
+    private final byte[] buf = new byte[16 * 1024];
+    private int pos = 0;
+    private int lim = 0;
+
+    public LineReader(InputStream in) { this.in = in; }
+
+//Read one line without its CRLF (a bare LF also ends it), null at end of stream
+    public String readLine() throws IOException {
+        byte[] line = new byte[256];
+        int n = 0;
+        while (true) {
+            if (pos == lim && !fill()) {
+                return n == 0 ? null : text(line, n);
+            }
+            byte b = buf[pos++];
+            if (b == '\n') return text(line, n);
+            if (n == line.length) {
+                if (n >= MAX_LINE) throw new IOException("line too long");
+                line = java.util.Arrays.copyOf(line, n * 2);
+            }
+            line[n++] = b;
+        }
+    }
+
+//Copy a dot terminated DATA body into out: undo dot-stuffing, end every line in CRLF
+//and keep the bytes as they are (8BITMIME). Once more than limit bytes (limit <= 0 means
+//none) have been seen, stop writing but keep reading up to the final dot.
+//returns the body size, or -1 if the stream ended first
+    public long readDotData(OutputStream out, long limit) throws IOException {
+        long total = 0;
+//start of the current line in buf, and whether it began with a dot
+        int from = pos;
+        boolean dot = false;
+        boolean start = true;
+        while (true) {
+            if (pos == lim) {
+//out of bytes, keep the partial line and read more behind it
+                int keep = lim - from;
+                if (keep == buf.length) {
+//one giant line, pass the front of it through, holding back a CR that may start the CRLF
+                    int s = dot ? from + 1 : from;
+                    int e = buf[lim - 1] == '\r' ? lim - 1 : lim;
+                    total += e - s;
+                    if (limit <= 0 || total <= limit) out.write(buf, s, e - s);
+                    keep = lim - e;
+                    if (keep > 0) buf[0] = '\r';
+                    dot = false;
+                } else if (keep > 0) {
+                    System.arraycopy(buf, from, buf, 0, keep);
+                }
+                from = 0;
+                pos = lim = keep;
+                if (!more()) return -1;
+            }
+            byte b = buf[pos++];
+            if (start) { start = false; dot = b == '.'; }
+            if (b != '\n') continue;
+//whole line in [from, pos), drop the line ending
+            int end = pos - 1;
+            if (end > from && buf[end - 1] == '\r') end--;
+            int s = from;
+            if (dot) {
+//a lone "." ends the body, a doubled one loses its first dot
+                if (end - from == 1) return total;
+                s++;
+            }
+            int len = end - s;
+            total += len + 2;
+            if (limit <= 0 || total <= limit) {
+                out.write(buf, s, len);
+                out.write('\r');
+                out.write('\n');
+            }
+            from = pos;
+            start = true;
+        }
+    }
+
+//Copy a DATA body to out exactly as sent, dot-stuffing and the final dot line included,
+//straight from the buffer a fill at a time. For passing a body on to another server.
+//returns the bytes copied, or -1 if the stream ended first
+    public long copyDotData(OutputStream out) throws IOException {
+        long total = 0;
+//0 inside a line, 1 at the start of one, 2 after a leading dot, 3 after ".\r"
+        int st = 1;
+        while (true) {
+            if (pos == lim && !fill()) return -1;
+            int i = pos;
+            boolean done = false;
+            for (; i < lim; i++) {
+                byte b = buf[i];
+                if (b == '\n') {
+                    if (st >= 2) { i++; done = true; break; }
+                    st = 1;
+                } else if (b == '.') st = st == 1 ? 2 : 0;
+                else if (b == '\r') st = st == 2 ? 3 : 0;
+                else st = 0;
+            }
+            out.write(buf, pos, i - pos);
+            total += i - pos;
+            pos = i;
+            if (done) return total;
+        }
+    }
+
+//Copy exactly n bytes to out (BDAT chunks), out may be null to throw the bytes away
+    public void copy(OutputStream out, long n) throws IOException {
+        while (n > 0) {
+            if (pos == lim && !fill()) throw new EOFException("stream ended in chunk");
+            int k = (int) Math.min(n, lim - pos);
+            if (out != null) out.write(buf, pos, k);
+            pos += k;
+            n -= k;
+        }
+    }
+
+//Switch to a new stream (after a TLS handshake), anything still buffered is dropped
+    public void reset(InputStream in) {
+        this.in = in;
+        pos = lim = 0;
+    }
+
+//bytes the client has already sent that nobody has read yet
+    public int buffered() { return lim - pos; }
+
+//refill an empty buffer, false at end of stream
+    private boolean fill() throws IOException {
+        pos = lim = 0;
+        return more();
+    }
+
+//read more bytes after lim, false at end of stream
+    private boolean more() throws IOException {
+        int r = in.read(buf, lim, buf.length - lim);
+        if (r <= 0) return false;
+        lim += r;
+        return true;
+    }
+
+//decode a line, strips the CR before the LF
+    private static String text(byte[] b, int n) {
+        if (n > 0 && b[n - 1] == '\r') n--;
+        return new String(b, 0, n, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import merrimackutil.net.Log;
+
+//Process wide named counters and gauges, dumped to the log now and then
+public final class Metrics {
+//Private constructor so class cannot be instantiated
+    private Metrics() {}
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+//values that go up and down (lag, queue depth), last write wins
+    private static final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+//logs the reporter writes to, and whether it is running yet
+    private static final CopyOnWriteArrayList<Log> logs = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean reporting = new AtomicBoolean();
+
+//bump a counter by one
+    public static void inc(String name) { add(name, 1); }
+
+//bump a counter by n
+    public static void add(String name, long n) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+//set a gauge
+    public static void set(String name, long v) {
+        gauges.computeIfAbsent(name, k -> new AtomicLong()).set(v);
+    }
+
+//record one duration: <name>.n counts them, <name>.us adds up their microseconds (so the
+//mean is us / n) and the gauge <name>.max.us keeps the longest since the last report
+    public static void time(String name, long nanos) {
+        long us = nanos / 1000;
+        add(name + ".n", 1);
+        add(name + ".us", us);
+        gauges.computeIfAbsent(name + ".max.us", k -> new AtomicLong()).accumulateAndGet(us, Math::max);
+    }
+
+//current value of a counter or gauge (0 if never touched)
+    public static long get(String name) {
+        LongAdder a = counters.get(name);
+        if (a != null) return a.sum();
+        AtomicLong g = gauges.get(name);
+        return g == null ? 0 : g.get();
+    }
+
+//all counters and gauges sorted by name
+    public static String snapshot() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) m.put(e.getKey(), e.getValue().sum());
+        for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) m.put(e.getKey(), e.getValue().get());
+        return m.toString();
+    }
+
+//Log the counters every period seconds. Every service calls this, but one daemon thread
+//runs per process (the first call's period) and writes each snapshot to every log handed
+//in, so the maxima are reset once per period and not once per service.
+    public static void report(Log lg, int period) {
+        if (period <= 0) return;
+        logs.addIfAbsent(lg);
+        if (!reporting.compareAndSet(false, true)) return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                try { Thread.sleep(period * 1000L); } catch (InterruptedException e) { return; }
+                String line = "metrics " + snapshot();
+                for (Log l : logs) l.log(line);
+//maxima start over each period so they show the recent worst case
+                for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) if (e.getKey().endsWith(".max.us")) e.getValue().set(0);
+            }
+        }, "metrics");
+        t.setDaemon(true);
+        t.start();
+    }
+}
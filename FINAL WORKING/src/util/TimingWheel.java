@@ -0,0 +1,87 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Hierarchical timing wheel. Four levels of 64 slots, each level 64 times coarser than the
+//one below, cover 64^4 ticks. Scheduling drops the item straight into a slot and every
+//tick only looks at one slot (plus a cascade every 64 ticks), so the cost does not grow with
+//the number of pending items, and nothing needs its own thread or timer.
+public final class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+//furthest ahead an item can be placed, later ones are clamped and come out early
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+//a scheduled item and the tick it is due on
+    private static final class Node<T> {
+        final T item;
+        final long when;
+        Node(T item, long when) { this.item = item; this.when = when; }
+    }
+
+    private final long tickMs;
+    private final List<List<Node<T>>> slots = new ArrayList<>();
+    private long tick;
+    private int size = 0;
+
+//tickMs is the resolution, startMs the current time
+    public TimingWheel(long tickMs, long startMs) {
+        this.tickMs = Math.max(1, tickMs);
+        this.tick = startMs / this.tickMs;
+        for (int i = 0; i < SLOTS * LEVELS; i++) slots.add(new ArrayList<>());
+    }
+
+//Schedule item to come out of advance() once dueMs has passed
+    public synchronized void schedule(T item, long dueMs) {
+        long when = Math.max(tick + 1, (dueMs + tickMs - 1) / tickMs);
+        if (when - tick >= SPAN) when = tick + SPAN - 1;
+        place(new Node<>(item, when));
+        size++;
+    }
+
+//Move the wheel up to nowMs and return everything that came due
+    public synchronized List<T> advance(long nowMs) {
+        List<T> due = new ArrayList<>();
+        long target = nowMs / tickMs;
+        while (tick < target && size > 0) {
+            tick++;
+//every time a lower level wraps, spread the next slot of the level above over the levels below
+            for (int lv = LEVELS - 1; lv >= 1; lv--) {
+                if ((tick & ((1L << (BITS * lv)) - 1)) == 0) cascade(lv, (int) ((tick >>> (BITS * lv)) & MASK), due);
+            }
+            List<Node<T>> s = slots.get((int) (tick & MASK));
+            for (Node<T> n : s) due.add(n.item);
+            size -= s.size();
+            s.clear();
+        }
+//nothing pending, just jump ahead
+        if (tick < target) tick = target;
+        return due;
+    }
+
+//number of items waiting
+    public synchronized int size() { return size; }
+
+//put a node in the lowest level whose slot has not gone past yet
+    private void place(Node<T> n) {
+        int lv = 0;
+        while (lv < LEVELS - 1 && (n.when >>> (BITS * (lv + 1))) != (tick >>> (BITS * (lv + 1)))) lv++;
+        int slot = (int) ((n.when >>> (BITS * lv)) & MASK);
+        slots.get(lv * SLOTS + slot).add(n);
+    }
+
+//empty one slot of a higher level back into the wheel
+    private void cascade(int lv, int slot, List<T> due) {
+        List<Node<T>> s = slots.get(lv * SLOTS + slot);
+        if (s.isEmpty()) return;
+        List<Node<T>> moving = new ArrayList<>(s);
+        s.clear();
+        for (Node<T> n : moving) {
+            if (n.when <= tick) { due.add(n.item); size--; }
+            else place(n);
+        }
+    }
+}
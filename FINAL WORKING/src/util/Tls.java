@@ -0,0 +1,80 @@
+package util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+//TLS for STARTTLS (SMTP) and STLS (POP3). One SSLContext per keystore for the whole
+//process, so every service using it shares one bounded session cache and repeat clients
+//can resume instead of paying for a full handshake.
+public final class Tls {
+//Private constructor so class cannot be instantiated
+    private Tls() {}
+
+//contexts already built, keyed by keystore path
+    private static final Map<String, SSLContext> contexts = new ConcurrentHashMap<>();
+
+//Get the shared context for this config, built the first time it is asked for
+    public static SSLContext context(Config.TlsConfig cfg) throws IOException {
+        String key = Paths.get(cfg.keystore).toAbsolutePath().normalize().toString();
+        SSLContext c = contexts.get(key);
+        if (c != null) return c;
+        synchronized (contexts) {
+            c = contexts.get(key);
+            if (c == null) {
+                c = build(cfg);
+                contexts.put(key, c);
+            }
+            return c;
+        }
+    }
+
+//Turn an accepted plain socket into a server side TLS socket and run the handshake.
+//counts full vs resumed handshakes as <name>.tls.full / <name>.tls.resumed
+    public static SSLSocket upgrade(Socket plain, SSLContext ctx, String name) throws IOException {
+        SSLSocketFactory f = ctx.getSocketFactory();
+        SSLSocket s = (SSLSocket) f.createSocket(plain, plain.getInetAddress().getHostAddress(), plain.getPort(), true);
+        s.setUseClientMode(false);
+        long start = System.currentTimeMillis();
+        s.startHandshake();
+        SSLSession ss = s.getSession();
+//a resumed session keeps the creation time of the handshake that made it
+        if (ss.getCreationTime() < start) Metrics.inc(name + ".tls.resumed");
+        else Metrics.inc(name + ".tls.full");
+        return s;
+    }
+
+//load the keystore and set up the session cache
+    private static SSLContext build(Config.TlsConfig cfg) throws IOException {
+//must be set before the first context is made, the JDK reads it once
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(cfg.tickets));
+        }
+        try (InputStream in = new FileInputStream(cfg.keystore)) {
+            char[] pw = cfg.password == null ? new char[0] : cfg.password.toCharArray();
+            KeyStore ks = KeyStore.getInstance(cfg.type);
+            ks.load(in, pw);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, pw);
+            SSLContext c = SSLContext.getInstance("TLS");
+            c.init(kmf.getKeyManagers(), null, null);
+            c.getServerSessionContext().setSessionCacheSize(cfg.sessionCache);
+            c.getServerSessionContext().setSessionTimeout(cfg.sessionTimeout);
+            return c;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("tls setup failed: " + e.getMessage(), e);
+        }
+    }
+}
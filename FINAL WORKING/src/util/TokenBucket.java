@@ -0,0 +1,45 @@
+package util;
+
+//Token bucket used to limit how fast new connections are let in
+public final class TokenBucket {
+//tokens added per second and the most the bucket can hold
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long last;
+
+    public TokenBucket(double rate, int burst) {
+        this.rate = rate;
+        this.capacity = Math.max(1, burst);
+//start full so a quiet client is never refused
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+//Take one token, false if the bucket is empty
+    public synchronized boolean tryTake() {
+        refill();
+        if (tokens < 1.0) return false;
+        tokens -= 1.0;
+        return true;
+    }
+
+//Put back a token taken for something that was then refused anyway
+    public synchronized void giveBack() {
+        refill();
+        tokens = Math.min(capacity, tokens + 1.0);
+    }
+
+//true once the bucket has fully refilled (so forgetting it changes nothing)
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+//add the tokens earned since the last call
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) / 1e9 * rate);
+        last = now;
+    }
+}